@@ -0,0 +1,73 @@
+package it.polimi.ds.lib.benchmark;
+
+import it.polimi.ds.lib.reliability.AcknowledgeMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bookkeeping of a broadcast message in the {@link AcknowledgeMap}: the message is sent, acknowledged by every member of
+ * the group, checked for completeness after each ACK as the reliability layer does, and removed
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcknowledgeMapBenchmark {
+    @Param({"2", "8", "32", "128"})
+    int groupSize;
+
+    /**
+     * Number of messages kept unstable in the map, as if the ACKs were still travelling
+     */
+    @Param({"0", "1000"})
+    int unstableMessages;
+
+    private AcknowledgeMap ackMap;
+
+    private List<UUID> recipients;
+
+    private UUID[] messageIds;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        ackMap = new AcknowledgeMap();
+        recipients = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) recipients.add(UUID.randomUUID());
+        for (int i = 0; i < unstableMessages; i++) ackMap.sendMessage(UUID.randomUUID(), recipients);
+        messageIds = new UUID[1024];
+        for (int i = 0; i < messageIds.length; i++) messageIds[i] = UUID.randomUUID();
+    }
+
+    @Benchmark
+    public boolean sendAndAcknowledge() {
+        UUID messageId = messageIds[next++ & (messageIds.length - 1)];
+        ackMap.sendMessage(messageId, recipients);
+        boolean complete = false;
+        for (UUID recipient : recipients) {
+            ackMap.receiveAck(messageId, recipient, recipients);
+            complete = ackMap.isComplete(messageId);
+        }
+        ackMap.remove(messageId);
+        return complete;
+    }
+
+    @Benchmark
+    public boolean receiveMessageBeforeAcks() {
+        UUID messageId = messageIds[next++ & (messageIds.length - 1)];
+        UUID sender = recipients.get(0);
+        for (int i = 1; i < recipients.size(); i++)
+            ackMap.receiveAck(messageId, recipients.get(i), recipients);
+        ackMap.receiveMessage(messageId, sender, recipients);
+        boolean complete = ackMap.isComplete(messageId);
+        ackMap.remove(messageId);
+        return complete;
+    }
+}
@@ -0,0 +1,107 @@
+package it.polimi.ds.lib.benchmark;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import it.polimi.ds.lib.vsync.faultTolerance.FaultRecovery;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Logging of the stable messages and creation of a checkpoint on disk by the {@link FaultRecovery}. The recovery files
+ * are written in a temporary directory, and the checkpoints are created by the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FaultRecoveryBenchmark {
+    @Param({"128"})
+    int payloadSize;
+
+    private Path directory;
+
+    private VSyncMessage message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("rmpi-benchmark");
+        message = new VSyncMessage(new byte[payloadSize]);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * A new log for every iteration, growing for the whole iteration as between two checkpoints
+     */
+    @State(Scope.Thread)
+    public static class Log {
+        // the benchmark state is a parameter of the setups so that the temporary directory is already created
+        FaultRecovery faultRecovery;
+
+        int eventID;
+
+        @Setup(Level.Iteration)
+        public void setup(FaultRecoveryBenchmark benchmark) throws IOException {
+            faultRecovery = new FaultRecovery(Files.createTempDirectory(benchmark.directory, "log"));
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            faultRecovery.close();
+        }
+    }
+
+    /**
+     * A log filled with {@link #logSize} messages before every checkpoint
+     */
+    @State(Scope.Thread)
+    public static class FullLog {
+        @Param({"100", "1000"})
+        int logSize;
+
+        FaultRecovery faultRecovery;
+
+        int eventID;
+
+        @Setup(Level.Trial)
+        public void setup(FaultRecoveryBenchmark benchmark) throws IOException {
+            faultRecovery = new FaultRecovery(Files.createTempDirectory(benchmark.directory, "full-log"));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            faultRecovery.close();
+        }
+
+        @Setup(Level.Invocation)
+        public void fill(FaultRecoveryBenchmark benchmark) {
+            for (int i = 0; i < logSize; i++)
+                faultRecovery.logMessage(benchmark.message, new ScalarClock(1, ++eventID));
+        }
+    }
+
+    @Benchmark
+    public void logMessage(Log log) {
+        log.faultRecovery.logMessage(message, new ScalarClock(1, ++log.eventID));
+    }
+
+    @Benchmark
+    public int doCheckpoint(FullLog log) {
+        log.faultRecovery.doCheckpoint();
+        return log.faultRecovery.getCheckpointCounter();
+    }
+}
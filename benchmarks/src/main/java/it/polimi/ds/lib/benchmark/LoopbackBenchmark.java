@@ -0,0 +1,92 @@
+package it.polimi.ds.lib.benchmark;
+
+import it.polimi.ds.lib.communication.CommunicationLayer;
+import it.polimi.ds.lib.communication.TransportType;
+import it.polimi.ds.lib.communication.message.BasicMessage;
+import it.polimi.ds.lib.reliability.ReliabilityMessage;
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import it.polimi.ds.lib.vsync.view.ViewManagerBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end path of a message through the {@link CommunicationLayer} over a real TCP connection on the loopback
+ * interface: encoding, outbound queue, writer, socket, reader, decoding and up buffer.
+ * <p>Every node of the middleware binds the same port and discovers the others with UDP broadcasts, so several nodes
+ * cannot live in one JVM; instead the layer connects to itself, sending on the client side of the connection and
+ * receiving what its own server side reads. Multi-node runs of the whole stack are done with Docker Compose.</p>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    /**
+     * Messages sent before reading them back in the throughput benchmark
+     */
+    private static final int BATCH = 100;
+
+    @Param({"BLOCKING", "NIO"})
+    TransportType transport;
+
+    @Param({"128", "16384"})
+    int payloadSize;
+
+    private CommunicationLayer layer;
+
+    /**
+     * UUID under which the connection of the layer with itself is registered
+     */
+    private final UUID peer = UUID.randomUUID();
+
+    private ReliabilityMessage message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        System.setProperty("user.home", Files.createTempDirectory("rmpi-benchmark").toString());
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        layer = CommunicationLayer.customConfiguration(port, Integer.MAX_VALUE, transport,
+                new ViewManagerBuilder(null, null));
+        message = new ReliabilityMessage(UUID.randomUUID(), new VSyncMessage(new byte[payloadSize]),
+                new ScalarClock(1, 1));
+        // the server socket is opened by a separate thread
+        for (int attempt = 0; ; attempt++) {
+            try {
+                layer.initConnection(InetAddress.getLoopbackAddress(), peer);
+                break;
+            } catch (RuntimeException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public BasicMessage roundTrip() {
+        layer.sendMessage(peer, message);
+        return layer.getMessage();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public BasicMessage throughput() {
+        for (int i = 0; i < BATCH; i++) layer.sendMessage(peer, message);
+        BasicMessage received = null;
+        for (int i = 0; i < BATCH; i++) received = layer.getMessage();
+        return received;
+    }
+}
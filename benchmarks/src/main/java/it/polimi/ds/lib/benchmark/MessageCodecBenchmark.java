@@ -0,0 +1,75 @@
+package it.polimi.ds.lib.benchmark;
+
+import com.google.gson.Gson;
+import it.polimi.ds.lib.communication.message.BasicMessage;
+import it.polimi.ds.lib.communication.message.DataMessage;
+import it.polimi.ds.lib.reliability.ReliabilityMessage;
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.utils.BinaryMessageCodec;
+import it.polimi.ds.lib.utils.MessageGsonBuilder;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a {@link DataMessage} carrying an application payload, with the JSON serialization built by
+ * {@link MessageGsonBuilder} and with the {@link BinaryMessageCodec}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+    @Param({"16", "1024", "65536"})
+    int payloadSize;
+
+    private final Gson gson = new MessageGsonBuilder()
+            .registerBasicMessageAdapter()
+            .registerLocalDateTimeAdapter()
+            .registerKnowledgeableMessage()
+            .registerViewMessageAdapter()
+            .create();
+
+    private DataMessage message;
+
+    private byte[] json;
+
+    private byte[] binary;
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        message = new DataMessage(LocalDateTime.now(), UUID.randomUUID(),
+                new ReliabilityMessage(UUID.randomUUID(), new VSyncMessage(payload), new ScalarClock(1, 42)));
+        json = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+        binary = BinaryMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public BasicMessage decodeJson() {
+        return gson.fromJson(new String(json, StandardCharsets.UTF_8), BasicMessage.class);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public BasicMessage decodeBinary() {
+        return BinaryMessageCodec.decode(ByteBuffer.wrap(binary));
+    }
+}
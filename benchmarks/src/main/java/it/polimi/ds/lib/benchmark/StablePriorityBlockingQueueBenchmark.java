@@ -0,0 +1,60 @@
+package it.polimi.ds.lib.benchmark;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.utils.StablePriorityBlockingQueue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contention on the {@link StablePriorityBlockingQueue} shared by the thread reading from the network, which adds the
+ * messages and marks them stable, and the application thread retrieving them
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StablePriorityBlockingQueueBenchmark {
+    /**
+     * Messages already waiting in the queue, which make the linear search of markStable visible
+     */
+    @Param({"0", "1000"})
+    int backlog;
+
+    private StablePriorityBlockingQueue<ScalarClock> queue;
+
+    private final AtomicInteger eventID = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+        queue = new StablePriorityBlockingQueue<>();
+        // the backlog has the highest timestamps so that it stays behind the benchmarked messages
+        for (int i = 0; i < backlog; i++) queue.add(new ScalarClock(1, Integer.MAX_VALUE - i));
+    }
+
+    @Benchmark
+    @Group("addMarkRetrieve")
+    @GroupThreads(3)
+    public void addAndMarkStable() {
+        ScalarClock clock = new ScalarClock(0, eventID.incrementAndGet());
+        queue.add(clock);
+        queue.markStable(clock);
+    }
+
+    @Benchmark
+    @Group("addMarkRetrieve")
+    @GroupThreads(1)
+    public ScalarClock retrieveStable(Control control) throws InterruptedException {
+        // the consumer must not block on an empty queue when the producers stop at the end of the iteration; once a
+        // message is added it is marked stable by the same producer invocation
+        while (queue.size() <= backlog) {
+            if (control.stopMeasurement) return null;
+            Thread.onSpinWait();
+        }
+        return queue.retrieveStable();
+    }
+}
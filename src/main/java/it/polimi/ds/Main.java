@@ -9,12 +9,7 @@ public class Main {
     public static void main(String[] args) {
         Middleware middleware = new Middleware();
         middleware.start();
-        new Thread(() -> {
-            while (true) {
-                byte[] payload = middleware.readMessage();
-                System.out.println("Received stable message: " + new String(payload));
-            }
-        }).start();
+        middleware.onMessage(payload -> System.out.println("Received stable message: " + new String(payload)));
         System.out.println("When you want to send a message, digit the text and press enter.\nDigit \"exit\" to exit.");
         Scanner scanner = new Scanner(System.in);
         String s;
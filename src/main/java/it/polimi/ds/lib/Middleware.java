@@ -1,12 +1,28 @@
 package it.polimi.ds.lib;
 
+import it.polimi.ds.lib.utils.DeliveryPublisher;
 import it.polimi.ds.lib.vsync.VSyncLayer;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
 public class Middleware implements MiddlewareAPI {
     VSyncLayer vSyncLayer;
+
+    /**
+     * Publishers of the received and of the stable messages, their dispatcher starts with the first subscriber
+     */
+    private DeliveryPublisher<byte[]> messages;
+    private DeliveryPublisher<byte[]> stableMessages;
+
     @Override
     public void start() {
         vSyncLayer = new VSyncLayer();
+        messages = new DeliveryPublisher<>(vSyncLayer::receiveMessage, "Middleware::messages");
+        stableMessages = new DeliveryPublisher<>(vSyncLayer::retrieveStableMessage, "Middleware::stableMessages");
     }
 
     @Override
@@ -14,6 +30,11 @@ public class Middleware implements MiddlewareAPI {
         vSyncLayer.sendMessage(payload);
     }
 
+    @Override
+    public void sendMessages(List<byte[]> payloads) {
+        vSyncLayer.sendMessages(payloads);
+    }
+
     @Override
     public byte[] readMessage() {
         return vSyncLayer.receiveMessage();
@@ -23,4 +44,44 @@ public class Middleware implements MiddlewareAPI {
     public byte[] nextStableMessage() {
         return vSyncLayer.retrieveStableMessage();
     }
+
+    @Override
+    public void sendMessage(ByteBuffer payload) {
+        vSyncLayer.sendMessage(payload);
+    }
+
+    @Override
+    public ByteBuffer readMessageBuffer() {
+        return vSyncLayer.receiveMessageBuffer();
+    }
+
+    @Override
+    public ByteBuffer nextStableMessageBuffer() {
+        return vSyncLayer.retrieveStableMessageBuffer();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMessageAsync(byte[] payload) {
+        return vSyncLayer.sendMessageAsync(payload);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super byte[]> subscriber) {
+        messages.subscribe(subscriber);
+    }
+
+    @Override
+    public void subscribeStable(Flow.Subscriber<? super byte[]> subscriber) {
+        stableMessages.subscribe(subscriber);
+    }
+
+    @Override
+    public CompletableFuture<Void> onMessage(Consumer<byte[]> listener) {
+        return messages.consume(listener);
+    }
+
+    @Override
+    public CompletableFuture<Void> onStableMessage(Consumer<byte[]> listener) {
+        return stableMessages.consume(listener);
+    }
 }
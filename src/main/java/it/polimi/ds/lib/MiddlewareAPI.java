@@ -1,11 +1,70 @@
 package it.polimi.ds.lib;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
 public interface MiddlewareAPI {
     public void start();
 
     public void sendMessage(byte[] payload);
 
+    /**
+     * Send several payloads in a single message, acknowledged and made stable once; they are read one at a time and
+     * in order, as if they were sent one after the other
+     */
+    public void sendMessages(List<byte[]> payloads);
+
     public byte[] readMessage();
 
     public byte[] nextStableMessage();
+
+    /**
+     * Send the remaining content of the buffer without copying it; the content must not change afterward
+     */
+    public void sendMessage(ByteBuffer payload);
+
+    /**
+     * Same as {@link #readMessage()}, the payload is a read-only view that is not copied from the received frame
+     */
+    public ByteBuffer readMessageBuffer();
+
+    /**
+     * Same as {@link #nextStableMessage()}, the payload is a read-only view that is not copied from the received frame
+     */
+    public ByteBuffer nextStableMessageBuffer();
+
+    /**
+     * Same as {@link #sendMessage(byte[])}, without waiting for the message to become stable
+     *
+     * @return a future completed when all the members of the view have acknowledged the message
+     */
+    public CompletableFuture<Void> sendMessageAsync(byte[] payload);
+
+    /**
+     * Receive the messages returned by {@link #readMessage()} as they arrive, requesting them as they can be handled;
+     * once a subscriber is registered the messages are no longer returned by {@link #readMessage()}
+     */
+    public void subscribe(Flow.Subscriber<? super byte[]> subscriber);
+
+    /**
+     * Same as {@link #subscribe(Flow.Subscriber)} for the messages returned by {@link #nextStableMessage()}
+     */
+    public void subscribeStable(Flow.Subscriber<? super byte[]> subscriber);
+
+    /**
+     * Call the listener with every message returned by {@link #readMessage()}, in order
+     *
+     * @return a future completed exceptionally if the listener throws
+     */
+    public CompletableFuture<Void> onMessage(Consumer<byte[]> listener);
+
+    /**
+     * Call the listener with every message returned by {@link #nextStableMessage()}, in order
+     *
+     * @return a future completed exceptionally if the listener throws
+     */
+    public CompletableFuture<Void> onStableMessage(Consumer<byte[]> listener);
 }
@@ -1,18 +1,27 @@
 package it.polimi.ds.lib.communication;
 
-import it.polimi.ds.lib.communication.message.DataMessage;
+import it.polimi.ds.lib.communication.message.BasicMessage;
+import it.polimi.ds.lib.utils.Threads;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 
 /**
  * This class represent another connected client and can send or receive message from this
  */
 public class ClientHandler implements Runnable {
+    /**
+     * Maximum number of bytes coalesced by the writer in a single write
+     */
+    static final int WRITE_BATCH_BYTES = 64 * 1024;
+
     /**
      * The clientUID is the unique identifier of this client
      */
@@ -31,24 +40,60 @@ public class ClientHandler implements Runnable {
     /**
      * The messageHandler is the class that will handle the communication between this client and other clients
      */
-    private final CommunicationLayer messageHandler;
+    protected final CommunicationLayer messageHandler;
 
     private final Socket socket;
 
+    /**
+     * The format used to encode the messages sent to this client, negotiated with the first frames received
+     */
+    private volatile WireFormat wireFormat;
+
+    /**
+     * Frames waiting to be written to the client, drained by the writer of the connection
+     */
+    protected final OutboundQueue outboundQueue;
+
+    /**
+     * Pool of the buffers used to read the frames
+     */
+    private final FrameBufferPool framePool;
+
     public ClientHandler(UUID clientUID, Socket socket, CommunicationLayer messageHandler) throws IOException {
         this.clientUID = clientUID;
         this.socket = socket;
         this.inputStream = new DataInputStream(socket.getInputStream());
-        this.outputStream = new DataOutputStream(socket.getOutputStream());
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                WRITE_BATCH_BYTES));
         this.messageHandler = messageHandler;
+        this.wireFormat = Objects.requireNonNullElse(messageHandler.getWireFormat(), WireFormat.JSON);
+        this.outboundQueue = new OutboundQueue(messageHandler.getOutboundCapacity(),
+                messageHandler.getOverflowPolicy());
+        this.framePool = Objects.requireNonNullElseGet(messageHandler.getFramePool(), FrameBufferPool::new);
     }
 
     /**
-     * start a new thread to receive message from the client
+     * Constructor used by client handlers that don't rely on a blocking socket
+     */
+    protected ClientHandler(UUID clientUID, CommunicationLayer messageHandler) {
+        this.clientUID = clientUID;
+        this.socket = null;
+        this.inputStream = null;
+        this.outputStream = null;
+        this.messageHandler = messageHandler;
+        this.wireFormat = Objects.requireNonNullElse(messageHandler.getWireFormat(), WireFormat.JSON);
+        this.outboundQueue = new OutboundQueue(messageHandler.getOutboundCapacity(),
+                messageHandler.getOverflowPolicy());
+        this.framePool = Objects.requireNonNullElseGet(messageHandler.getFramePool(), FrameBufferPool::new);
+    }
+
+    /**
+     * start a new thread to receive message from the client and a new thread to write the queued messages
      */
     @Override
     public void run() {
-        new Thread(this::receiveMessage, "ClientHandler:" + clientUID).start();
+        Threads.start("ClientHandler:" + clientUID, this::receiveMessage);
+        Threads.start("ClientHandler:" + clientUID + ":writer", this::writeMessages);
     }
 
     /**
@@ -58,18 +103,59 @@ public class ClientHandler implements Runnable {
      * @throws RuntimeException if there is an error in the output stream
      */
     public void sendMessage(byte[] payload) {
+        sendFrame(EncodedFrame.of(payload));
+    }
+
+    /**
+     * queue an already encoded frame to be sent to the client, the frame may be shared with other clients.
+     * If the queue is full the overflow policy is applied, possibly disconnecting the client.
+     *
+     * @param frame the frame to be sent
+     */
+    public void sendFrame(EncodedFrame frame) {
         if (messageHandler.isConnected()) {
             try {
-                outputStream.writeInt(payload.length);
-                outputStream.write(payload);
-            } catch (IOException e) {
-                System.err.println("couldn't send" + e.getMessage());
-                close();
-                messageHandler.disconnectClient(clientUID);
+                if (outboundQueue.offer(frame)) {
+                    frameQueued();
+                } else {
+                    System.err.println("outbound queue full, disconnecting " + clientUID);
+                    close();
+                    // handled on a new thread since the sender may be needed to complete the disconnection
+                    Threads.start("ClientHandler:" + clientUID, () -> messageHandler.disconnectClient(clientUID));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
+    /**
+     * Called after a frame has been queued, the writer thread of this handler is already woken up by the queue
+     */
+    protected void frameQueued() {
+    }
+
+    /**
+     * stay in a loop writing the queued frames, coalescing all the available frames in a single write
+     */
+    private void writeMessages() {
+        try {
+            while (messageHandler.isConnected()) {
+                List<EncodedFrame> frames = outboundQueue.take(WRITE_BATCH_BYTES);
+                if (frames.isEmpty()) break;
+                for (EncodedFrame frame : frames)
+                    frame.writeTo(outputStream);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("couldn't send" + e.getMessage());
+            close();
+            messageHandler.disconnectClient(clientUID);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * initialize the input stream and stay in a loop to receive a message and send it to the messageHandler
      *
@@ -77,14 +163,20 @@ public class ClientHandler implements Runnable {
      */
     private void receiveMessage() {
         while (messageHandler.isConnected()) {
-            byte[] payload;
             try {
                 int length = inputStream.readInt();
-                payload = new byte[length];
-                inputStream.read(payload);
-                DataMessage message = CommunicationLayer.gson.fromJson(new String(payload, StandardCharsets.UTF_8), DataMessage.class);
+                ByteBuffer frame = CommunicationLayer.acquireFrame(length, framePool);
+                try {
+                    inputStream.readFully(frame.array(), frame.arrayOffset(), length);
+                } catch (IOException e) {
+                    framePool.release(frame);
+                    throw e;
+                }
+                if (length > 0) negotiateWireFormat(WireFormat.of(frame.get(0)));
+                BasicMessage message = CommunicationLayer.decodeFrame(frame, framePool);
                 messageHandler.getUpBuffer().add(message);
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
+                // a corrupt frame can't be skipped, the stream is no longer aligned to the frames
                 System.err.println("couldn't read " + e.getMessage());
                 close();
                 messageHandler.disconnectClient(clientUID);
@@ -94,6 +186,7 @@ public class ClientHandler implements Runnable {
     }
 
     public void close() {
+        outboundQueue.close();
         try {
             inputStream.close();
             outputStream.close();
@@ -103,6 +196,30 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Update the format used with this client after receiving a frame from it, falling back to JSON if the client
+     * doesn't use the binary format
+     *
+     * @param received the format of the received frame
+     */
+    void negotiateWireFormat(WireFormat received) {
+        wireFormat = wireFormat.negotiate(received);
+    }
+
+    /**
+     * @return the format to use to encode the messages sent to this client
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * @return the address of the connected client
+     */
+    String getHostAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
     /**
      * @return the clientUID of this client
      */
@@ -4,8 +4,11 @@ import com.google.gson.Gson;
 import it.polimi.ds.lib.communication.message.BasicMessage;
 import it.polimi.ds.lib.communication.message.DataMessage;
 import it.polimi.ds.lib.communication.message.DiscoveryMessage;
+import it.polimi.ds.lib.reliability.MessageType;
 import it.polimi.ds.lib.reliability.ReliabilityMessage;
+import it.polimi.ds.lib.utils.BinaryMessageCodec;
 import it.polimi.ds.lib.utils.MessageGsonBuilder;
+import it.polimi.ds.lib.utils.Threads;
 import it.polimi.ds.lib.vsync.view.ViewManager;
 import it.polimi.ds.lib.vsync.view.ViewManagerBuilder;
 import org.apache.logging.log4j.LogManager;
@@ -14,12 +17,17 @@ import org.apache.logging.log4j.Logger;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Base layer of the protocol stack, allows to create a broadcast network of devices using a mesh topology of
@@ -37,9 +45,9 @@ public class CommunicationLayer {
      * the initial configuration of this protocol
      */
     public void startDiscoverySender(UUID id, int random) {
-        timer = new Timer();
+        timer = Threads.newScheduler("Discovery Sender");
         try {
-            timer.scheduleAtFixedRate(new DiscoverySender(id, random), 0, broadcastInterval);
+            timer.scheduleAtFixedRate(new DiscoverySender(id, random), 0, broadcastInterval, TimeUnit.MILLISECONDS);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -62,10 +70,58 @@ public class CommunicationLayer {
      */
     private static final int BROADCAST_INTERVAL = 10000;
 
+    /**
+     * Default transport, can be overridden with the {@code rmpi.transport} system property
+     */
+    private static final TransportType TRANSPORT =
+            TransportType.valueOf(System.getProperty("rmpi.transport", TransportType.BLOCKING.name()));
+
+    /**
+     * Default number of selector threads used by the {@link NioTransport}
+     */
+    private static final int IO_THREADS = Integer.getInteger("rmpi.nio.threads", 2);
+
+    /**
+     * Default preferred wire format, can be overridden with the {@code rmpi.wire.format} system property
+     */
+    private static final WireFormat WIRE_FORMAT =
+            WireFormat.valueOf(System.getProperty("rmpi.wire.format", WireFormat.BINARY.name()));
+
+    /**
+     * Default maximum number of frames queued for each client, can be overridden with the
+     * {@code rmpi.outbound.capacity} system property
+     */
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("rmpi.outbound.capacity", 1024);
+
+    /**
+     * Default policy applied when the queue of a client is full, can be overridden with the
+     * {@code rmpi.outbound.overflow} system property
+     */
+    private static final OverflowPolicy OVERFLOW_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("rmpi.outbound.overflow", OverflowPolicy.BLOCK.name()));
+
+    /**
+     * Minimum length of a frame whose payload is handed to the application as a view over the frame instead of being
+     * copied, can be overridden with the {@code rmpi.zerocopy.threshold} system property; such frames are read in a
+     * dedicated buffer instead of a pooled one
+     */
+    static final int ZERO_COPY_THRESHOLD = Integer.getInteger("rmpi.zerocopy.threshold", 64 * 1024);
+
+    /**
+     * Maximum length of a received frame, a longer length prefix is considered corrupt; can be overridden with the
+     * {@code rmpi.frame.max} system property
+     */
+    static final int MAX_FRAME_LENGTH = Integer.getInteger("rmpi.frame.max", 64 * 1024 * 1024);
+
     /**
      * Timer used to schedule the discovery messages
      */
-    private Timer timer;
+    private ScheduledExecutorService timer;
+
+    /**
+     * Guards the creation of the connections, a lock instead of a monitor since connecting blocks on the network
+     */
+    private final ReentrantLock connectionLock = new ReentrantLock();
 
     /**
      *
@@ -95,7 +151,7 @@ public class CommunicationLayer {
     /**
      * List of all connected clients
      */
-    private final Map<UUID, ClientHandler> connectedClients = new HashMap<>();
+    private final Map<UUID, ClientHandler> connectedClients = new ConcurrentHashMap<>();
 
     /**
      * Buffer of messages to be sent to the upper Reliability layer
@@ -112,9 +168,31 @@ public class CommunicationLayer {
      */
     private final int broadcastInterval;
 
-    private CommunicationLayer(int port, int broadcastInterval, ViewManagerBuilder managerBuilder) {
+    /**
+     * Transport used for the TCP connections with the other devices
+     */
+    private final TransportType transport;
+
+    /**
+     * Selector based transport, only present when {@link TransportType#NIO} is selected
+     */
+    private NioTransport nioTransport;
+
+    /**
+     * Wire format proposed on every new connection
+     */
+    private final WireFormat wireFormat = WIRE_FORMAT;
+
+    /**
+     * Buffers used by all the connections to read the incoming frames
+     */
+    private final FrameBufferPool framePool = new FrameBufferPool();
+
+    private CommunicationLayer(int port, int broadcastInterval, TransportType transport,
+                               ViewManagerBuilder managerBuilder) {
         this.port = port;
         this.broadcastInterval = broadcastInterval;
+        this.transport = transport;
         managerBuilder.setCommunicationLayer(this);
         this.viewManager = managerBuilder.create();
         init();
@@ -124,7 +202,7 @@ public class CommunicationLayer {
      * Construct the protocol with default configuration
      */
     public static CommunicationLayer defaultConfiguration(ViewManagerBuilder managerBuilder) {
-        return new CommunicationLayer(DEFAULT_PORT, BROADCAST_INTERVAL, managerBuilder);
+        return new CommunicationLayer(DEFAULT_PORT, BROADCAST_INTERVAL, TRANSPORT, managerBuilder);
     }
 
     /**
@@ -134,7 +212,19 @@ public class CommunicationLayer {
      * @param broadcastInterval the interval between discovery messages
      */
     public static CommunicationLayer customConfiguration(int port, int broadcastInterval, ViewManagerBuilder managerBuilder) {
-        return new CommunicationLayer(port, broadcastInterval, managerBuilder);
+        return new CommunicationLayer(port, broadcastInterval, TRANSPORT, managerBuilder);
+    }
+
+    /**
+     * Construct the protocol with personalized network configurations and transport
+     *
+     * @param port              the port used for communication
+     * @param broadcastInterval the interval between discovery messages
+     * @param transport         the transport used for the TCP connections
+     */
+    public static CommunicationLayer customConfiguration(int port, int broadcastInterval, TransportType transport,
+                                                         ViewManagerBuilder managerBuilder) {
+        return new CommunicationLayer(port, broadcastInterval, transport, managerBuilder);
     }
 
     /**
@@ -148,10 +238,94 @@ public class CommunicationLayer {
     }
 
     /**
-     * Deserialize and convert a message from bytes, assuming {@code UTF-8} encoding
+     * Serialize and convert a message into bytes using the given wire format
+     *
+     * @param message    the message to convert
+     * @param wireFormat the format to use, JSON if null
+     * @return the encoded frame
+     */
+    static byte[] encodeMessage(BasicMessage message, WireFormat wireFormat) {
+        return wireFormat == WireFormat.BINARY ? BinaryMessageCodec.encode(message) : encodeMessage(message);
+    }
+
+    /**
+     * Encode a message into a frame ready to be written on a connection; binary messages are encoded directly after
+     * the length prefix, without copying them
+     *
+     * @param message    the message to convert
+     * @param wireFormat the format to use, JSON if null
+     * @param ack        whether the message is an ACK
+     * @return the encoded frame
+     */
+    static EncodedFrame encodeFrame(BasicMessage message, WireFormat wireFormat, boolean ack) {
+        if (wireFormat == WireFormat.BINARY) return EncodedFrame.of(BinaryMessageCodec.encodeFrame(message), ack);
+        return EncodedFrame.of(encodeMessage(message), ack);
+    }
+
+    /**
+     * Deserialize and convert a message from bytes, recognizing its wire format; JSON frames assume {@code UTF-8}
+     * encoding
      **/
-    private static BasicMessage decodeMessage(byte[] payload, int length) {
-        return gson.fromJson(new String(payload, 0, length, StandardCharsets.UTF_8), BasicMessage.class);
+    static BasicMessage decodeMessage(byte[] payload, int length) {
+        return decodeMessage(ByteBuffer.wrap(payload, 0, length));
+    }
+
+    /**
+     * Deserialize a message from the remaining bytes of a buffer, recognizing its wire format, without copying the
+     * frame; the decoded message doesn't reference the buffer, which can be reused afterward
+     *
+     * @param frame a heap buffer containing the frame between its position and its limit
+     * @return the decoded message
+     */
+    static BasicMessage decodeMessage(ByteBuffer frame) {
+        return decodeMessage(frame, false);
+    }
+
+    /**
+     * Deserialize a message from the remaining bytes of a buffer, recognizing its wire format
+     *
+     * @param frame       a heap buffer containing the frame between its position and its limit
+     * @param shareBuffer whether the payloads of binary messages can be views over the buffer, which then must not be
+     *                    reused
+     * @return the decoded message
+     */
+    static BasicMessage decodeMessage(ByteBuffer frame, boolean shareBuffer) {
+        if (frame.hasRemaining() && WireFormat.of(frame.get(frame.position())) == WireFormat.BINARY)
+            return BinaryMessageCodec.decode(frame, shareBuffer);
+        return gson.fromJson(new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(),
+                StandardCharsets.UTF_8), BasicMessage.class);
+    }
+
+    /**
+     * Get a buffer to read a frame into: frames of at least {@link #ZERO_COPY_THRESHOLD} bytes get a dedicated buffer,
+     * since their payload will be a view over it, the others a pooled one
+     *
+     * @param length the length of the frame
+     * @param pool   the pool of the buffers
+     * @return a heap buffer with position 0 and the length as limit
+     * @throws IOException if the length is negative or longer than {@link #MAX_FRAME_LENGTH}, i.e. the stream is
+     *                     corrupt
+     */
+    static ByteBuffer acquireFrame(int length, FrameBufferPool pool) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) throw new IOException("Invalid frame length " + length);
+        return length >= ZERO_COPY_THRESHOLD ? ByteBuffer.allocate(length) : pool.acquire(length);
+    }
+
+    /**
+     * Decode a frame obtained from {@link #acquireFrame(int, FrameBufferPool)} and give its buffer back to the pool
+     * unless the decoded message keeps a view over it
+     *
+     * @param frame the buffer containing the frame between its position and its limit
+     * @param pool  the pool of the buffers
+     * @return the decoded message
+     */
+    static BasicMessage decodeFrame(ByteBuffer frame, FrameBufferPool pool) {
+        boolean shared = frame.remaining() >= ZERO_COPY_THRESHOLD;
+        try {
+            return decodeMessage(frame, shared);
+        } finally {
+            if (!shared) pool.release(frame);
+        }
     }
 
     /**
@@ -159,8 +333,17 @@ public class CommunicationLayer {
      * connections
      */
     void init() {
-        new Thread(this::startDiscoveryListener, "Discovery Listener").start();
-        new Thread(this::startServerListener, "Server Listener").start();
+        Threads.start("Discovery Listener", this::startDiscoveryListener);
+        if (transport == TransportType.NIO) {
+            nioTransport = new NioTransport(this, port, IO_THREADS);
+            try {
+                nioTransport.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            Threads.start("Server Listener", this::startServerListener);
+        }
     }
 
     /**
@@ -169,12 +352,19 @@ public class CommunicationLayer {
      * @param address the address of the device to connect to
      * @param newUUID the UUID of the device to connect to
      */
-    synchronized public void initConnection(InetAddress address, UUID newUUID) {
+    public void initConnection(InetAddress address, UUID newUUID) {
+        connectionLock.lock();
         try {
-            Socket socket = new Socket(address, port);
-            addClient(newUUID, socket);
+            if (transport == TransportType.NIO) {
+                addClient(nioTransport.connect(address, newUUID));
+            } else {
+                Socket socket = new Socket(address, port);
+                addClient(newUUID, socket);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            connectionLock.unlock();
         }
     }
 
@@ -182,7 +372,7 @@ public class CommunicationLayer {
      * Stop the task that send discovery messages
      */
     public void stopDiscoverySender() {
-        timer.cancel();
+        timer.shutdownNow();
         timer = null;
     }
 
@@ -191,18 +381,31 @@ public class CommunicationLayer {
      * received from this socket a connection with the associated device is established.
      */
     private void startServerListener() {
-        byte[] buffer;
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket socket = serverSocket.accept();
-                DataInputStream in = new DataInputStream(socket.getInputStream());
-                int length = in.readInt();
-                buffer = new byte[length];
-                in.read(buffer);
-                DataMessage message = (DataMessage) decodeMessage(buffer, length);
-                upBuffer.add(message);
-                addClient(message.senderUID, socket);
-                logger.debug("Received connection with " + socket.getInetAddress().getHostAddress());
+                try {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    int length = in.readInt();
+                    ByteBuffer buffer = acquireFrame(length, framePool);
+                    try {
+                        in.readFully(buffer.array(), buffer.arrayOffset(), length);
+                    } catch (IOException e) {
+                        framePool.release(buffer);
+                        throw e;
+                    }
+                    WireFormat received = length > 0 ? WireFormat.of(buffer.get(0)) : null;
+                    DataMessage message = (DataMessage) decodeFrame(buffer, framePool);
+                    upBuffer.add(message);
+                    addClient(message.senderUID, socket);
+                    if (received != null) connectedClients.get(message.senderUID).negotiateWireFormat(received);
+                    logger.debug("Received connection with " + socket.getInetAddress().getHostAddress());
+                } catch (IOException | RuntimeException e) {
+                    // a connection with a corrupt first frame is dropped, the listener keeps accepting the others
+                    logger.error("Rejected connection from " + socket.getInetAddress().getHostAddress() + ": " +
+                            e.getMessage());
+                    socket.close();
+                }
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -222,7 +425,8 @@ public class CommunicationLayer {
             while (true) {
                 DatagramPacket packet = new DatagramPacket(receiveData, receiveData.length);
                 datagramSocket.receive(packet);
-                DiscoveryMessage message = (DiscoveryMessage) decodeMessage(packet.getData(), packet.getLength());
+                DiscoveryMessage message = (DiscoveryMessage) decodeMessage(
+                        ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
                 viewManager.handleNewHost(message.senderUID, message.random, packet.getAddress());
             }
         } catch (IOException e) {
@@ -237,33 +441,66 @@ public class CommunicationLayer {
      * @param senderUID the senderUID of the device to connect to
      * @param socket    the socket used to communicate with the device
      */
-    synchronized public void addClient(UUID senderUID, Socket socket) {
+    public void addClient(UUID senderUID, Socket socket) {
+        connectionLock.lock();
         try {
             ClientHandler clientHandler = new ClientHandler(senderUID, socket, this);
-            connectedClients.put(senderUID, clientHandler);
-            new Thread(clientHandler).start();
-            if (!isConnected) isConnected = !isConnected;
-            latch.countDown();
-            logger.info("Create client handler with " + socket.getInetAddress().getHostAddress());
+            addClient(clientHandler);
+            Threads.start("ClientHandler:" + senderUID, clientHandler);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    /**
+     * Register an already connected client handler, marking this layer as connected
+     *
+     * @param clientHandler the client handler of the new device
+     */
+    void addClient(ClientHandler clientHandler) {
+        connectionLock.lock();
+        try {
+            connectedClients.put(clientHandler.getClientUID(), clientHandler);
+            if (!isConnected) isConnected = !isConnected;
+            latch.countDown();
+            logger.info("Create client handler with " + clientHandler.getHostAddress());
+        } finally {
+            connectionLock.unlock();
         }
     }
 
     /**
      * Send a message to a specific client, used to send an ACK message after a DATA message or to resend a DATA message
-     * to a specific client.
+     * to a specific client. The message is only queued, the caller doesn't wait for the client to receive it.
      *
      * @param destinationClientID the client to which the message is sent
      * @param message  the message to be sent
      */
-    synchronized public void sendMessage(UUID destinationClientID, ReliabilityMessage message) {
+    public void sendMessage(UUID destinationClientID, ReliabilityMessage message) {
         ClientHandler clientHandler = connectedClients.get(destinationClientID);
         if (clientHandler != null) {
             if(!destinationClientID.equals(viewManager.getClientUID()))
-                clientHandler.sendMessage(encodeMessage(new DataMessage(LocalDateTime.now(),
-                        viewManager.getClientUID(), message)));
+                clientHandler.sendFrame(encodeFrame(new DataMessage(LocalDateTime.now(),
+                        viewManager.getClientUID(), message), clientHandler.getWireFormat(),
+                        message.messageType.isAck()));
+        }
+    }
+
+    /**
+     * Send the same message to a group of clients, encoding it only once for each wire format in use
+     *
+     * @param destinationClientIDs the clients to which the message is sent
+     * @param message              the message to be sent
+     */
+    public void sendMessage(List<UUID> destinationClientIDs, ReliabilityMessage message) {
+        List<ClientHandler> clientHandlers = new ArrayList<>(destinationClientIDs.size());
+        for (UUID destinationClientID : destinationClientIDs) {
+            ClientHandler clientHandler = connectedClients.get(destinationClientID);
+            if (clientHandler != null) clientHandlers.add(clientHandler);
         }
+        multicast(clientHandlers, message);
     }
 
     /**
@@ -271,14 +508,28 @@ public class CommunicationLayer {
      *
      * @param message the message to be sent
      */
-    synchronized public void sendMessageBroadcast(ReliabilityMessage message) {
-        for (ClientHandler clientHandler : connectedClients.values()) {
-            if(!clientHandler.getClientUID().equals(viewManager.getClientUID()))
-                clientHandler.sendMessage(encodeMessage(new DataMessage(LocalDateTime.now(),
-                        viewManager.getClientUID(), message)));
+    public void sendMessageBroadcast(ReliabilityMessage message) {
+        multicast(connectedClients.values(), message);
+    }
+
+    /**
+     * Wrap the message in a single {@link DataMessage} and write it to every client handler; the frame is encoded once
+     * for each wire format and shared between the handlers using it
+     *
+     * @param clientHandlers the handlers of the destination clients
+     * @param message        the message to be sent
+     */
+    private void multicast(Collection<ClientHandler> clientHandlers, ReliabilityMessage message) {
+        DataMessage dataMessage = new DataMessage(LocalDateTime.now(), viewManager.getClientUID(), message);
+        Map<WireFormat, EncodedFrame> frames = new EnumMap<>(WireFormat.class);
+        for (ClientHandler clientHandler : clientHandlers) {
+            if (!clientHandler.getClientUID().equals(viewManager.getClientUID()))
+                clientHandler.sendFrame(frames.computeIfAbsent(clientHandler.getWireFormat(),
+                        wireFormat -> encodeFrame(dataMessage, wireFormat, message.messageType.isAck())));
         }
     }
-    private final class DiscoverySender extends TimerTask {
+
+    private final class DiscoverySender implements Runnable {
         private final DatagramSocket broadcastSocket;
         private final int random;
         private final UUID id;
@@ -323,13 +574,32 @@ public class CommunicationLayer {
     }
 
     public void disconnectClient(UUID clientUID) {
-        if(connectedClients.containsKey(clientUID)){
-            connectedClients.get(clientUID).close();
-            connectedClients.remove(clientUID);
+        ClientHandler clientHandler = connectedClients.remove(clientUID);
+        if (clientHandler != null) {
+            clientHandler.close();
             viewManager.handleDisconnection(clientUID);
         }
     }
 
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public int getOutboundCapacity() {
+        return OUTBOUND_CAPACITY;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return OVERFLOW_POLICY;
+    }
+
+    /**
+     * @return the pool of the buffers used to read the incoming frames, with its hit/miss statistics
+     */
+    public FrameBufferPool getFramePool() {
+        return framePool;
+    }
+
     public boolean isConnected() {
         return isConnected;
     }
@@ -0,0 +1,95 @@
+package it.polimi.ds.lib.communication;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable frame ready to be written on a connection: the 4 bytes length prefix followed by the encoded message.
+ * <p>The same instance can be shared by all the {@link ClientHandler}s a message is sent to, so a broadcast is encoded
+ * only once.</p>
+ */
+public final class EncodedFrame {
+    private final byte[] bytes;
+
+    private final int offset;
+
+    private final int length;
+
+    /**
+     * Whether the frame carries an ACK, which can be discarded by {@link OverflowPolicy#DROP_OLDEST_ACK}
+     */
+    private final boolean ack;
+
+    private EncodedFrame(byte[] bytes, int offset, int length, boolean ack) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.ack = ack;
+    }
+
+    /**
+     * Build the frame of an encoded message
+     *
+     * @param payload the encoded message
+     * @return the frame containing the length prefix and the payload
+     */
+    public static EncodedFrame of(byte[] payload) {
+        return of(payload, false);
+    }
+
+    /**
+     * Build the frame of an encoded message
+     *
+     * @param payload the encoded message
+     * @param ack     whether the message is an ACK
+     * @return the frame containing the length prefix and the payload
+     */
+    public static EncodedFrame of(byte[] payload, boolean ack) {
+        return new EncodedFrame(ByteBuffer.allocate(Integer.BYTES + payload.length)
+                .putInt(payload.length)
+                .put(payload)
+                .array(), 0, Integer.BYTES + payload.length, ack);
+    }
+
+    /**
+     * Wrap a frame that already contains the length prefix, without copying it
+     *
+     * @param frame a heap buffer containing the length prefix and the encoded message between its position and its
+     *              limit, it must not be modified afterward
+     * @param ack   whether the message is an ACK
+     * @return the frame
+     */
+    static EncodedFrame of(ByteBuffer frame, boolean ack) {
+        return new EncodedFrame(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), ack);
+    }
+
+    /**
+     * @return a new read-only view of the frame, with its own position
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the whole frame on the stream
+     *
+     * @param outputStream the stream of the connection
+     * @throws IOException if the stream can't be written
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes, offset, length);
+    }
+
+    public boolean isAck() {
+        return ack;
+    }
+
+    /**
+     * @return the size of the frame in bytes, including the length prefix
+     */
+    public int size() {
+        return length;
+    }
+}
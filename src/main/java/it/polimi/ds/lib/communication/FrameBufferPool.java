@@ -0,0 +1,120 @@
+package it.polimi.ds.lib.communication;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable buffers used to read the incoming frames, so that receiving a message doesn't allocate a new array
+ * for each frame. Buffers are grouped by length class, each class holding buffers of a power of two size between
+ * {@link #MIN_SIZE} and {@link #MAX_SIZE}; a request is served by the smallest class that fits it, bigger frames are
+ * allocated on demand and never pooled.
+ * <p>Buffers are heap buffers so that the decoders can work directly on their backing array. The decoded messages
+ * never reference the buffer, which can be released as soon as the frame has been decoded.</p>
+ */
+public class FrameBufferPool {
+    /**
+     * Size of the smallest length class
+     */
+    static final int MIN_SIZE = 256;
+
+    /**
+     * Size of the biggest length class
+     */
+    static final int MAX_SIZE = 1024 * 1024;
+
+    /**
+     * Maximum number of idle buffers kept for each length class
+     */
+    private static final int MAX_IDLE = 32;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    @SuppressWarnings("unchecked")
+    private final Queue<ByteBuffer>[] idle = (Queue<ByteBuffer>[]) new Queue<?>[CLASSES];
+
+    /**
+     * Number of idle buffers of each class, kept apart since the size of the queues is not constant time
+     */
+    private final AtomicIntegerArray idleCount = new AtomicIntegerArray(CLASSES);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public FrameBufferPool() {
+        for (int i = 0; i < CLASSES; i++)
+            idle[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Get a buffer able to hold a frame, its position is 0 and its limit is the requested length
+     *
+     * @param length the length of the frame
+     * @return a pooled buffer if one of the right class is available, a new buffer otherwise
+     */
+    public ByteBuffer acquire(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0) {
+            misses.increment();
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = idle[sizeClass].poll();
+        if (buffer == null) {
+            misses.increment();
+            buffer = ByteBuffer.allocate(MIN_SIZE << sizeClass);
+        } else {
+            idleCount.decrementAndGet(sizeClass);
+            hits.increment();
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer obtained from {@link #acquire(int)}, the buffer must not be used afterward
+     *
+     * @param buffer the buffer to release
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        // buffers allocated for frames bigger than the biggest class are left to the garbage collector
+        if (sizeClass < 0 || MIN_SIZE << sizeClass != capacity) return;
+        if (idleCount.incrementAndGet(sizeClass) > MAX_IDLE) {
+            idleCount.decrementAndGet(sizeClass);
+            return;
+        }
+        idle[sizeClass].add(buffer);
+    }
+
+    /**
+     * @return the number of requests served with a pooled buffer
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of requests that required a new buffer
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the index of the smallest class that can hold the length, -1 if the length exceeds the biggest class
+     */
+    private static int sizeClass(int length) {
+        if (length > MAX_SIZE) return -1;
+        if (length <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return "FrameBufferPool{hits=" + getHits() + ", misses=" + getMisses() + "}";
+    }
+}
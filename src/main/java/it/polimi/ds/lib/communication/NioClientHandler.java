@@ -0,0 +1,46 @@
+package it.polimi.ds.lib.communication;
+
+import java.util.UUID;
+
+/**
+ * Client handler of a connection served by the {@link NioTransport}: it doesn't own any thread, reads are done by the
+ * selector loop of its connection and writes are queued to it
+ */
+public class NioClientHandler extends ClientHandler {
+    private final NioTransport.Connection connection;
+
+    NioClientHandler(UUID clientUID, NioTransport.Connection connection, CommunicationLayer messageHandler) {
+        super(clientUID, messageHandler);
+        this.connection = connection;
+    }
+
+    /**
+     * Nothing to start, the connection is already registered on a selector
+     */
+    @Override
+    public void run() {
+    }
+
+    /**
+     * ask the selector loop to write the queued frames
+     */
+    @Override
+    protected void frameQueued() {
+        connection.scheduleWrite();
+    }
+
+    @Override
+    public void close() {
+        outboundQueue.close();
+        connection.close();
+    }
+
+    OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    @Override
+    String getHostAddress() {
+        return connection.getHostAddress();
+    }
+}
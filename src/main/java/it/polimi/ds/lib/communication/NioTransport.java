@@ -0,0 +1,350 @@
+package it.polimi.ds.lib.communication;
+
+import it.polimi.ds.lib.communication.message.BasicMessage;
+import it.polimi.ds.lib.utils.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based transport used by the {@link CommunicationLayer} when configured with {@link TransportType#NIO}.
+ * <p>Instead of two blocking threads for each connected device, every {@link SocketChannel} is registered on one of a
+ * small fixed pool of {@link IoLoop}s, each one owning a {@link Selector}. Frames keep the same format of the blocking
+ * transport (a 4 bytes length followed by the encoded message) and are handed to the upBuffer of the
+ * {@link CommunicationLayer} as soon as they are complete.</p>
+ */
+public class NioTransport {
+    private final static Logger logger = LogManager.getLogger(NioTransport.class);
+
+    /**
+     * Size of the buffer used by each connection to read from its channel
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Size in bytes of the length prefix of each frame
+     */
+    private static final int HEADER_SIZE = Integer.BYTES;
+
+    /**
+     * Maximum number of bytes of queued frames passed to a single gathering write
+     */
+    private static final int GATHER_BYTES = 256 * 1024;
+
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private final CommunicationLayer messageHandler;
+
+    /**
+     * Port used to accept connections and to connect to other devices
+     */
+    private final int port;
+
+    /**
+     * The selector threads, connections are assigned to them in round-robin
+     */
+    private final IoLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    NioTransport(CommunicationLayer messageHandler, int port, int ioThreads) {
+        if (ioThreads < 1) throw new IllegalArgumentException("At least one I/O thread is required");
+        this.messageHandler = messageHandler;
+        this.port = port;
+        this.loops = new IoLoop[ioThreads];
+    }
+
+    /**
+     * Open the server channel and start the selector threads; the first loop is also responsible for accepting the
+     * incoming connections
+     *
+     * @throws IOException if the server channel cannot be bound to the port
+     */
+    void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+            Threads.start("NIO Loop-" + i, loops[i]);
+        }
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Open a TCP connection with the device identified by the address and the UUID
+     *
+     * @param address   the address of the device to connect to
+     * @param clientUID the UUID of the device to connect to
+     * @return the client handler of the new connection, already registered on a selector
+     * @throws IOException if the connection cannot be established
+     */
+    NioClientHandler connect(InetAddress address, UUID clientUID) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+        Connection connection = new Connection(channel, nextLoop());
+        NioClientHandler clientHandler = new NioClientHandler(clientUID, connection, messageHandler);
+        connection.clientHandler = clientHandler;
+        connection.register();
+        return clientHandler;
+    }
+
+    private IoLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            new Connection(channel, nextLoop()).register();
+        }
+    }
+
+    /**
+     * A selector thread: it runs the tasks submitted by other threads (registrations and write requests) and serves
+     * the ready keys of its channels
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Schedule a task to be run by this loop, waking up the selector
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // a task of a single connection must not stop the loop shared with the other ones
+                            logger.error("Error in selector task: " + e.getMessage());
+                        }
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        try {
+                            if (!key.isValid()) continue;
+                            if (key.isAcceptable()) {
+                                accept((ServerSocketChannel) key.channel());
+                                continue;
+                            }
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.write();
+                        } catch (RuntimeException e) {
+                            // e.g. the key cancelled by a connection closed by another thread
+                            if (key.attachment() instanceof Connection connection) connection.fail(e);
+                            else logger.error("Error in selector loop: " + e.getMessage());
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("Error in selector loop: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a single TCP connection: the partial frame being read and the frames being written
+     */
+    final class Connection {
+        private final SocketChannel channel;
+
+        private final IoLoop loop;
+
+        private SelectionKey key;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        /**
+         * Body of the frame currently being read, null while waiting for the next length prefix
+         */
+        private ByteBuffer frame;
+
+        /**
+         * Frames taken from the outbound queue of the client handler and not completely written yet
+         */
+        private ByteBuffer[] inFlight = NO_BUFFERS;
+
+        /**
+         * Whether a write has already been requested to the loop, so that a burst of sends wakes it up only once
+         */
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        /**
+         * The client handler of this connection, null for an accepted connection until its first frame is received
+         */
+        private volatile NioClientHandler clientHandler;
+
+        private Connection(SocketChannel channel, IoLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        private void register() {
+            loop.execute(() -> {
+                try {
+                    key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                } catch (ClosedChannelException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        /**
+         * Ask the loop to write the queued frames as soon as the channel is writable
+         */
+        void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) loop.execute(this::enableWrite);
+        }
+
+        private void enableWrite() {
+            try {
+                if (key != null && key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                fail(e);
+            }
+        }
+
+        private void read() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read == -1) throw new ClosedChannelException();
+                readBuffer.flip();
+                while (true) {
+                    if (frame == null) {
+                        if (readBuffer.remaining() < HEADER_SIZE) break;
+                        int length = readBuffer.getInt();
+                        frame = CommunicationLayer.acquireFrame(length, messageHandler.getFramePool());
+                    }
+                    int chunk = Math.min(frame.remaining(), readBuffer.remaining());
+                    frame.put(readBuffer.slice(readBuffer.position(), chunk));
+                    readBuffer.position(readBuffer.position() + chunk);
+                    if (frame.hasRemaining()) break;
+                    ByteBuffer complete = frame;
+                    frame = null;
+                    deliver(complete.flip());
+                }
+                readBuffer.compact();
+            } catch (IOException | RuntimeException e) {
+                // a malformed frame must not stop the loop shared with the other connections
+                fail(e);
+            }
+        }
+
+        private void deliver(ByteBuffer payload) {
+            WireFormat received = payload.hasRemaining() ? WireFormat.of(payload.get(0)) : null;
+            // the buffer goes back to the pool once decoded, unless the message keeps a view over it
+            BasicMessage message = CommunicationLayer.decodeFrame(payload, messageHandler.getFramePool());
+            messageHandler.getUpBuffer().add(message);
+            if (clientHandler == null) {
+                clientHandler = new NioClientHandler(message.senderUID, this, messageHandler);
+                messageHandler.addClient(clientHandler);
+                logger.debug("Received connection with " + channel.socket().getInetAddress().getHostAddress());
+            }
+            if (received != null) clientHandler.negotiateWireFormat(received);
+        }
+
+        /**
+         * Write the queued frames with gathering writes until the queue is empty or the channel is full
+         */
+        private void write() {
+            try {
+                while (true) {
+                    if (inFlight.length == 0 || !inFlight[inFlight.length - 1].hasRemaining()) {
+                        inFlight = nextBatch();
+                        if (inFlight.length == 0) {
+                            writeScheduled.set(false);
+                            // a frame queued after the batch was taken may have found the write still scheduled
+                            if (clientHandler.getOutboundQueue().isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                                key.interestOps(SelectionKey.OP_READ);
+                                return;
+                            }
+                            continue;
+                        }
+                    }
+                    channel.write(inFlight);
+                    if (inFlight[inFlight.length - 1].hasRemaining()) return;
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private ByteBuffer[] nextBatch() {
+            if (clientHandler == null) return NO_BUFFERS;
+            List<EncodedFrame> frames = clientHandler.getOutboundQueue().poll(GATHER_BYTES);
+            ByteBuffer[] buffers = new ByteBuffer[frames.size()];
+            for (int i = 0; i < buffers.length; i++)
+                buffers[i] = frames.get(i).buffer();
+            return buffers;
+        }
+
+        /**
+         * Close the connection and notify the disconnection on a separate thread, since handling it may wait for
+         * messages that are read by this same loop
+         */
+        private void fail(Exception e) {
+            if (closed.get()) return;
+            logger.error("couldn't read/write " + e.getMessage());
+            close();
+            NioClientHandler handler = clientHandler;
+            if (handler != null)
+                Threads.start("ClientHandler:" + handler.getClientUID(),
+                        () -> messageHandler.disconnectClient(handler.getClientUID()));
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                logger.error("couldn't close " + e.getMessage());
+            }
+        }
+
+        String getHostAddress() {
+            return channel.socket().getInetAddress().getHostAddress();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package it.polimi.ds.lib.communication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the frames waiting to be written to a single client.
+ * <p>Senders only pay for an enqueue, while the writer of the connection drains many frames at once to coalesce them
+ * in a single write. When the queue is full the {@link OverflowPolicy} decides whether the sender waits, an old ACK is
+ * discarded or the client is disconnected.</p>
+ */
+public class OutboundQueue {
+    private final ArrayDeque<EncodedFrame> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed = false;
+
+    public OutboundQueue(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Add a frame to the queue, applying the overflow policy if the queue is full
+     *
+     * @param frame the frame to be written
+     * @return false if the client must be disconnected, true otherwise (also when the queue is closed and the frame
+     * is discarded)
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public boolean offer(EncodedFrame frame) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && frames.size() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.DISCONNECT) return false;
+                if (overflowPolicy != OverflowPolicy.DROP_OLDEST_ACK || !dropOldestAck()) notFull.await();
+            }
+            if (closed) return true;
+            frames.add(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean dropOldestAck() {
+        Iterator<EncodedFrame> iterator = frames.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isAck()) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for at least one frame and remove as many frames as fit in the given size
+     *
+     * @param maxBytes the maximum size of the batch, a single bigger frame is returned alone
+     * @return the frames to be written in order, empty if the queue has been closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<EncodedFrame> take(int maxBytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && frames.isEmpty()) notEmpty.await();
+            return drain(maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove as many frames as fit in the given size without waiting
+     *
+     * @param maxBytes the maximum size of the batch, a single bigger frame is returned alone
+     * @return the frames to be written in order, possibly empty
+     */
+    public List<EncodedFrame> poll(int maxBytes) {
+        lock.lock();
+        try {
+            return drain(maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<EncodedFrame> drain(int maxBytes) {
+        List<EncodedFrame> batch = new ArrayList<>();
+        int size = 0;
+        while (!frames.isEmpty() && (batch.isEmpty() || size + frames.peek().size() <= maxBytes)) {
+            EncodedFrame frame = frames.poll();
+            size += frame.size();
+            batch.add(frame);
+        }
+        if (!batch.isEmpty()) notFull.signalAll();
+        return batch;
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard the queued frames and wake up the waiting senders and writer
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package it.polimi.ds.lib.communication;
+
+/**
+ * This enum is used to choose what happens when a message is sent to a client whose outbound queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * The sender waits until the writer of the client frees some space
+     */
+    BLOCK,
+    /**
+     * The oldest queued ACK is discarded to make room, the sender of the acknowledged message will resend it and
+     * receive a new ACK; if no ACK is queued the sender waits as with {@link #BLOCK}
+     */
+    DROP_OLDEST_ACK,
+    /**
+     * The client is considered too slow and is disconnected
+     */
+    DISCONNECT
+}
@@ -0,0 +1,15 @@
+package it.polimi.ds.lib.communication;
+
+/**
+ * This enum is used to select how the {@link CommunicationLayer} handles the TCP connections with the other devices
+ */
+public enum TransportType {
+    /**
+     * Each connected device is served by a {@link ClientHandler} with its own blocking reader thread
+     */
+    BLOCKING,
+    /**
+     * All the connected devices are multiplexed on a small fixed pool of selector threads by the {@link NioTransport}
+     */
+    NIO
+}
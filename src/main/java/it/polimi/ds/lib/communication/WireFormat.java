@@ -0,0 +1,38 @@
+package it.polimi.ds.lib.communication;
+
+import it.polimi.ds.lib.utils.BinaryMessageCodec;
+
+/**
+ * This enum is used to identify the encoding of the frames exchanged on a connection.
+ * <p>The format of a frame is recognized by its first byte, so both formats can always be decoded; each connection
+ * uses {@link #BINARY} only if both devices prefer it and falls back to {@link #JSON} as soon as the other device sends
+ * a JSON frame.</p>
+ */
+public enum WireFormat {
+    /**
+     * Gson serialization, readable and useful for debugging
+     */
+    JSON,
+    /**
+     * Compact encoding of the {@link BinaryMessageCodec}
+     */
+    BINARY;
+
+    /**
+     * Recognize the format of a frame
+     *
+     * @param firstByte the first byte of the encoded frame
+     * @return the format used to encode the frame
+     */
+    public static WireFormat of(byte firstByte) {
+        return firstByte == BinaryMessageCodec.MAGIC ? BINARY : JSON;
+    }
+
+    /**
+     * @param received the format of a frame received on a connection currently using this format
+     * @return the format the connection should use from now on
+     */
+    WireFormat negotiate(WireFormat received) {
+        return this == BINARY && received == BINARY ? BINARY : JSON;
+    }
+}
@@ -1,91 +1,258 @@
 package it.polimi.ds.lib.reliability;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Tracks which hosts have acknowledged each message. Every host is mapped to a small integer slot, kept for the
+ * lifetime of the map so that a message state read before a view change never meets a different numbering, and each
+ * message keeps the slots it waits for and the slots that acknowledged it as bitsets, plus a counter of the missing
+ * ACKs so that {@link #isComplete(UUID)} is O(1).
+ * <p>All the operations are safe to call concurrently from the thread reading the messages and from the
+ * retransmission scheduler, ACKs are set with compare-and-set on the bitsets without locking.</p>
+ */
 public class AcknowledgeMap {
-    final Map<UUID, MessageState> ackMap = new HashMap<>();
+    final Map<UUID, MessageState> ackMap = new ConcurrentHashMap<>();
+
+    /**
+     * Slot of each host seen so far, never reassigned
+     */
+    private final Map<UUID, Integer> slots = new ConcurrentHashMap<>();
+
+    /**
+     * Host of each slot, the inverse of {@link #slots}; only grows, so it covers the slots of every message state
+     */
+    private volatile UUID[] hosts = new UUID[0];
+
+    /**
+     * Guards the creation of the slots and the waits for the map to be empty
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition emptyCondition = lock.newCondition();
+
+    /**
+     * Estimator fed with the round trips of the messages sent by this host, may be null
+     */
+    private final RttEstimator rttEstimator;
+
+    public AcknowledgeMap() {
+        this(null);
+    }
+
+    public AcknowledgeMap(RttEstimator rttEstimator) {
+        this.rttEstimator = rttEstimator;
+    }
 
     public void sendMessage(UUID messageId, List<UUID> recipients) {
-        ackMap.put(messageId, MessageState.ofMessage(recipients));
+        // an ACK may arrive before the message is registered, since it is registered after sending it
+        MessageState state = ackMap.computeIfAbsent(messageId, ignored -> MessageState.of(slotsOf(recipients)));
+        state.sentAt = System.nanoTime();
+        state.setMessageReceived();
+    }
+
+    /**
+     * Signal that a message has been sent again, so that its ACKs are no longer used to measure round trips
+     */
+    public void markRetransmitted(UUID messageId) {
+        MessageState state = ackMap.get(messageId);
+        if (state != null) state.sentAt = 0;
     }
 
     public void receiveMessage(UUID messageId, UUID senderId, List<UUID> recipients) {
-        if (isPresent(messageId)) {
-            ackMap.get(messageId).setMessageReceived();
-            ackMap.get(messageId).setAck(senderId);
-        } else {
-            ackMap.put(messageId, MessageState.ofMessage(recipients));
+        MessageState state = ackMap.get(messageId);
+        if (state == null) {
+            state = MessageState.of(slotsOf(recipients));
+            MessageState previous = ackMap.putIfAbsent(messageId, state);
+            if (previous == null) {
+                state.setMessageReceived();
+                return;
+            }
+            state = previous;
         }
+        state.setMessageReceived();
+        state.setAck(slotOf(senderId));
     }
 
-    private boolean isPresent(UUID messageId) {
-        return ackMap.containsKey(messageId);
+    public void receiveAck(UUID messageId, UUID ackHostId, List<UUID> recipients) {
+        MessageState state = ackMap.computeIfAbsent(messageId, ignored -> MessageState.of(slotsOf(recipients)));
+        long sentAt = state.sentAt;
+        if (state.setAck(slotOf(ackHostId)) && rttEstimator != null && sentAt != 0)
+            rttEstimator.sample(ackHostId, System.nanoTime() - sentAt);
     }
 
-    public void receiveAck(UUID messageId, UUID ackHostId, List<UUID> recipients) {
-        if (isPresent(messageId)) {
-            ackMap.get(messageId).setAck(ackHostId);
-        } else {
-            ackMap.put(messageId, MessageState.ofAck(ackHostId, recipients));
+    /**
+     * Apply a batch of acknowledgements sent by the same host
+     *
+     * @param messageIds the acknowledged messages
+     * @param ackHostId  the host that sent the acknowledgements
+     * @param recipients the recipients of the messages, used for the messages not seen yet
+     */
+    public void receiveAcks(List<UUID> messageIds, UUID ackHostId, List<UUID> recipients) {
+        for (UUID messageId : messageIds) {
+            receiveAck(messageId, ackHostId, recipients);
         }
     }
 
+    /**
+     * @return true if the message has been received, or sent, and acknowledged by all its recipients; false if the
+     * message is not tracked
+     */
     public boolean isComplete(UUID messageId) {
         MessageState state = ackMap.get(messageId);
-        return state.messageReceived && state.ackMap.values().stream().allMatch(Boolean.TRUE::equals);
+        return state != null && state.isComplete();
     }
 
+    /**
+     * @return the recipients that have not acknowledged the message yet, null if the message is not tracked, e.g.
+     * because it was removed once stable or cleared by a view change
+     */
     public List<UUID> missingAcks(UUID messageId) {
         MessageState state = ackMap.get(messageId);
-        return state.ackMap.entrySet().stream().filter(entry -> entry.getValue().equals(Boolean.FALSE)).map(Map.Entry::getKey).toList();
+        if (state == null) return null;
+        UUID[] hosts = this.hosts;
+        List<UUID> missing = new ArrayList<>();
+        for (int word = 0; word < state.expected.length; word++) {
+            long bits = state.expected[word] & ~state.acked.get(word);
+            while (bits != 0) {
+                missing.add(hosts[word * Long.SIZE + Long.numberOfTrailingZeros(bits)]);
+                bits &= bits - 1;
+            }
+        }
+        return missing;
     }
 
-    public synchronized void remove(UUID messageId) {
+    public void remove(UUID messageId) {
         ackMap.remove(messageId);
-        notify();
+        lock.lock();
+        try {
+            emptyCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void waitEmpty() throws InterruptedException {
-        while (!ackMap.isEmpty()) {
-            wait();
+    public void waitEmpty() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!ackMap.isEmpty()) {
+                emptyCondition.await();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void clear() {
-        ackMap.clear();
-        notify();
+    /**
+     * Forget all the messages, used when the view changes; the slots of the hosts are kept, a host that left only
+     * costs an unused bit
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            ackMap.clear();
+            emptyCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private static class MessageState {
-        private boolean messageReceived;
-        private final Map<UUID, Boolean> ackMap;
+    private int slotOf(UUID host) {
+        Integer slot = slots.get(host);
+        return slot != null ? slot : newSlot(host);
+    }
 
-        private MessageState(boolean messageReceived, Map<UUID, Boolean> ackMap) {
-            this.messageReceived = messageReceived;
-            this.ackMap = ackMap;
+    private int newSlot(UUID host) {
+        lock.lock();
+        try {
+            Integer slot = slots.get(host);
+            if (slot != null) return slot;
+            UUID[] newHosts = Arrays.copyOf(hosts, hosts.length + 1);
+            newHosts[hosts.length] = host;
+            // the host must be visible in the array before its slot can be used
+            hosts = newHosts;
+            slots.put(host, hosts.length - 1);
+            return hosts.length - 1;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    private long[] slotsOf(List<UUID> recipients) {
+        long[] bits = new long[0];
+        for (UUID recipient : recipients) {
+            int slot = slotOf(recipient);
+            if (slot / Long.SIZE >= bits.length) bits = Arrays.copyOf(bits, slot / Long.SIZE + 1);
+            bits[slot / Long.SIZE] |= 1L << slot;
+        }
+        return bits;
+    }
 
-        public static MessageState ofMessage(List<UUID> recipients) {
-            return new MessageState(true, recipients.stream().collect(Collectors.toMap(Function.identity(), ignored -> Boolean.FALSE)));
+    private static class MessageState {
+        private volatile boolean messageReceived;
+
+        /**
+         * Slots of the recipients that must acknowledge the message, never modified
+         */
+        private final long[] expected;
+
+        /**
+         * Slots of the expected recipients that have acknowledged the message
+         */
+        private final AtomicLongArray acked;
+
+        /**
+         * Number of expected recipients that have not acknowledged the message yet
+         */
+        private final AtomicInteger missing;
+
+        /**
+         * {@link System#nanoTime()} of the first transmission of a message sent by this host, 0 if the message was
+         * received or retransmitted
+         */
+        private volatile long sentAt;
+
+        private MessageState(long[] expected) {
+            this.expected = expected;
+            this.acked = new AtomicLongArray(expected.length);
+            int count = 0;
+            for (long word : expected) count += Long.bitCount(word);
+            this.missing = new AtomicInteger(count);
         }
 
-        public static MessageState ofAck(UUID senderUid, List<UUID> recipients) {
-            Map<UUID, Boolean> hashMap = recipients.stream().collect(Collectors.toMap(Function.identity(), ignored -> Boolean.FALSE));
-            hashMap.put(senderUid, Boolean.TRUE);
-            return new MessageState(false, hashMap);
+        public static MessageState of(long[] expected) {
+            return new MessageState(expected);
         }
 
-        public void setAck(UUID id) {
-            this.ackMap.put(id, Boolean.TRUE);
+        /**
+         * Set the ACK of a slot, the ACKs of hosts that are not recipients of the message are ignored
+         *
+         * @return true if the slot is a recipient that had not acknowledged the message yet
+         */
+        public boolean setAck(int slot) {
+            int word = slot / Long.SIZE;
+            long bit = 1L << slot;
+            if (word >= expected.length || (expected[word] & bit) == 0) return false;
+            long previous = acked.getAndAccumulate(word, bit, (value, mask) -> value | mask);
+            if ((previous & bit) != 0) return false;
+            missing.decrementAndGet();
+            return true;
         }
 
         public void setMessageReceived() {
             this.messageReceived = true;
         }
+
+        public boolean isComplete() {
+            return messageReceived && missing.get() == 0;
+        }
     }
 }
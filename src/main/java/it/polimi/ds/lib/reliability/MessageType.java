@@ -2,6 +2,37 @@ package it.polimi.ds.lib.reliability;
 
 public enum MessageType {
     DATA,
+    /**
+     * Carries many data messages sent together, see {@link ReliabilityMessage#messages}; it is acknowledged as a
+     * single message
+     */
+    DATA_BATCH,
     SINGLE,
-    ACK
+    ACK,
+    /**
+     * Acknowledges many messages at once, see {@link ReliabilityMessage#referenceMessageIDs}
+     */
+    ACK_BATCH,
+    /**
+     * Sent by the sequencer to assign a global sequence number, carried by its timestamp, to the message referenced by
+     * {@link ReliabilityMessage#referenceMessageID}; the messages of a {@link #DATA_BATCH} take consecutive numbers
+     */
+    ORDER,
+    /**
+     * Asks the sender of a broadcast stream to send again the message at the position
+     * {@link ReliabilityMessage#sequenceNumber}, sent as soon as a receiver detects that the message is missing
+     */
+    NACK,
+    /**
+     * Answers a {@link #NACK} for a message that can't be sent again, e.g. because it became stable without the client
+     * that asked for it; the receiver stops waiting for the position {@link ReliabilityMessage#sequenceNumber}
+     */
+    SKIP;
+
+    /**
+     * @return true if the message only acknowledges other messages
+     */
+    public boolean isAck() {
+        return this == ACK || this == ACK_BATCH;
+    }
 }
@@ -0,0 +1,143 @@
+package it.polimi.ds.lib.reliability;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Sequence numbers assigned by the sequencer in {@link OrderingMode#SEQUENCER} mode, as seen by a client. The ORDER
+ * messages are applied in the order the sequencer sent them: one whose message has not arrived yet holds back the
+ * following ones, and the ones already applied, e.g. retransmitted or announced again by a new sequencer, are
+ * ignored. The assignments are kept until every client is known to have them, so that a new sequencer can announce
+ * again the ones that the previous sequencer did not deliver to every client.
+ * <p>Not thread safe, the {@link ReliabilityLayer} guards it with its order lock.</p>
+ */
+class OrderTracker {
+
+    /**
+     * Applies an ORDER to its message
+     */
+    @FunctionalInterface
+    interface Applier {
+        /**
+         * @param messageID      the ordered message
+         * @param sequenceNumber the sequence number of the message, or of its first message if it is a batch
+         * @return the last sequence number taken by the message
+         */
+        int apply(UUID messageID, int sequenceNumber);
+    }
+
+    /**
+     * Highest sequence number applied or assigned
+     */
+    private int sequence = 0;
+
+    /**
+     * Sequence number of each message applied since the assignments were last forgotten
+     */
+    private final Map<UUID, Integer> applied = new HashMap<>();
+
+    /**
+     * ORDER messages waiting for their message, in the order they were received
+     */
+    private final LinkedHashMap<UUID, Integer> held = new LinkedHashMap<>();
+
+    /**
+     * Highest sequence number of the forgotten assignments, every ORDER up to it has already been applied
+     */
+    private int forgotten = 0;
+
+    /**
+     * @return the highest sequence number applied or assigned
+     */
+    int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the next sequence number to assign, for the sequencer
+     */
+    int next() {
+        return sequence + 1;
+    }
+
+    /**
+     * Make the numbers up to a sequence number unavailable to {@link #next()}, e.g. the ones applied by the other
+     * clients when this one becomes the sequencer
+     */
+    void advance(int sequenceNumber) {
+        sequence = Math.max(sequence, sequenceNumber);
+    }
+
+    /**
+     * @return whether an ORDER for the message has already been received
+     */
+    boolean isOrdered(UUID messageID) {
+        return applied.containsKey(messageID) || held.containsKey(messageID);
+    }
+
+    /**
+     * Receive an ORDER and apply it, together with the ones held back by it, if the messages are available
+     *
+     * @param messageID      the ordered message
+     * @param sequenceNumber the sequence number of the message
+     * @param available      whether a message has arrived
+     * @param applier        applies an ORDER to its message
+     * @return false if the ORDER had already been received
+     */
+    boolean receive(UUID messageID, int sequenceNumber, Predicate<UUID> available, Applier applier) {
+        if (isOrdered(messageID) || sequenceNumber <= forgotten) return false;
+        held.put(messageID, sequenceNumber);
+        drain(available, applier);
+        return true;
+    }
+
+    /**
+     * Apply the held ORDER messages whose message has arrived, stopping at the first one that is still missing
+     *
+     * @param available whether a message has arrived
+     * @param applier   applies an ORDER to its message
+     */
+    void drain(Predicate<UUID> available, Applier applier) {
+        for (Iterator<Map.Entry<UUID, Integer>> iterator = held.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<UUID, Integer> order = iterator.next();
+            if (!available.test(order.getKey())) return;
+            iterator.remove();
+            applied.put(order.getKey(), order.getValue());
+            advance(applier.apply(order.getKey(), order.getValue()));
+        }
+    }
+
+    /**
+     * @return whether some ORDER messages wait for their message
+     */
+    boolean hasHeld() {
+        return !held.isEmpty();
+    }
+
+    /**
+     * @return the sequence number of each message whose ORDER has been received and not forgotten, applied or not
+     */
+    Map<UUID, Integer> assignments() {
+        Map<UUID, Integer> assignments = new HashMap<>(applied);
+        assignments.putAll(held);
+        return assignments;
+    }
+
+    /**
+     * Forget the applied assignments that every client is known to have; their ORDER messages are ignored if they
+     * are received again
+     *
+     * @param messageIDs the messages whose assignments are forgotten
+     */
+    void forget(Collection<UUID> messageIDs) {
+        for (UUID messageID : messageIDs) {
+            Integer sequenceNumber = applied.remove(messageID);
+            if (sequenceNumber != null) forgotten = Math.max(forgotten, sequenceNumber);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package it.polimi.ds.lib.reliability;
+
+/**
+ * This enum is used to choose how the total order of the application messages is decided
+ */
+public enum OrderingMode {
+    /**
+     * The messages are ordered by their scalar clock and delivered once every client has acknowledged them to every
+     * other client
+     */
+    CLOCK,
+    /**
+     * The view manager acts as sequencer: the clients acknowledge a message only to its sender and to the sequencer,
+     * which assigns it a global sequence number once all of them have received it and broadcasts it in an
+     * {@link MessageType#ORDER} message; the messages are delivered in sequence order
+     */
+    SEQUENCER,
+    /**
+     * The messages of each sender are delivered in the order they were sent, as soon as they are received in order and
+     * without waiting for the ACKs; the messages of different senders are not ordered. The stable messages are still
+     * logged and made available once acknowledged by every client.
+     */
+    FIFO
+}
@@ -0,0 +1,67 @@
+package it.polimi.ds.lib.reliability;
+
+import it.polimi.ds.lib.utils.Threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Single thread executors of the ACK bookkeeping of the received messages, each one handling the messages whose ID
+ * falls in its shard, so that the events of each message are handled in order while different messages are handled
+ * in parallel. Without shards the bookkeeping is done by the calling thread.
+ */
+class ReceiveShards {
+
+    private final ExecutorService[] shards;
+
+    /**
+     * @param count the number of shards, 0 to run the bookkeeping on the calling thread
+     * @param name  the prefix of the names of the threads
+     */
+    ReceiveShards(int count, String name) {
+        shards = new ExecutorService[Math.max(count, 0)];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = Executors.newSingleThreadExecutor(Threads.named(name + i));
+    }
+
+    /**
+     * @return the shard handling a message, 0 if the bookkeeping is not sharded
+     */
+    int shardOf(UUID messageID) {
+        return shards.length == 0 ? 0 : Math.floorMod(messageID.hashCode(), shards.length);
+    }
+
+    /**
+     * Run the bookkeeping of a message on its shard, or immediately if the bookkeeping is not sharded
+     */
+    void execute(UUID messageID, Runnable task) {
+        if (shards.length == 0) task.run();
+        else shards[shardOf(messageID)].execute(task);
+    }
+
+    /**
+     * Run the bookkeeping of several messages, e.g. the ones of an ACK batch, once for each shard with the messages
+     * falling in it, in the order of the list
+     *
+     * @param messageIDs the messages
+     * @param task       the bookkeeping of the messages of a shard
+     */
+    void executeBatch(List<UUID> messageIDs, Consumer<List<UUID>> task) {
+        if (messageIDs.isEmpty()) return;
+        if (shards.length <= 1) {
+            execute(messageIDs.get(0), () -> task.accept(messageIDs));
+            return;
+        }
+        List<List<UUID>> byShard = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) byShard.add(new ArrayList<>());
+        for (UUID messageID : messageIDs) byShard.get(shardOf(messageID)).add(messageID);
+        for (int i = 0; i < shards.length; i++) {
+            List<UUID> shardIDs = byShard.get(i);
+            if (!shardIDs.isEmpty()) shards[i].execute(() -> task.accept(shardIDs));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package it.polimi.ds.lib.reliability;
 import it.polimi.ds.lib.communication.CommunicationLayer;
 import it.polimi.ds.lib.communication.message.DataMessage;
 import it.polimi.ds.lib.utils.StablePriorityBlockingQueue;
+import it.polimi.ds.lib.utils.Threads;
 import it.polimi.ds.lib.vsync.KnowledgeableMessageType;
 import it.polimi.ds.lib.vsync.VSyncLayer;
 import it.polimi.ds.lib.vsync.view.ViewManager;
@@ -14,8 +15,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
 
 public class ReliabilityLayer {
 
@@ -24,14 +30,77 @@ public class ReliabilityLayer {
     private final static Logger logger = LogManager.getLogger();
 
     /**
-     * Maximum number of retries before considering a client disconnected
+     * Minimum number of retries before considering a client disconnected
      */
     private final int MAX_RETRIES = 2;
 
     /**
-     * Timeout before resending a message
+     * Timeout before resending a message to a client whose round trip time has not been measured yet, afterwards the
+     * timeout is computed by the {@link RttEstimator}
      */
-    int TIMEOUT_RESEND = 10000;
+    int TIMEOUT_RESEND = 1000;
+
+    /**
+     * Time in milliseconds since the first transmission of a message after which the clients that have not
+     * acknowledged it, and have received at least {@link #MAX_RETRIES} retransmissions, are considered disconnected
+     */
+    int DISCONNECT_TIMEOUT = 30000;
+
+    /**
+     * Maximum time in milliseconds an ACK of a broadcast message waits to be sent together with other ACKs, 0 disables
+     * the batching; can be set with the {@code rmpi.ack.window} system property
+     */
+    private final int ACK_BATCH_WINDOW = Integer.getInteger("rmpi.ack.window", 0);
+
+    /**
+     * Number of pending ACKs that causes the batch to be sent before the window expires; can be set with the
+     * {@code rmpi.ack.batch} system property
+     */
+    private final int ACK_BATCH_SIZE = Integer.getInteger("rmpi.ack.batch", 64);
+
+    /**
+     * Maximum number of messages sent with {@link #sendMessage(VSyncMessage)} that can be waiting to become stable,
+     * 0 disables the flow control; can be set with the {@code rmpi.send.window} system property
+     */
+    private final int SEND_WINDOW = Integer.getInteger("rmpi.send.window", 1024);
+
+    /**
+     * Whether {@link #sendMessage(VSyncMessage)} throws instead of waiting when the send window is full; can be set
+     * with the {@code rmpi.send.reject} system property
+     */
+    private final boolean REJECT_WHEN_FULL = Boolean.getBoolean("rmpi.send.reject");
+
+    /**
+     * Maximum number of queued messages broadcast together in a single {@link MessageType#DATA_BATCH} message, 0 or 1
+     * disables the batching; can be set with the {@code rmpi.send.batch} system property
+     */
+    private final int SEND_BATCH_SIZE = Integer.getInteger("rmpi.send.batch", 0);
+
+    /**
+     * Number of payload bytes after which a batch is sent without waiting for more messages; can be set with the
+     * {@code rmpi.send.batch.bytes} system property
+     */
+    private final int SEND_BATCH_BYTES = Integer.getInteger("rmpi.send.batch.bytes", 64 * 1024);
+
+    /**
+     * Maximum time in milliseconds the first message of a batch waits for other messages to be queued, 0 only takes
+     * the messages already queued; can be set with the {@code rmpi.send.linger} system property
+     */
+    private final int SEND_LINGER = Integer.getInteger("rmpi.send.linger", 0);
+
+    /**
+     * Number of threads updating the ACKs of the received messages, each one handling the messages whose ID falls in
+     * its shard; 0 handles them on the thread reading the messages. Can be set with the {@code rmpi.receive.shards}
+     * system property
+     */
+    private final int RECEIVE_SHARDS = Integer.getInteger("rmpi.receive.shards", 0);
+
+    /**
+     * How the total order of the application messages is decided; can be set with the {@code rmpi.ordering} system
+     * property
+     */
+    private final OrderingMode ORDERING =
+            OrderingMode.valueOf(System.getProperty("rmpi.ordering", OrderingMode.CLOCK.name()).toUpperCase());
 
     /**
      * The communication layer to use to send and receive messages
@@ -41,45 +110,175 @@ public class ReliabilityLayer {
     /**
      * Map of messages to be acknowledged, for each message a map of clients and their ack status
      */
-    private AcknowledgeMap ackMap = new AcknowledgeMap();
+    private AcknowledgeMap ackMap;
 
-    private final Map<UUID, ReliabilityMessage> unstableReceivedMessages = new HashMap<>();
+    /**
+     * Round trip time of each client, measured from the ACKs of the sent messages
+     */
+    private final RttEstimator rttEstimator;
 
-    private final Map<UUID, MessageTimer> unstableSentMessagesTimer = new HashMap<>();
+    private final Map<UUID, ReliabilityMessage> unstableReceivedMessages = new ConcurrentHashMap<>();
+
+    /**
+     * Sender of each unstable received message, so that its tracking can be restored after a view change
+     */
+    private final Map<UUID, UUID> unstableReceivedSenders = new ConcurrentHashMap<>();
+
+    /**
+     * Retransmissions scheduled for the sent messages that are not stable yet
+     */
+    private final Map<UUID, Retransmission> unstableSentMessagesTimer = new ConcurrentHashMap<>();
 
     /**
-     * Map of messages and their number of retries
+     * Single thread shared by all the retransmissions, a cancelled retransmission is just flagged and discarded when
+     * it reaches the head of the queue
      */
-    private final HashMap<ReliabilityMessage, Integer> retries = new HashMap<>();
+    private final ScheduledExecutorService retransmissionScheduler =
+            Threads.newScheduler("ReliabilityLayer::retransmission");
 
     /**
      * Buffer of messages to be sent to the upper VSync layer
      */
-    private final StablePriorityBlockingQueue<ReliabilityMessage> upBuffer = new StablePriorityBlockingQueue<>();
+    private final StablePriorityBlockingQueue<ReliabilityMessage> upBuffer =
+            new StablePriorityBlockingQueue<>(message -> message.messageID);
 
     /**
      * Buffer of messages to be sent to the lower Communication layer
      */
     private final BlockingQueue<ReliabilityMessage> downBuffer = new LinkedBlockingQueue<>();
 
+    /**
+     * Number of messages added to the downBuffer and number of them broadcast, used to know when the messages queued
+     * before the cut of a checkpoint have been sent
+     */
+    private final AtomicLong queuedMessages = new AtomicLong();
+
+    private final AtomicLong broadcastMessages = new AtomicLong();
+
+    /**
+     * Held in read mode while a stable message is delivered and logged, so that the cut of a checkpoint can wait for
+     * the messages that are no longer unstable but not logged yet
+     */
+    private final ReentrantReadWriteLock stabilizationLock = new ReentrantReadWriteLock();
+
+    /**
+     * Interval in milliseconds between two checks of the stability watermark
+     */
+    private static final long WATERMARK_POLL = 10;
+
+    /**
+     * Credits of the send window, one is taken by each message sent and given back when the message becomes stable,
+     * null if the flow control is disabled
+     */
+    private final Semaphore sendCredits = SEND_WINDOW > 0 ? new Semaphore(SEND_WINDOW) : null;
+
+    /**
+     * Messages holding a credit of the send window
+     */
+    private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Futures returned by {@link #sendMessageAsync(VSyncMessage)}, completed when their message becomes stable
+     */
+    private final Map<UUID, CompletableFuture<Void>> stableFutures = new ConcurrentHashMap<>();
+
     private int eventID = 0;
 
     private final ViewManager viewManager;
 
-    private boolean messageEnabled = false;
+    private volatile boolean messageEnabled = false;
+
+    /**
+     * Lock on which the sender waits for the sending to be enabled, a lock instead of a monitor so that a virtual
+     * thread waiting on it doesn't keep its carrier thread
+     */
+    private final ReentrantLock sendingLock = new ReentrantLock();
+
+    private final Condition sendingEnabled = sendingLock.newCondition();
 
     private final FaultRecovery faultRecovery;
 
+    /**
+     * IDs of the broadcast messages whose ACK has not been sent yet, used only when the ACK batching is enabled
+     */
+    private final List<UUID> pendingAcks = new ArrayList<>();
+
+    /**
+     * Guards the pending ACKs, held while the batch is sent
+     */
+    private final ReentrantLock pendingAcksLock = new ReentrantLock();
+
+    /**
+     * Timestamp of the last ACK added to the pending batch
+     */
+    private ScalarClock pendingAcksTimestamp;
+
+    /**
+     * Sends the pending ACKs when the batching window expires
+     */
+    private final ScheduledExecutorService ackFlusher;
+
+    private ScheduledFuture<?> scheduledAckFlush;
+
+    /**
+     * Executors of the ACK bookkeeping, by the shard of the message
+     */
+    private final ReceiveShards receiveShards;
+
+    /**
+     * Sent messages acknowledged by all the clients that are waiting for their {@link MessageType#ORDER}, used only
+     * in {@link OrderingMode#SEQUENCER} mode
+     */
+    private final Map<UUID, ReliabilityMessage> awaitingOrder = new ConcurrentHashMap<>();
+
+    /**
+     * Sequence numbers assigned by the sequencer or received from it
+     */
+    private final OrderTracker orders = new OrderTracker();
+
+    /**
+     * Guards the sequence numbers and the messages waiting for them, held while an ORDER is broadcast so that the
+     * ORDER messages leave the sequencer in sequence order
+     */
+    private final ReentrantLock orderLock = new ReentrantLock();
+
+    /**
+     * Position of the last message broadcast by {@link #sendMessageBroadcast()}, only accessed by its thread
+     */
+    private int lastSequenceNumber = 0;
+
+    /**
+     * State of the stream of broadcast messages received from each client, only updated by the reading thread
+     */
+    private final Map<UUID, InboundStream> inboundStreams = new ConcurrentHashMap<>();
+
+    /**
+     * Messages delivered in FIFO order as soon as they are received, used only in {@link OrderingMode#FIFO} mode
+     */
+    private final BlockingQueue<ReliabilityMessage> fifoBuffer = new LinkedBlockingQueue<>();
+
     public ReliabilityLayer(ViewManagerBuilder managerBuilder, FaultRecovery faultRecovery) {
         this.faultRecovery = faultRecovery;
+        this.rttEstimator = new RttEstimator(TIMEOUT_RESEND);
+        this.ackMap = new AcknowledgeMap(rttEstimator);
         this.vSyncLayer = managerBuilder.getVSyncLayer();
         managerBuilder.setReliabilityLayer(this);
         this.handler = CommunicationLayer.defaultConfiguration(managerBuilder);
         viewManager = managerBuilder.create();
-        new Thread(this::readMessage, "ReliabilityLayer::readMessage").start();
-        new Thread(this::sendMessageBroadcast, "ReliabilityLayer::sendMessageBroadcast").start();
+        ackFlusher = ACK_BATCH_WINDOW > 0 ? Threads.newScheduler("ReliabilityLayer::ackFlusher") : null;
+        receiveShards = new ReceiveShards(RECEIVE_SHARDS, "ReliabilityLayer::receive-");
+        Threads.start("ReliabilityLayer::readMessage", this::readMessage);
+        Threads.start("ReliabilityLayer::sendMessageBroadcast", this::sendMessageBroadcast);
     }
 
+    /**
+     * Receive pipeline: the messages are decoded by the threads of the {@link CommunicationLayer}, then this thread
+     * updates the clock, sends the ACKs and queues the messages for delivery, in the order they are read. The ACK
+     * bookkeeping and the stability checks are handed to the shard of the message they refer to, so that the events
+     * of each message are handled in order while different messages are handled in parallel; the
+     * {@link StablePriorityBlockingQueue} then delivers the stable messages in timestamp order whatever the shard
+     * that marked them stable.
+     */
     private void readMessage() {
         try {
             this.handler.getLatch().await();
@@ -93,6 +292,9 @@ public class ReliabilityLayer {
             if (messageReceived.messageType == MessageType.ACK)
                 logger.trace("Received " + messageReceived.messageType + " message with ID " +
                         messageReceived.messageID + " for message " + messageReceived.referenceMessageID + " from " + senderUID);
+            else if (messageReceived.messageType == MessageType.ACK_BATCH)
+                logger.trace("Received " + messageReceived.messageType + " message with ID " +
+                        messageReceived.messageID + " for messages " + messageReceived.referenceMessageIDs + " from " + senderUID);
             else
                 logger.trace("Received " + messageReceived.messageType + " message with ID " +
                         messageReceived.messageID + " from " + senderUID);
@@ -104,79 +306,558 @@ public class ReliabilityLayer {
 
             if (messageReceived.messageType == MessageType.ACK) {
                 UUID referencedMessageId = messageReceived.referenceMessageID;
-                ackMap.receiveAck(referencedMessageId, senderUID, viewManager.getConnectedClients());
+                List<UUID> recipients = viewManager.getConnectedClients();
+                receiveShards.execute(referencedMessageId, () -> {
+                    ackMap.receiveAck(referencedMessageId, senderUID, recipients);
 
-                //if all clients have acknowledged the message, remove it from the ackMap
-                checkStable(referencedMessageId);
+                    //if all clients have acknowledged the message, remove it from the ackMap
+                    checkStable(referencedMessageId);
+                });
+            } else if (messageReceived.messageType == MessageType.ACK_BATCH) {
+                List<UUID> recipients = viewManager.getConnectedClients();
+                // each shard applies the whole part of the batch falling in it at once
+                receiveShards.executeBatch(messageReceived.referenceMessageIDs, referencedMessageIds -> {
+                    ackMap.receiveAcks(referencedMessageIds, senderUID, recipients);
+                    referencedMessageIds.forEach(this::checkStable);
+                });
+            } else if (messageReceived.messageType == MessageType.NACK) {
+                resend(senderUID, messageReceived.sequenceNumber, timestamp);
+            } else if (messageReceived.messageType == MessageType.SKIP) {
+                List<ReliabilityMessage> inOrder = skipInStream(senderUID, messageReceived.sequenceNumber);
+                if (ORDERING == OrderingMode.FIFO) inOrder.forEach(message -> fifoBuffer.addAll(unbatch(message)));
+            } else if (messageReceived.messageType == MessageType.ORDER) {
+                // applied by this thread in the order they arrive, the sequencer sends them in sequence order and
+                // retransmits the lost ones; acknowledged once applied or held back, before a view restarts
+                receiveOrder(messageReceived.referenceMessageID, messageReceived.timestamp);
+                sendAck(messageReceived, timestamp, senderUID);
+            } else if (isSequenced(messageReceived)) {
+                receiveInStream(senderUID, messageReceived, timestamp);
+                // delivered when the sequencer orders it, only the sequencer tracks the ACKs of the other clients
+                unstableReceivedSenders.put(messageReceived.messageID, senderUID);
+                unstableReceivedMessages.put(messageReceived.messageID, messageReceived);
+                applyHeldOrders();
+                sendAck(messageReceived, timestamp, senderUID);
+                if (isSequencer()) {
+                    List<UUID> uuids = new ArrayList<>(viewManager.getConnectedClients());
+                    uuids.remove(senderUID);
+                    receiveShards.execute(messageReceived.messageID, () -> {
+                        ackMap.receiveMessage(messageReceived.messageID, senderUID, uuids);
+                        checkStable(messageReceived.messageID);
+                    });
+                }
             } else {
                 List<UUID> uuids;
-                if (messageReceived.messageType == MessageType.DATA) {
+                if (messageReceived.messageType != MessageType.SINGLE) {
                     uuids = new ArrayList<>(viewManager.getConnectedClients());
                     uuids.remove(senderUID);
                 } else {
                     uuids = Collections.emptyList();
                 }
-                ackMap.receiveMessage(messageReceived.messageID, senderUID, uuids);
                 sendAck(messageReceived, timestamp, senderUID);
-                if (messageReceived.payload.knowledgeableMessageType == KnowledgeableMessageType.VIEW) {
+                List<ReliabilityMessage> inOrder = receiveInStream(senderUID, messageReceived, timestamp);
+                if (ORDERING == OrderingMode.FIFO && (messageReceived.messageType == MessageType.DATA_BATCH ||
+                        messageReceived.payload.knowledgeableMessageType == KnowledgeableMessageType.VSYNC)) {
+                    // delivered as soon as the previous messages of the sender are, the ACKs only make it stable
+                    inOrder.forEach(message -> fifoBuffer.addAll(unbatch(message)));
+                } else if (messageReceived.messageType == MessageType.DATA_BATCH) {
+                    // the messages are ordered by their own timestamp, they become stable with the batch
+                    messageReceived.messages.forEach(upBuffer::add);
+                } else if (messageReceived.payload.knowledgeableMessageType == KnowledgeableMessageType.VIEW) {
                     viewManager.getBuffer().add(messageReceived);
                 } else {
                     upBuffer.add(messageReceived);
                 }
+                unstableReceivedSenders.put(messageReceived.messageID, senderUID);
                 unstableReceivedMessages.put(messageReceived.messageID, messageReceived);
-                checkStable(messageReceived.messageID);
+                receiveShards.execute(messageReceived.messageID, () -> {
+                    ackMap.receiveMessage(messageReceived.messageID, senderUID, uuids);
+                    checkStable(messageReceived.messageID);
+                });
             }
         }
     }
 
     private void checkStable(UUID referencedMessageID) {
-        if (ackMap.isComplete(referencedMessageID)) {
-            boolean toLog = false;
-            ReliabilityMessage message = unstableReceivedMessages.remove(referencedMessageID);
-            if (message != null) {
-                if (message.payload.knowledgeableMessageType == KnowledgeableMessageType.VIEW)
-                    viewManager.getBuffer().markStable(message);
-                else {
-                    upBuffer.markStable(message);
-                    toLog = true;
-                }
+        if (ORDERING == OrderingMode.SEQUENCER && ackMap.isComplete(referencedMessageID)) {
+            ReliabilityMessage message = unstableReceivedMessages.get(referencedMessageID);
+            if (message == null) {
+                Retransmission retransmission = unstableSentMessagesTimer.get(referencedMessageID);
+                message = retransmission == null ? null : retransmission.message;
+            }
+            if (message == null || isSequenced(message)) {
+                // the ACKs of a message already ordered may complete after its ORDER
                 ackMap.remove(referencedMessageID);
-            } else {
-                MessageTimer messageTimer = unstableSentMessagesTimer.remove(referencedMessageID);
-                if (messageTimer != null) {
-                    ackMap.remove(referencedMessageID);
-                    messageTimer.timer.cancel();
-                    message = messageTimer.message;
-                    if (messageTimer.message.payload.knowledgeableMessageType == KnowledgeableMessageType.VSYNC) {
-                        toLog = true;
-                    }
-                }
+                if (message != null) acknowledgedByAll(message);
+                return;
             }
-            if(message!= null)
-                vSyncLayer.addMessage(message);
-            if (toLog) {
-                faultRecovery.logMessage((VSyncMessage) message.getPayload(), message.timestamp);
-                logger.info("Logged message: " + message.messageID + " " + message.timestamp);
+        }
+        if (ackMap.isComplete(referencedMessageID)) {
+            stabilizationLock.readLock().lock();
+            try {
+                stabilize(referencedMessageID);
+            } finally {
+                stabilizationLock.readLock().unlock();
             }
         } else
             logger.debug("Message " + referencedMessageID + " is not stable yet, missing "+ ackMap.missingAcks(referencedMessageID));
     }
 
+    /**
+     * Deliver and log a message acknowledged by every client, if it is still unstable
+     */
+    private void stabilize(UUID referencedMessageID) {
+        boolean toLog = false;
+        ReliabilityMessage message = unstableReceivedMessages.remove(referencedMessageID);
+        if (message != null) {
+            unstableReceivedSenders.remove(referencedMessageID);
+            if (message.messageType == MessageType.DATA_BATCH) {
+                if (ORDERING != OrderingMode.FIFO) message.messages.forEach(upBuffer::markStable);
+                toLog = true;
+            } else if (message.payload.knowledgeableMessageType == KnowledgeableMessageType.VIEW)
+                viewManager.getBuffer().markStable(message);
+            else {
+                if (ORDERING != OrderingMode.FIFO) upBuffer.markStable(message);
+                toLog = true;
+            }
+            ackMap.remove(referencedMessageID);
+        } else {
+            Retransmission retransmission = unstableSentMessagesTimer.remove(referencedMessageID);
+            if (retransmission != null) {
+                ackMap.remove(referencedMessageID);
+                retransmission.cancel();
+                // an ORDER has nothing to deliver, it is stable once every client has received it
+                if (retransmission.message.messageType == MessageType.ORDER) return;
+                message = retransmission.message;
+                unbatch(message).forEach(this::sentStable);
+                if (message.messageType == MessageType.DATA_BATCH ||
+                        message.payload.knowledgeableMessageType == KnowledgeableMessageType.VSYNC) {
+                    toLog = true;
+                }
+            }
+        }
+        if (message != null) {
+            for (ReliabilityMessage delivered : unbatch(message)) {
+                vSyncLayer.addMessage(delivered);
+                if (toLog) {
+                    faultRecovery.logMessage((VSyncMessage) delivered.getPayload(), delivered.timestamp);
+                    logger.info("Logged message: " + delivered.messageID + " " + delivered.timestamp);
+                }
+            }
+        }
+    }
+
     private void sendAck(ReliabilityMessage messageReceived, ScalarClock timestamp, UUID senderUID) {
-        UUID ackMessageUID = UUID.randomUUID();
-        ReliabilityMessage ackMessage = new ReliabilityMessage(ackMessageUID, messageReceived.messageID,
-                timestamp);
-        if (messageReceived.messageType == MessageType.SINGLE) {
+        if (isSequenced(messageReceived)) {
+            // only the sender and the sequencer wait for the ACKs
+            UUID sequencer = viewManager.getSequencer();
+            ReliabilityMessage ackMessage = new ReliabilityMessage(UUID.randomUUID(), messageReceived.messageID,
+                    timestamp);
+            handler.sendMessage(senderUID, ackMessage);
+            if (!sequencer.equals(senderUID) && !sequencer.equals(viewManager.getClientUID()))
+                handler.sendMessage(sequencer, ackMessage);
+            logger.trace("Sent ACK for message " + messageReceived.messageID + " with id "
+                    + ackMessage.messageID + " to " + senderUID + " and to the sequencer " + sequencer);
+        } else if (messageReceived.messageType == MessageType.SINGLE ||
+                messageReceived.messageType == MessageType.ORDER) {
+            // only the sender of an ORDER waits for its ACKs
+            UUID ackMessageUID = UUID.randomUUID();
+            ReliabilityMessage ackMessage = new ReliabilityMessage(ackMessageUID, messageReceived.messageID,
+                    timestamp);
             handler.sendMessage(senderUID, ackMessage);
             logger.trace("Sent ACK for message " + messageReceived.messageID + " with id "
                     + ackMessageUID + " to " + senderUID);
+        } else if (ackFlusher != null) {
+            // view messages are acknowledged immediately, together with the pending ACKs, to not slow down view changes
+            batchAck(messageReceived.messageID, timestamp, messageReceived.payload != null &&
+                    messageReceived.payload.knowledgeableMessageType == KnowledgeableMessageType.VIEW);
         } else {
+            UUID ackMessageUID = UUID.randomUUID();
+            ReliabilityMessage ackMessage = new ReliabilityMessage(ackMessageUID, messageReceived.messageID,
+                    timestamp);
             handler.sendMessageBroadcast(ackMessage);
             logger.trace("Sent ACK for message" + messageReceived.messageID + " with id "
                     + ackMessageUID + " to all clients");
         }
     }
 
+    /**
+     * Track the position of a message in the stream of its sender: the messages after a gap are held back and a NACK
+     * is sent right away for each message found missing, instead of waiting for the sender to time out
+     *
+     * @return the messages of the stream that are now in order, the message itself followed by the held back messages
+     * it unblocks; empty if the message is a duplicate or comes after a gap
+     */
+    private List<ReliabilityMessage> receiveInStream(UUID senderUID, ReliabilityMessage message,
+                                                     ScalarClock timestamp) {
+        int number = message.sequenceNumber;
+        if (number == 0) return List.of(message);
+        // the stream starts from the first message received, the previous ones were sent before joining
+        InboundStream stream = inboundStreams.computeIfAbsent(senderUID, id -> new InboundStream(number));
+        if (number < stream.next || stream.heldBack.containsKey(number)) return List.of();
+        if (number > stream.next) {
+            for (int missing = Math.max(stream.next, stream.highest + 1); missing < number; missing++) {
+                ReliabilityMessage nack = ReliabilityMessage.nack(UUID.randomUUID(), missing, timestamp);
+                handler.sendMessage(senderUID, nack);
+                logger.debug("Message " + missing + " from " + senderUID + " is missing, sent NACK");
+            }
+            stream.highest = Math.max(stream.highest, number);
+            stream.heldBack.put(number, message);
+            return List.of();
+        }
+        List<ReliabilityMessage> inOrder = new ArrayList<>();
+        inOrder.add(message);
+        stream.highest = Math.max(stream.highest, number);
+        stream.next++;
+        unblock(stream, inOrder);
+        return inOrder;
+    }
+
+    /**
+     * Stop waiting for a message of the stream of a client that the client can't send again
+     *
+     * @return the held back messages that are now in order
+     */
+    private List<ReliabilityMessage> skipInStream(UUID senderUID, int number) {
+        InboundStream stream = inboundStreams.get(senderUID);
+        if (stream == null || number < stream.next || stream.heldBack.containsKey(number)) return List.of();
+        logger.warn("Message " + number + " from " + senderUID + " can't be sent again, skipped");
+        stream.skipped.add(number);
+        stream.highest = Math.max(stream.highest, number);
+        List<ReliabilityMessage> inOrder = new ArrayList<>();
+        unblock(stream, inOrder);
+        return inOrder;
+    }
+
+    /**
+     * Advance the stream over the held back and the skipped messages that follow its position
+     */
+    private static void unblock(InboundStream stream, List<ReliabilityMessage> inOrder) {
+        while (true) {
+            ReliabilityMessage heldBack = stream.heldBack.remove(stream.next);
+            if (heldBack != null) inOrder.add(heldBack);
+            else if (!stream.skipped.remove(stream.next)) return;
+            stream.next++;
+        }
+    }
+
+    /**
+     * Send again to a client the message it reported missing with a NACK if it is not stable yet, otherwise tell
+     * the client to skip it
+     */
+    private void resend(UUID clientUID, int sequenceNumber, ScalarClock timestamp) {
+        // NACKs are rare, a scan of the messages in flight is enough
+        for (Retransmission retransmission : unstableSentMessagesTimer.values()) {
+            if (retransmission.message.sequenceNumber == sequenceNumber) {
+                logger.debug("Received NACK, sending message " + sequenceNumber + " again to " + clientUID);
+                ackMap.markRetransmitted(retransmission.message.messageID);
+                handler.sendMessage(clientUID, retransmission.message);
+                return;
+            }
+        }
+        // already stable, or cleared by a view change: the client would hold back the rest of the stream forever
+        logger.warn("Received NACK for message " + sequenceNumber + " that is no longer pending, sending SKIP to " +
+                clientUID);
+        handler.sendMessage(clientUID, ReliabilityMessage.skip(UUID.randomUUID(), sequenceNumber, timestamp));
+    }
+
+    /**
+     * @return true if the message is a data message whose order is decided by the sequencer
+     */
+    private boolean isSequenced(ReliabilityMessage message) {
+        if (ORDERING != OrderingMode.SEQUENCER) return false;
+        return message.messageType == MessageType.DATA_BATCH || (message.messageType == MessageType.DATA &&
+                message.payload.knowledgeableMessageType == KnowledgeableMessageType.VSYNC);
+    }
+
+    private boolean isSequencer() {
+        return viewManager.getSequencer().equals(viewManager.getClientUID());
+    }
+
+    /**
+     * Called when all the clients have acknowledged a sequenced message: the sequencer orders it, the sender of the
+     * message waits for its ORDER
+     */
+    private void acknowledgedByAll(ReliabilityMessage message) {
+        orderLock.lock();
+        try {
+            Retransmission retransmission = unstableSentMessagesTimer.remove(message.messageID);
+            if (retransmission != null) {
+                retransmission.cancel();
+                awaitingOrder.put(message.messageID, message);
+            }
+            // the messages of the clients no longer connected are ordered only if a new sequencer finds them
+            if (isSequencer() && (retransmission != null || unstableReceivedMessages.containsKey(message.messageID) &&
+                    viewManager.getConnectedClients().contains(unstableReceivedSenders.get(message.messageID))))
+                order(message.messageID);
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * Assign the next sequence numbers to a message, broadcast its ORDER and deliver it; called by the sequencer
+     * holding the {@link #orderLock}
+     */
+    private void order(UUID messageID) {
+        if (orders.isOrdered(messageID)) return;
+        ScalarClock sequenceNumber = new ScalarClock(0, orders.next());
+        announceOrder(messageID, sequenceNumber);
+        receiveOrder(messageID, sequenceNumber);
+    }
+
+    /**
+     * Broadcast the ORDER of a message, retransmitted like the data messages until every client acknowledges it;
+     * called by the sequencer holding the {@link #orderLock}
+     */
+    private void announceOrder(UUID messageID, ScalarClock sequenceNumber) {
+        ReliabilityMessage orderMessage = ReliabilityMessage.order(UUID.randomUUID(), messageID, sequenceNumber);
+        ackMap.sendMessage(orderMessage.messageID, viewManager.getConnectedClients());
+        handler.sendMessageBroadcast(orderMessage);
+        logger.trace("Sent ORDER " + sequenceNumber.eventID() + " for message " + messageID + " to all clients");
+        checkDelivery(orderMessage);
+    }
+
+    /**
+     * Apply an ORDER once its message has arrived, after the ORDER messages received before it; an ORDER received
+     * again is ignored
+     *
+     * @param messageID      the ID of the ordered message
+     * @param sequenceNumber the sequence number of the message, or of its first message if it is a batch
+     */
+    private void receiveOrder(UUID messageID, ScalarClock sequenceNumber) {
+        orderLock.lock();
+        try {
+            if (!orders.receive(messageID, sequenceNumber.eventID(), this::isOrderable, this::applyOrder))
+                logger.trace("Ignoring ORDER " + sequenceNumber.eventID() + " received again for " + messageID);
+            else if (orders.hasHeld())
+                logger.debug("Holding back ORDER messages until message " + messageID + " arrives");
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * Apply the ORDER messages held back by a message that has just arrived
+     */
+    private void applyHeldOrders() {
+        orderLock.lock();
+        try {
+            if (orders.hasHeld()) orders.drain(this::isOrderable, this::applyOrder);
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * @return whether a message to be ordered has arrived or has been sent by this client
+     */
+    private boolean isOrderable(UUID messageID) {
+        return unstableReceivedMessages.containsKey(messageID) || awaitingOrder.containsKey(messageID) ||
+                unstableSentMessagesTimer.containsKey(messageID);
+    }
+
+    /**
+     * Deliver a message in the position assigned by the sequencer: the message, or each message of a batch, takes the
+     * sequence number as its timestamp and becomes stable; called holding the {@link #orderLock}
+     *
+     * @param messageID      the ID of the ordered message, which has arrived
+     * @param sequenceNumber the sequence number of the message, or of its first message if it is a batch
+     * @return the last sequence number taken by the message
+     */
+    private int applyOrder(UUID messageID, int sequenceNumber) {
+        boolean sent = false;
+        ReliabilityMessage message = unstableReceivedMessages.remove(messageID);
+        unstableReceivedSenders.remove(messageID);
+        if (message == null) {
+            message = awaitingOrder.remove(messageID);
+            Retransmission retransmission = unstableSentMessagesTimer.remove(messageID);
+            if (retransmission != null) {
+                // the ORDER came before the last ACKs, every client has the message anyway
+                retransmission.cancel();
+                message = retransmission.message;
+            }
+            sent = true;
+        }
+        int next = sequenceNumber;
+        for (ReliabilityMessage original : unbatch(message)) {
+            ReliabilityMessage delivered = new ReliabilityMessage(original.messageID, original.payload,
+                    new ScalarClock(0, next++));
+            if (sent) {
+                sentStable(original);
+            } else {
+                upBuffer.add(delivered);
+                upBuffer.markStable(delivered);
+            }
+            vSyncLayer.addMessage(delivered);
+            faultRecovery.logMessage((VSyncMessage) delivered.getPayload(), delivered.timestamp);
+            logger.info("Logged message: " + delivered.messageID + " " + delivered.timestamp);
+        }
+        return next - 1;
+    }
+
+    /**
+     * @return the highest sequence number this client has applied, sent to a new sequencer
+     */
+    public int getSequence() {
+        orderLock.lock();
+        try {
+            return orders.getSequence();
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number of each message whose ORDER this client has received and that not every client is
+     * known to have received, sent to a new sequencer
+     */
+    public Map<UUID, Integer> getOrders() {
+        orderLock.lock();
+        try {
+            return orders.assignments();
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * Forget the ORDER messages that every client is known to have received, e.g. the ones received before a view
+     * freeze once the checkpoint that follows it is taken
+     *
+     * @param messageIDs the ordered messages
+     */
+    public void forgetOrders(Collection<UUID> messageIDs) {
+        orderLock.lock();
+        try {
+            orders.forget(messageIDs);
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the view manager after a disconnection, once every host has sent the ORDER messages it has received.
+     * A new sequencer first announces again the orders of the previous one, so that the hosts that missed them
+     * deliver those messages in the same position as the others, and continues the numbering after the highest
+     * sequence number applied by any host. Then the messages that are still unordered are ordered in the order of
+     * their timestamps, except the ones of the clients no longer connected, which nobody retransmits to the hosts
+     * that missed them.
+     *
+     * @param takeOver    whether this client has just become the sequencer
+     * @param sequence    the highest sequence number applied by the other hosts
+     * @param assignments the sequence numbers of the messages ordered by the previous sequencer, as received by the
+     *                    other hosts
+     */
+    public void resumeOrdering(boolean takeOver, int sequence, Map<UUID, Integer> assignments) {
+        if (ORDERING != OrderingMode.SEQUENCER) return;
+        orderLock.lock();
+        try {
+            if (takeOver) {
+                Map<UUID, Integer> known = new HashMap<>(assignments);
+                known.putAll(orders.assignments());
+                orders.advance(sequence);
+                logger.debug("Announcing again " + known.size() + " ORDER messages of the previous sequencer");
+                known.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEach(order -> {
+                    ScalarClock sequenceNumber = new ScalarClock(0, order.getValue());
+                    announceOrder(order.getKey(), sequenceNumber);
+                    receiveOrder(order.getKey(), sequenceNumber);
+                });
+            }
+            dropUnordered();
+            List<ReliabilityMessage> pending = new ArrayList<>(awaitingOrder.values());
+            unstableReceivedMessages.values().stream().filter(this::isSequenced).forEach(pending::add);
+            pending.sort(Comparator.naturalOrder());
+            logger.debug("Ordering " + pending.size() + " messages left unordered");
+            for (ReliabilityMessage message : pending) order(message.messageID);
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every client has received the ORDER messages sent by this client, e.g. the ones announced again by
+     * a new sequencer, before a view restarts and the clients drop the messages left unordered
+     *
+     * @param cancelled checked while waiting, e.g. whether the view changed, in which case the wait is abandoned
+     * @return false if the wait has been cancelled
+     */
+    public boolean awaitOrdersStable(BooleanSupplier cancelled) {
+        try {
+            while (unstableSentMessagesTimer.values().stream()
+                    .anyMatch(retransmission -> retransmission.message.messageType == MessageType.ORDER)) {
+                if (cancelled.getAsBoolean()) return false;
+                Thread.sleep(WATERMARK_POLL);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Discard the unordered messages of the clients no longer connected: the sequencer never orders them, since
+     * nobody retransmits them to the clients that missed them
+     */
+    public void dropUnordered() {
+        if (ORDERING != OrderingMode.SEQUENCER) return;
+        List<UUID> connected = viewManager.getConnectedClients();
+        orderLock.lock();
+        try {
+            unstableReceivedMessages.forEach((messageID, message) -> {
+                UUID senderUID = unstableReceivedSenders.get(messageID);
+                if (!isSequenced(message) || orders.isOrdered(messageID) || connected.contains(senderUID)) return;
+                logger.debug("Dropping message " + messageID + " of the disconnected client " + senderUID);
+                unstableReceivedMessages.remove(messageID);
+                unstableReceivedSenders.remove(messageID);
+                ackMap.remove(messageID);
+            });
+        } finally {
+            orderLock.unlock();
+        }
+    }
+
+    /**
+     * Add the ACK of a broadcast message to the pending batch, sending the batch if it is full or if requested,
+     * otherwise scheduling it to be sent when the batching window expires
+     */
+    private void batchAck(UUID messageID, ScalarClock timestamp, boolean flushNow) {
+        pendingAcksLock.lock();
+        try {
+            pendingAcks.add(messageID);
+            pendingAcksTimestamp = timestamp;
+            if (flushNow || pendingAcks.size() >= ACK_BATCH_SIZE) {
+                flushAcks();
+            } else if (scheduledAckFlush == null) {
+                scheduledAckFlush = ackFlusher.schedule(this::flushAcks, ACK_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            pendingAcksLock.unlock();
+        }
+    }
+
+    /**
+     * Broadcast all the pending ACKs in a single {@link MessageType#ACK_BATCH} message
+     */
+    private void flushAcks() {
+        pendingAcksLock.lock();
+        try {
+            if (scheduledAckFlush != null) {
+                scheduledAckFlush.cancel(false);
+                scheduledAckFlush = null;
+            }
+            if (pendingAcks.isEmpty()) return;
+            UUID ackMessageUID = UUID.randomUUID();
+            ReliabilityMessage ackMessage = new ReliabilityMessage(ackMessageUID, List.copyOf(pendingAcks),
+                    pendingAcksTimestamp);
+            pendingAcks.clear();
+            handler.sendMessageBroadcast(ackMessage);
+            logger.trace("Sent ACK for messages " + ackMessage.referenceMessageIDs + " with id "
+                    + ackMessageUID + " to all clients");
+        } finally {
+            pendingAcksLock.unlock();
+        }
+    }
+
     /**
      * Gets a message from the upper VSync layer and sends it to every client connected, simulating a broadcast
      * Waits for the acks to be received and resends the message if necessary.
@@ -185,87 +866,164 @@ public class ReliabilityLayer {
      */
     private void sendMessageBroadcast() {
         while (true) {
-            synchronized (this) {
-                while (!messageEnabled) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            }
             try {
+                awaitSendingEnabled();
                 ReliabilityMessage message = downBuffer.take();
-                synchronized (this) {
-                    while (!messageEnabled) {
-                        wait();
-                    }
-                }
-                if (message.timestamp.processID() == 0) {
-                    message = new ReliabilityMessage(message.messageID, message.payload,
-                            new ScalarClock(viewManager.getProcessID(), ++eventID));
-                }
+                List<ReliabilityMessage> batch = SEND_BATCH_SIZE > 1 ? collectBatch(message) : List.of(message);
+                awaitSendingEnabled();
+                batch = batch.stream().map(this::stamp).toList();
+                message = batch.size() == 1 ? batch.get(0) : new ReliabilityMessage(UUID.randomUUID(), batch);
+                message = message.withSequenceNumber(++lastSequenceNumber);
                 logger.trace(
                         "Sending " + message.messageType + " message with ID " + message.messageID + " " + message.timestamp + " to" +
                                 " all clients");
-                handler.sendMessageBroadcast(message);
+                // registered before sending, so that the ACKs can't arrive before the message is tracked
                 ackMap.sendMessage(message.messageID, viewManager.getConnectedClients());
                 checkDelivery(message);
+                broadcastMessages.addAndGet(batch.size());
+                handler.sendMessageBroadcast(message);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
+    private void awaitSendingEnabled() throws InterruptedException {
+        sendingLock.lock();
+        try {
+            while (!messageEnabled) {
+                sendingEnabled.await();
+            }
+        } finally {
+            sendingLock.unlock();
+        }
+    }
+
+    /**
+     * Take from the downBuffer the messages to broadcast together with the first one, until {@link #SEND_BATCH_SIZE}
+     * messages or {@link #SEND_BATCH_BYTES} bytes are collected or no other message is queued within
+     * {@link #SEND_LINGER} milliseconds
+     *
+     * @param first the message already taken
+     * @return the messages to send, in the order they were queued
+     */
+    private List<ReliabilityMessage> collectBatch(ReliabilityMessage first) throws InterruptedException {
+        List<ReliabilityMessage> batch = new ArrayList<>();
+        batch.add(first);
+        int bytes = ((VSyncMessage) first.payload).getPayloadLength();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SEND_LINGER);
+        while (batch.size() < SEND_BATCH_SIZE && bytes < SEND_BATCH_BYTES) {
+            // the byte limit is checked after each message, so the queued ones are taken one at a time
+            ReliabilityMessage next = downBuffer.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || (next = downBuffer.poll(remaining, TimeUnit.NANOSECONDS)) == null) break;
+            }
+            batch.add(next);
+            bytes += ((VSyncMessage) next.payload).getPayloadLength();
+        }
+        return batch;
+    }
+
+    /**
+     * @return the message with a timestamp of this process, if it has none yet
+     */
+    private ReliabilityMessage stamp(ReliabilityMessage message) {
+        if (message.timestamp.processID() != 0) return message;
+        return new ReliabilityMessage(message.messageID, message.payload,
+                new ScalarClock(viewManager.getProcessID(), ++eventID));
+    }
+
+    /**
+     * @return the data messages carried by a {@link MessageType#DATA_BATCH} message, or the message itself
+     */
+    private static List<ReliabilityMessage> unbatch(ReliabilityMessage message) {
+        return message.messageType == MessageType.DATA_BATCH ? message.messages : List.of(message);
+    }
+
     /**
-     * Gets a message from the upper VSync layer, wraps it in a ReliabilityMessage and adds it to the downBuffer
+     * Gets a message from the upper VSync layer, wraps it in a ReliabilityMessage and adds it to the downBuffer.
+     * If {@link #SEND_WINDOW} messages are already waiting to become stable, waits until one of them is stable or, if
+     * {@link #REJECT_WHEN_FULL} is set, rejects the message.
      *
      * @param message the message to be sent
+     * @throws IllegalStateException if the send window is full and the messages are rejected
      */
     public void sendMessage(VSyncMessage message) {
+        enqueue(message, null);
+    }
+
+    /**
+     * Same as {@link #sendMessage(VSyncMessage)}, the returned future is completed when the message becomes stable.
+     * The future is completed by the threads of this layer, dependent actions that take time should use the async
+     * methods of the future.
+     *
+     * @param message the message to be sent
+     * @return a future completed when all the clients have acknowledged the message
+     * @throws IllegalStateException if the send window is full and the messages are rejected
+     */
+    public CompletableFuture<Void> sendMessageAsync(VSyncMessage message) {
+        CompletableFuture<Void> stable = new CompletableFuture<>();
+        enqueue(message, stable);
+        return stable;
+    }
+
+    private void enqueue(VSyncMessage message, CompletableFuture<Void> stable) {
+        acquireCredit();
         ScalarClock timestamp = new ScalarClock(viewManager.getProcessID(), ++eventID);
         ReliabilityMessage messageToSend = new ReliabilityMessage(UUID.randomUUID(), message, timestamp);
+        if (sendCredits != null) inFlight.add(messageToSend.messageID);
+        if (stable != null) stableFutures.put(messageToSend.messageID, stable);
+        queuedMessages.incrementAndGet();
         downBuffer.add(messageToSend);
     }
 
+    /**
+     * Signal that a sent message has become stable, giving back its credit and completing its future
+     */
+    private void sentStable(ReliabilityMessage message) {
+        releaseCredit(message.messageID);
+        CompletableFuture<Void> stable = stableFutures.remove(message.messageID);
+        if (stable != null) stable.complete(null);
+    }
+
+    private void acquireCredit() {
+        if (sendCredits == null) return;
+        if (REJECT_WHEN_FULL) {
+            if (!sendCredits.tryAcquire())
+                throw new IllegalStateException("Send window full, " + SEND_WINDOW + " messages are not stable yet");
+        } else {
+            try {
+                sendCredits.acquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Give back the credit taken by a sent message, if it holds one
+     */
+    private void releaseCredit(UUID messageID) {
+        if (sendCredits != null && inFlight.remove(messageID)) sendCredits.release();
+    }
+
+    /**
+     * @return the number of sent messages that are waiting to become stable, or -1 if the flow control is disabled
+     */
+    public int getMessagesInFlight() {
+        return sendCredits == null ? -1 : SEND_WINDOW - sendCredits.availablePermits();
+    }
+
     /**
      * Checks if the message has been acknowledged by all clients, if not resends it
      *
      * @param messageToCheck the message to be checked
      */
     private void checkDelivery(ReliabilityMessage messageToCheck) {
-        Timer timer = new Timer("Timer-"+ messageToCheck.messageID);
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                List<UUID> list = ackMap.missingAcks(messageToCheck.messageID);
-                if (list.isEmpty()) {
-                    if (messageToCheck.getPayload().knowledgeableMessageType == KnowledgeableMessageType.VSYNC) {
-                        faultRecovery.logMessage((VSyncMessage) messageToCheck.getPayload(), messageToCheck.timestamp);
-                        logger.info("CD Log message: " + messageToCheck.messageID + " " + messageToCheck.timestamp);
-                    }
-                    ackMap.remove(messageToCheck.messageID);
-                    timer.cancel();
-                    unstableSentMessagesTimer.remove(messageToCheck.messageID);
-                } else {
-                    list.forEach(id -> {
-                        if (!retries.containsKey(messageToCheck)) {
-                            retries.put(messageToCheck, 1);
-                            handler.sendMessage(id, messageToCheck);
-                        } else if (retries.get(messageToCheck) < MAX_RETRIES) {
-                            logger.debug("Timer expired, trying to send the message again to "+list);
-                            retries.put(messageToCheck, retries.get(messageToCheck) + 1);
-                            handler.sendMessage(id, messageToCheck);
-                        } else {
-                            logger.debug("Timer expired again, disconnecting client");
-                            handler.disconnectClient(id);
-                            timer.cancel();
-                        }
-                    });
-                }
-            }
-        }, TIMEOUT_RESEND, TIMEOUT_RESEND);
-        unstableSentMessagesTimer.put(messageToCheck.messageID, new MessageTimer(timer, messageToCheck));
+        Retransmission retransmission = new Retransmission(messageToCheck);
+        unstableSentMessagesTimer.put(messageToCheck.messageID, retransmission);
+        retransmission.schedule();
     }
 
     public void sendViewMessage(List<UUID> destinations, ViewManagerMessage message) {
@@ -277,11 +1035,13 @@ public class ReliabilityLayer {
             messageToSend = new ReliabilityMessage(UUID.randomUUID(), message, MessageType.SINGLE, timestamp);
         }
         ackMap.sendMessage(messageToSend.messageID, destinations);
-        for (UUID destination : destinations) {
-            logger.debug("Sent message " + message.messageType + " " + messageToSend.timestamp + " with ID " + messageToSend.messageID +
-                    " to " + destination);
-            handler.sendMessage(destination, messageToSend);
+        if (destinations.size() > 1) {
+            handler.sendMessage(destinations, messageToSend);
+        } else {
+            for (UUID destination : destinations) handler.sendMessage(destination, messageToSend);
         }
+        logger.debug("Sent message " + message.messageType + " " + messageToSend.timestamp + " with ID " + messageToSend.messageID +
+                " to " + destinations);
         checkDelivery(messageToSend);
     }
 
@@ -292,6 +1052,14 @@ public class ReliabilityLayer {
         this.handler = handler;
     }
 
+    /**
+     * @param clientUID the client of which the round trip time is requested
+     * @return the smoothed round trip time towards the client in milliseconds, or -1 if it has not been measured yet
+     */
+    public double getEstimatedRtt(UUID clientUID) {
+        return rttEstimator.getRtt(clientUID);
+    }
+
     /**
      * Used only for testing purposes
      */
@@ -301,6 +1069,7 @@ public class ReliabilityLayer {
 
     public ReliabilityMessage getMessage() {
         try {
+            if (ORDERING == OrderingMode.FIFO) return fifoBuffer.take();
             return upBuffer.retrieveStable();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
@@ -312,9 +1081,12 @@ public class ReliabilityLayer {
     }
 
     public void startMessageSending() {
-        messageEnabled = true;
-        synchronized (this) {
-            notifyAll();
+        sendingLock.lock();
+        try {
+            messageEnabled = true;
+            sendingEnabled.signalAll();
+        } finally {
+            sendingLock.unlock();
         }
     }
 
@@ -327,21 +1099,236 @@ public class ReliabilityLayer {
         }
     }
 
+    /**
+     * @return the cut of an asynchronous checkpoint: a clock after the timestamp of every message sent so far, the
+     * messages sent from now on by any client that receives a message of this one have a later timestamp
+     */
+    public ScalarClock checkpointCut() {
+        return new ScalarClock(viewManager.getProcessID(), ++eventID);
+    }
+
+    /**
+     * @return whether the messages are logged with the timestamp they were sent with, so that a checkpoint can be
+     * cut by clock; with the {@link OrderingMode#SEQUENCER} mode they are logged with their sequence number
+     */
+    public boolean isCutByClock() {
+        return ORDERING != OrderingMode.SEQUENCER;
+    }
+
+    /**
+     * Wait until the messages queued by this client before the cut have been sent and acknowledged by every client,
+     * without stopping the sending of the later ones
+     *
+     * @param cut       the cut of the checkpoint
+     * @param cancelled checked while waiting, e.g. whether the view changed, in which case the wait is abandoned
+     * @return false if the wait has been cancelled
+     */
+    public boolean awaitSentStable(ScalarClock cut, BooleanSupplier cancelled) {
+        return awaitWatermark(cut, false, cancelled);
+    }
+
+    /**
+     * Wait until the stability watermark, the oldest timestamp of the data messages sent or received by this client
+     * that are not stable yet, passes the cut and the stable messages before it have been logged. The messages of the
+     * other clients before the cut must already have been received, i.e. they waited for
+     * {@link #awaitSentStable(ScalarClock, BooleanSupplier)}.
+     *
+     * @param cut       the cut of the checkpoint
+     * @param cancelled checked while waiting, e.g. whether the view changed, in which case the wait is abandoned
+     * @return false if the wait has been cancelled
+     */
+    public boolean awaitStable(ScalarClock cut, BooleanSupplier cancelled) {
+        return awaitWatermark(cut, true, cancelled);
+    }
+
+    private boolean awaitWatermark(ScalarClock cut, boolean received, BooleanSupplier cancelled) {
+        long queued = queuedMessages.get();
+        try {
+            while (broadcastMessages.get() < queued || stabilityWatermark(received).compareTo(cut) < 0) {
+                if (cancelled.getAsBoolean()) return false;
+                Thread.sleep(WATERMARK_POLL);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        // waits for the messages that have just become stable to be logged
+        stabilizationLock.writeLock().lock();
+        stabilizationLock.writeLock().unlock();
+        return true;
+    }
+
+    /**
+     * @param received whether to consider the received messages too, not only the sent ones
+     * @return the oldest timestamp of the data messages that are not stable yet
+     */
+    private ScalarClock stabilityWatermark(boolean received) {
+        Stream<ReliabilityMessage> unstable = unstableSentMessagesTimer.values().stream()
+                .map(retransmission -> retransmission.message);
+        if (received) unstable = Stream.concat(unstable, unstableReceivedMessages.values().stream());
+        return unstable.filter(message -> message.messageType == MessageType.DATA_BATCH ||
+                        message.payload != null &&
+                                message.payload.knowledgeableMessageType == KnowledgeableMessageType.VSYNC)
+                .flatMap(message -> unbatch(message).stream())
+                .map(message -> message.timestamp)
+                .min(Comparator.naturalOrder())
+                .orElse(new ScalarClock(Integer.MAX_VALUE, Integer.MAX_VALUE));
+    }
+
     public void handleDisconnection(UUID clientUID) {
-        unstableReceivedMessages.forEach((uuid, message) -> {
-            if(uuid.equals(clientUID))
-                unstableReceivedMessages.remove(uuid);
-        });
-        unstableSentMessagesTimer.forEach((uuid, messageTimer) -> {
+        unstableSentMessagesTimer.forEach((uuid, retransmission) -> {
             if(uuid.equals(clientUID)) {
-                messageTimer.timer.cancel();
+                retransmission.cancel();
                 unstableSentMessagesTimer.remove(uuid);
             }
         });
         ackMap.clear();
+        // the sent messages are tracked again in the new view, their retransmissions ask the clients for the ACKs
+        List<UUID> recipients = viewManager.getConnectedClients();
+        for (UUID messageID : unstableSentMessagesTimer.keySet()) {
+            ackMap.sendMessage(messageID, recipients);
+            ackMap.markRetransmitted(messageID);
+        }
+        // the received messages are tracked again too, their senders retransmit them and every client acknowledges
+        // them again, except the ones of the disconnected client that nobody retransmits: they are made stable as
+        // they are, otherwise they would never be delivered and would hold back the checkpoints at a cut
+        List<UUID> orphaned = new ArrayList<>();
+        unstableReceivedMessages.forEach((messageID, message) -> {
+            UUID senderUID = unstableReceivedSenders.get(messageID);
+            if (senderUID == null || senderUID.equals(clientUID)) {
+                if (!isSequenced(message)) orphaned.add(messageID);
+            } else if (!isSequenced(message) || isSequencer()) {
+                List<UUID> uuids = new ArrayList<>(recipients);
+                uuids.remove(senderUID);
+                ackMap.receiveMessage(messageID, senderUID, uuids);
+            }
+        });
+        stabilizationLock.readLock().lock();
+        try {
+            orphaned.forEach(this::stabilize);
+        } finally {
+            stabilizationLock.readLock().unlock();
+        }
+        rttEstimator.remove(clientUID);
+        inboundStreams.remove(clientUID);
     }
 
-    private record MessageTimer(Timer timer, ReliabilityMessage message) {
+    /**
+     * Position reached in the stream of broadcast messages of a client
+     */
+    private static final class InboundStream {
+        /**
+         * Position of the next message to deliver
+         */
+        private int next;
+
+        /**
+         * Highest position received, the missing messages before it have already been requested
+         */
+        private int highest;
+
+        /**
+         * Messages received after a gap, by position
+         */
+        private final NavigableMap<Integer, ReliabilityMessage> heldBack = new TreeMap<>();
+
+        /**
+         * Positions after a gap that the sender can't send again
+         */
+        private final Set<Integer> skipped = new HashSet<>();
 
+        private InboundStream(int first) {
+            this.next = first;
+            this.highest = first - 1;
+        }
+    }
+
+    /**
+     * Retransmission state of a sent message: it is run on the shared scheduler when the timeout of the slowest
+     * recipient still missing expires, the timeout doubling at every retry, until the message becomes stable or its
+     * recipients are considered disconnected
+     */
+    private final class Retransmission implements Runnable {
+        private final ReliabilityMessage message;
+
+        /**
+         * {@link System#nanoTime()} of the first transmission
+         */
+        private final long sentAt = System.nanoTime();
+
+        /**
+         * Number of times the message has been sent again, only accessed by the scheduler thread
+         */
+        private int retries = 0;
+
+        private volatile boolean cancelled = false;
+
+        private volatile ScheduledFuture<?> future;
+
+        private Retransmission(ReliabilityMessage message) {
+            this.message = message;
+        }
+
+        private void schedule() {
+            if (cancelled) return;
+            schedule(Objects.requireNonNullElse(ackMap.missingAcks(message.messageID), List.of()));
+        }
+
+        private void schedule(List<UUID> missing) {
+            long timeout = missing.isEmpty() ? TIMEOUT_RESEND : 0;
+            for (UUID id : missing)
+                timeout = Math.max(timeout, rttEstimator.getTimeout(id, retries));
+            future = retransmissionScheduler.schedule(this, timeout, TimeUnit.MILLISECONDS);
+            if (cancelled) future.cancel(false);
+        }
+
+        private void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) scheduled.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            List<UUID> list = ackMap.missingAcks(message.messageID);
+            if (list == null) {
+                // made stable by another thread, or cleared by a view change until it is tracked again: an untracked
+                // message is never considered stable
+                if (unstableSentMessagesTimer.get(message.messageID) == this) schedule(List.of());
+            } else if (ackMap.isComplete(message.messageID) && isSequenced(message)) {
+                ackMap.remove(message.messageID);
+                acknowledgedByAll(message);
+            } else if (ackMap.isComplete(message.messageID)) {
+                stabilizationLock.readLock().lock();
+                try {
+                    // only the thread removing the message logs it, an ACK may be stabilizing it at the same time
+                    if (!unstableSentMessagesTimer.remove(message.messageID, this)) return;
+                    ackMap.remove(message.messageID);
+                    cancel();
+                    for (ReliabilityMessage sent : unbatch(message)) {
+                        if (sent.getPayload() != null &&
+                                sent.getPayload().knowledgeableMessageType == KnowledgeableMessageType.VSYNC) {
+                            faultRecovery.logMessage((VSyncMessage) sent.getPayload(), sent.timestamp);
+                            logger.info("CD Log message: " + sent.messageID + " " + sent.timestamp);
+                        }
+                        sentStable(sent);
+                    }
+                } finally {
+                    stabilizationLock.readLock().unlock();
+                }
+            } else if (retries >= MAX_RETRIES && !list.isEmpty()
+                    && System.nanoTime() - sentAt >= TimeUnit.MILLISECONDS.toNanos(DISCONNECT_TIMEOUT)) {
+                logger.debug("Timer expired again, disconnecting client");
+                cancel();
+                // handling the disconnection waits for the view change, it must not block the shared scheduler
+                Threads.start("ReliabilityLayer::disconnect", () -> list.forEach(id -> handler.disconnectClient(id)));
+            } else {
+                logger.debug("Timer expired, trying to send the message again to " + list);
+                retries++;
+                ackMap.markRetransmitted(message.messageID);
+                list.forEach(id -> handler.sendMessage(id, message));
+                schedule(list);
+            }
+        }
     }
 }
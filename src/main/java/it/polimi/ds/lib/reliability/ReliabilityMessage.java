@@ -3,6 +3,7 @@ package it.polimi.ds.lib.reliability;
 import it.polimi.ds.lib.vsync.KnowledgeableMessage;
 import it.polimi.ds.lib.vsync.view.message.ViewManagerMessage;
 
+import java.util.List;
 import java.util.UUID;
 
 public class ReliabilityMessage implements Comparable<ReliabilityMessage> {
@@ -12,16 +13,37 @@ public class ReliabilityMessage implements Comparable<ReliabilityMessage> {
 
     public final UUID referenceMessageID;
 
+    /**
+     * The messages acknowledged by an {@link MessageType#ACK_BATCH} message, null for the other types
+     */
+    public final List<UUID> referenceMessageIDs;
+
+    /**
+     * The messages carried by a {@link MessageType#DATA_BATCH} message, each one with its own ID and timestamp, null
+     * for the other types
+     */
+    public final List<ReliabilityMessage> messages;
+
     public final MessageType messageType;
 
     public final ScalarClock timestamp;
 
+    /**
+     * Position of the message in the stream of messages broadcast by its sender, starting from 1, used by the
+     * receivers to detect the missing messages; 0 if the message is not part of the stream. For a
+     * {@link MessageType#NACK} message, the position of the missing message.
+     */
+    public final int sequenceNumber;
+
     public ReliabilityMessage(UUID messageID, KnowledgeableMessage payload, ScalarClock timestamp) {
         this.messageID = messageID;
         this.messageType = MessageType.DATA;
         this.payload = payload;
         this.referenceMessageID = messageID;
+        this.referenceMessageIDs = null;
+        this.messages = null;
         this.timestamp = timestamp;
+        this.sequenceNumber = 0;
     }
 
     public ReliabilityMessage(UUID messageID, ViewManagerMessage payload, MessageType messageType, ScalarClock timestamp) {
@@ -29,7 +51,10 @@ public class ReliabilityMessage implements Comparable<ReliabilityMessage> {
         this.messageType = messageType;
         this.payload = payload;
         this.referenceMessageID = messageID;
+        this.referenceMessageIDs = null;
+        this.messages = null;
         this.timestamp = timestamp;
+        this.sequenceNumber = 0;
     }
 
     protected ReliabilityMessage(UUID messageID, UUID referenceMessageID, ScalarClock timestamp) {
@@ -37,8 +62,110 @@ public class ReliabilityMessage implements Comparable<ReliabilityMessage> {
         this.messageType = MessageType.ACK;
         this.payload = null;
         this.referenceMessageID = referenceMessageID;
+        this.referenceMessageIDs = null;
+        this.messages = null;
         this.timestamp = timestamp;
+        this.sequenceNumber = 0;
     }
+
+    protected ReliabilityMessage(UUID messageID, List<UUID> referenceMessageIDs, ScalarClock timestamp) {
+        this.messageID = messageID;
+        this.messageType = MessageType.ACK_BATCH;
+        this.payload = null;
+        this.referenceMessageID = null;
+        this.referenceMessageIDs = referenceMessageIDs;
+        this.messages = null;
+        this.timestamp = timestamp;
+        this.sequenceNumber = 0;
+    }
+
+    /**
+     * Build a {@link MessageType#DATA_BATCH} message, its timestamp is the one of the last message it carries
+     */
+    protected ReliabilityMessage(UUID messageID, List<ReliabilityMessage> messages) {
+        this.messageID = messageID;
+        this.messageType = MessageType.DATA_BATCH;
+        this.payload = null;
+        this.referenceMessageID = messageID;
+        this.referenceMessageIDs = null;
+        this.messages = messages;
+        this.timestamp = messages.get(messages.size() - 1).timestamp;
+        this.sequenceNumber = 0;
+    }
+
+    private ReliabilityMessage(UUID messageID, UUID referenceMessageID, List<UUID> referenceMessageIDs,
+                               List<ReliabilityMessage> messages, MessageType messageType,
+                               KnowledgeableMessage payload, ScalarClock timestamp, int sequenceNumber) {
+        this.messageID = messageID;
+        this.messageType = messageType;
+        this.payload = payload;
+        this.referenceMessageID = referenceMessageID;
+        this.referenceMessageIDs = referenceMessageIDs;
+        this.messages = messages;
+        this.timestamp = timestamp;
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Build a {@link MessageType#ORDER} message
+     *
+     * @param messageID        the ID of the message
+     * @param orderedMessageID the ID of the message being ordered
+     * @param sequence         the sequence number assigned to the message, as the event ID of a clock of process 0
+     */
+    static ReliabilityMessage order(UUID messageID, UUID orderedMessageID, ScalarClock sequence) {
+        return new ReliabilityMessage(messageID, orderedMessageID, null, null, MessageType.ORDER, null, sequence, 0);
+    }
+
+    /**
+     * Build a {@link MessageType#NACK} message
+     *
+     * @param messageID      the ID of the message
+     * @param sequenceNumber the position of the missing message in the stream of the receiver of the NACK
+     * @param timestamp      the timestamp of the message
+     */
+    static ReliabilityMessage nack(UUID messageID, int sequenceNumber, ScalarClock timestamp) {
+        return new ReliabilityMessage(messageID, null, null, null, MessageType.NACK, null, timestamp, sequenceNumber);
+    }
+
+    /**
+     * Build a {@link MessageType#SKIP} message
+     *
+     * @param messageID      the ID of the message
+     * @param sequenceNumber the position of the message that won't be sent again in the stream of the sender
+     * @param timestamp      the timestamp of the message
+     */
+    static ReliabilityMessage skip(UUID messageID, int sequenceNumber, ScalarClock timestamp) {
+        return new ReliabilityMessage(messageID, null, null, null, MessageType.SKIP, null, timestamp, sequenceNumber);
+    }
+
+    /**
+     * @return a copy of the message at the given position of the stream of its sender
+     */
+    ReliabilityMessage withSequenceNumber(int sequenceNumber) {
+        return new ReliabilityMessage(messageID, referenceMessageID, referenceMessageIDs, messages, messageType,
+                payload, timestamp, sequenceNumber);
+    }
+
+    /**
+     * Rebuild a message from all its fields, used when decoding a message received from the network
+     */
+    public static ReliabilityMessage of(UUID messageID, UUID referenceMessageID, List<UUID> referenceMessageIDs,
+                                        List<ReliabilityMessage> messages, MessageType messageType,
+                                        KnowledgeableMessage payload, ScalarClock timestamp) {
+        return of(messageID, referenceMessageID, referenceMessageIDs, messages, messageType, payload, timestamp, 0);
+    }
+
+    /**
+     * Rebuild a message from all its fields, used when decoding a message received from the network
+     */
+    public static ReliabilityMessage of(UUID messageID, UUID referenceMessageID, List<UUID> referenceMessageIDs,
+                                        List<ReliabilityMessage> messages, MessageType messageType,
+                                        KnowledgeableMessage payload, ScalarClock timestamp, int sequenceNumber) {
+        return new ReliabilityMessage(messageID, referenceMessageID, referenceMessageIDs, messages, messageType,
+                payload, timestamp, sequenceNumber);
+    }
+
     public KnowledgeableMessage getPayload() {
         return payload;
     }
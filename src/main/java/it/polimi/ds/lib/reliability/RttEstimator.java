@@ -0,0 +1,91 @@
+package it.polimi.ds.lib.reliability;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the round trip time towards each peer from the time elapsed between sending a message and receiving its
+ * ACK, following the algorithm of Jacobson and Karels (RFC 6298): a smoothed RTT and its mean deviation are updated
+ * with every sample and the retransmission timeout is the smoothed RTT plus four times the deviation.
+ */
+public class RttEstimator {
+    /**
+     * Lower bound of the retransmission timeout in milliseconds, it avoids retransmitting when a peer is just a bit
+     * slower than usual
+     */
+    static final long MIN_RTO = 200;
+
+    /**
+     * Upper bound of the retransmission timeout in milliseconds, also applied after the backoff
+     */
+    static final long MAX_RTO = 60000;
+
+    private final Map<UUID, Estimate> estimates = new ConcurrentHashMap<>();
+
+    /**
+     * Timeout used for a peer without samples
+     */
+    private final long initialRto;
+
+    /**
+     * @param initialRto the retransmission timeout in milliseconds used until the first sample of a peer is received
+     */
+    public RttEstimator(long initialRto) {
+        this.initialRto = initialRto;
+    }
+
+    /**
+     * Add a round trip measured towards a peer, it must not come from a retransmitted message since it would be
+     * impossible to tell which transmission the ACK refers to
+     *
+     * @param peer     the peer that sent the ACK
+     * @param rttNanos the time elapsed between sending the message and receiving the ACK
+     */
+    public void sample(UUID peer, long rttNanos) {
+        double rtt = (double) rttNanos / TimeUnit.MILLISECONDS.toNanos(1);
+        estimates.compute(peer, (ignored, estimate) -> estimate == null ? Estimate.first(rtt) : estimate.update(rtt));
+    }
+
+    /**
+     * @param peer the peer of which the estimate is requested
+     * @return the smoothed RTT in milliseconds, or -1 if no round trip towards the peer has been measured yet
+     */
+    public double getRtt(UUID peer) {
+        Estimate estimate = estimates.get(peer);
+        return estimate == null ? -1 : estimate.srtt;
+    }
+
+    /**
+     * @param peer    the peer the message is waiting for
+     * @param retries the number of times the message has already been retransmitted
+     * @return the time in milliseconds to wait for the ACK before retransmitting, doubled for every retry
+     */
+    public long getTimeout(UUID peer, int retries) {
+        Estimate estimate = estimates.get(peer);
+        long rto = estimate == null ? initialRto : Math.max(MIN_RTO, Math.round(estimate.srtt + 4 * estimate.rttvar));
+        return Math.min(MAX_RTO, rto << Math.min(retries, 16));
+    }
+
+    /**
+     * Forget the estimate of a peer, e.g. after it disconnected
+     */
+    public void remove(UUID peer) {
+        estimates.remove(peer);
+    }
+
+    private record Estimate(double srtt, double rttvar) {
+        private static final double ALPHA = 1.0 / 8;
+
+        private static final double BETA = 1.0 / 4;
+
+        static Estimate first(double rtt) {
+            return new Estimate(rtt, rtt / 2);
+        }
+
+        Estimate update(double rtt) {
+            return new Estimate((1 - ALPHA) * srtt + ALPHA * rtt, (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt));
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package it.polimi.ds.lib.utils;
+
+import it.polimi.ds.lib.communication.message.BasicMessage;
+import it.polimi.ds.lib.communication.message.DataMessage;
+import it.polimi.ds.lib.communication.message.DiscoveryMessage;
+import it.polimi.ds.lib.communication.message.MessageType;
+import it.polimi.ds.lib.reliability.ReliabilityMessage;
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.KnowledgeableMessage;
+import it.polimi.ds.lib.vsync.KnowledgeableMessageType;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import it.polimi.ds.lib.vsync.faultTolerance.Checkpoint;
+import it.polimi.ds.lib.vsync.view.message.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Hand-written compact encoding of the messages exchanged by the {@link it.polimi.ds.lib.communication.CommunicationLayer},
+ * used in place of the reflective Gson serialization.
+ * <p>A frame starts with {@link #MAGIC} followed by the tag of its {@link MessageType}, the timestamp and the sender.
+ * UUIDs are written as 16 fixed bytes, integers and clocks as zig-zag varints, enums as a single tag byte (their
+ * ordinal) and payloads as raw bytes prefixed by their length. Fields that may be null are preceded by a presence
+ * byte.</p>
+ * <p>The {@link ViewManagerMessage#uuid} is not transmitted: it only identifies the message on the device that
+ * created it.</p>
+ */
+public final class BinaryMessageCodec {
+    /**
+     * First byte of every binary frame, it can't be confused with the first byte of a JSON frame
+     */
+    public static final byte MAGIC = (byte) 0xB1;
+
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+    private static final it.polimi.ds.lib.reliability.MessageType[] RELIABILITY_TYPES =
+            it.polimi.ds.lib.reliability.MessageType.values();
+    private static final KnowledgeableMessageType[] KNOWLEDGEABLE_TYPES = KnowledgeableMessageType.values();
+    private static final ViewChangeType[] VIEW_CHANGE_TYPES = ViewChangeType.values();
+
+    private BinaryMessageCodec() {
+    }
+
+    /**
+     * Encode a message into a new byte array
+     *
+     * @param message the message to encode
+     * @return the binary frame
+     */
+    public static byte[] encode(BasicMessage message) {
+        Writer writer = new Writer(estimateSize(message));
+        writeMessage(writer, message);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Encode a message preceded by its length as a 4 bytes int, ready to be written on a connection, without copying
+     * the encoded message into a separate frame
+     *
+     * @param message the message to encode
+     * @return a buffer containing the length prefix and the encoded message between its position and its limit
+     */
+    public static ByteBuffer encodeFrame(BasicMessage message) {
+        Writer writer = new Writer(Integer.BYTES + estimateSize(message));
+        writer.size = Integer.BYTES;
+        writeMessage(writer, message);
+        ByteBuffer frame = ByteBuffer.wrap(writer.bytes, 0, writer.size);
+        frame.putInt(0, writer.size - Integer.BYTES);
+        return frame;
+    }
+
+    private static void writeMessage(Writer writer, BasicMessage message) {
+        writer.writeByte(MAGIC);
+        writer.writeByte(message.messageType.ordinal());
+        writer.writeVarLong(message.timestamp.toInstant(ZoneOffset.UTC).toEpochMilli());
+        writer.writeUUID(message.senderUID);
+        switch (message.messageType) {
+            case DATA -> writeReliabilityMessage(writer, ((DataMessage) message).payload);
+            case DISCOVERY -> writer.writeVarInt(((DiscoveryMessage) message).random);
+        }
+    }
+
+    /**
+     * Decode a message from the remaining bytes of the buffer
+     *
+     * @param buffer the buffer positioned at the start of the frame
+     * @return the decoded message
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static BasicMessage decode(ByteBuffer buffer) {
+        return decode(buffer, false);
+    }
+
+    /**
+     * Decode a message from the remaining bytes of the buffer
+     *
+     * @param buffer      the buffer positioned at the start of the frame
+     * @param shareBuffer whether the application payload can be a view over the buffer instead of a copy, the buffer
+     *                    must then never be reused
+     * @return the decoded message
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static BasicMessage decode(ByteBuffer buffer, boolean shareBuffer) {
+        try {
+            if (buffer.get() != MAGIC) throw new IllegalArgumentException("Not a binary frame");
+            MessageType type = MESSAGE_TYPES[buffer.get()];
+            LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(readVarLong(buffer)), ZoneOffset.UTC);
+            UUID senderUID = readUUID(buffer);
+            return switch (type) {
+                case DATA -> new DataMessage(timestamp, senderUID, readReliabilityMessage(buffer, shareBuffer));
+                case DISCOVERY -> new DiscoveryMessage(timestamp, senderUID, readVarInt(buffer));
+            };
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed binary frame", e);
+        }
+    }
+
+    private static int estimateSize(BasicMessage message) {
+        int size = 64;
+        if (message instanceof DataMessage dataMessage) size += estimateSize(dataMessage.payload);
+        return size;
+    }
+
+    private static int estimateSize(ReliabilityMessage message) {
+        if (message == null) return 0;
+        int size = message.payload instanceof VSyncMessage vSyncMessage ? vSyncMessage.getPayloadLength() : 0;
+        if (message.messages != null) {
+            for (ReliabilityMessage inner : message.messages)
+                size += 64 + estimateSize(inner);
+        }
+        return size;
+    }
+
+    private static void writeReliabilityMessage(Writer writer, ReliabilityMessage message) {
+        if (!writer.writePresence(message)) return;
+        writer.writeByte(message.messageType.ordinal());
+        writer.writeUUID(message.messageID);
+        writer.writeUUID(message.referenceMessageID);
+        writer.writeUUIDList(message.referenceMessageIDs);
+        if (writer.writePresence(message.timestamp)) {
+            writer.writeVarInt(message.timestamp.processID());
+            writer.writeVarInt(message.timestamp.eventID());
+        }
+        writer.writeVarInt(message.sequenceNumber);
+        writeKnowledgeableMessage(writer, message.payload);
+        if (writer.writePresence(message.messages)) {
+            writer.writeVarInt(message.messages.size());
+            for (ReliabilityMessage inner : message.messages)
+                writeReliabilityMessage(writer, inner);
+        }
+    }
+
+    private static ReliabilityMessage readReliabilityMessage(ByteBuffer buffer, boolean shareBuffer) {
+        if (!readPresence(buffer)) return null;
+        it.polimi.ds.lib.reliability.MessageType type = RELIABILITY_TYPES[buffer.get()];
+        UUID messageID = readUUID(buffer);
+        UUID referenceMessageID = readUUID(buffer);
+        List<UUID> referenceMessageIDs = readUUIDList(buffer);
+        ScalarClock timestamp = readPresence(buffer) ? new ScalarClock(readVarInt(buffer), readVarInt(buffer)) : null;
+        int sequenceNumber = readVarInt(buffer);
+        KnowledgeableMessage payload = readKnowledgeableMessage(buffer, shareBuffer);
+        List<ReliabilityMessage> messages = null;
+        if (readPresence(buffer)) {
+            int size = readCount(buffer);
+            messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                messages.add(readReliabilityMessage(buffer, shareBuffer));
+        }
+        return ReliabilityMessage.of(messageID, referenceMessageID, referenceMessageIDs, messages, type, payload,
+                timestamp, sequenceNumber);
+    }
+
+    private static void writeKnowledgeableMessage(Writer writer, KnowledgeableMessage message) {
+        if (!writer.writePresence(message)) return;
+        writer.writeByte(message.knowledgeableMessageType.ordinal());
+        if (message.knowledgeableMessageType == KnowledgeableMessageType.VSYNC) {
+            VSyncMessage vSyncMessage = (VSyncMessage) message;
+            writer.writeByte(vSyncMessage.batch ? 1 : 0);
+            writer.writeBytes(vSyncMessage.getPayloadBuffer());
+        } else {
+            writeViewMessage(writer, (ViewManagerMessage) message);
+        }
+    }
+
+    private static KnowledgeableMessage readKnowledgeableMessage(ByteBuffer buffer, boolean shareBuffer) {
+        if (!readPresence(buffer)) return null;
+        if (KNOWLEDGEABLE_TYPES[buffer.get()] == KnowledgeableMessageType.VSYNC) {
+            boolean batch = buffer.get() != 0;
+            VSyncMessage message = shareBuffer ? new VSyncMessage(readSlice(buffer)) : new VSyncMessage(readBytes(buffer));
+            message.batch = batch;
+            return message;
+        } else {
+            return readViewMessage(buffer);
+        }
+    }
+
+    private static void writeViewMessage(Writer writer, ViewManagerMessage message) {
+        writer.writeByte(message.messageType.ordinal());
+        switch (message.messageType) {
+            case INIT_VIEW -> {
+                InitialTopologyMessage m = (InitialTopologyMessage) message;
+                writer.writeUUID(m.viewManagerId);
+                writer.writeVarInt(m.destinationProcessID);
+                writer.writeUUIDList(m.topology);
+                writer.writeUUID(m.substituteViewManagerId);
+                writer.writeVarInt(m.checkpointCounter);
+            }
+            case CONFIRM -> {
+                ConfirmViewChangeMessage m = (ConfirmViewChangeMessage) message;
+                writer.writeUUID(m.senderUid);
+                if (writer.writePresence(m.confirmedAction)) writer.writeByte(m.confirmedAction.ordinal());
+                if (writer.writePresence(m.cut)) {
+                    writer.writeVarInt(m.cut.processID());
+                    writer.writeVarInt(m.cut.eventID());
+                }
+                writer.writeVarInt(m.sequence);
+                if (writer.writePresence(m.orders)) {
+                    writer.writeVarInt(m.orders.size());
+                    m.orders.forEach((messageID, sequenceNumber) -> {
+                        writer.writeUUID(messageID);
+                        writer.writeVarInt(sequenceNumber);
+                    });
+                }
+            }
+            case RECOVERY_REQUEST -> {
+                RecoveryRequestMessage m = (RecoveryRequestMessage) message;
+                writer.writeVarInt(m.lastCheckpointID);
+                writer.writeVarInt(m.offset);
+                writer.writeUUID(m.senderUUID);
+                writeCheckpoints(writer, m.checkpoints);
+            }
+            case RECOVERY_PACKET -> {
+                RecoveryPacketMessage m = (RecoveryPacketMessage) message;
+                writeCheckpoints(writer, m.checkpoints);
+                writer.writeVarInt(m.offset);
+                writer.writeVarInt(m.nextCheckpointID);
+                writer.writeVarInt(m.nextOffset);
+            }
+            case CONNECT_REQ -> writer.writeUUID(((ConnectRequestMessage) message).senderUid);
+            case DISCONNECTED_CLIENT -> {
+                DisconnectedClientMessage m = (DisconnectedClientMessage) message;
+                writer.writeUUID(m.disconnectedClientUID);
+                writer.writeUUID(m.newViewManagerUID);
+                writer.writeUUID(m.newSubstituteViewManagerID);
+            }
+            case NEW_HOST -> {
+                NewHostMessage m = (NewHostMessage) message;
+                writer.writeBytes(m.newHostAddress == null ? null : m.newHostAddress.getAddress());
+                writer.writeUUID(m.newHostId);
+                writer.writeVarInt(m.newHostRandom);
+            }
+            case CHECKPOINT -> {
+                CheckpointMessage m = (CheckpointMessage) message;
+                if (writer.writePresence(m.cut)) {
+                    writer.writeVarInt(m.cut.processID());
+                    writer.writeVarInt(m.cut.eventID());
+                }
+                writer.writeByte(m.commit ? 1 : 0);
+            }
+            case FREEZE_VIEW, RESTART_VIEW -> {
+                // no fields other than the type
+            }
+        }
+    }
+
+    private static ViewManagerMessage readViewMessage(ByteBuffer buffer) {
+        ViewChangeType type = VIEW_CHANGE_TYPES[buffer.get()];
+        return switch (type) {
+            case INIT_VIEW -> {
+                UUID viewManagerId = readUUID(buffer);
+                int destinationProcessID = readVarInt(buffer);
+                List<UUID> topology = readUUIDList(buffer);
+                UUID substituteViewManagerId = readUUID(buffer);
+                yield new InitialTopologyMessage(viewManagerId, destinationProcessID, topology,
+                        substituteViewManagerId, readVarInt(buffer));
+            }
+            case CONFIRM -> {
+                UUID senderUid = readUUID(buffer);
+                ViewChangeType confirmedAction = readPresence(buffer) ? VIEW_CHANGE_TYPES[buffer.get()] : null;
+                ScalarClock cut = readPresence(buffer) ? new ScalarClock(readVarInt(buffer), readVarInt(buffer)) : null;
+                int sequence = readVarInt(buffer);
+                Map<UUID, Integer> orders = readPresence(buffer) ? readOrders(buffer) : null;
+                yield cut != null ? new ConfirmViewChangeMessage(senderUid, confirmedAction, cut) :
+                        new ConfirmViewChangeMessage(senderUid, confirmedAction, sequence, orders);
+            }
+            case RECOVERY_REQUEST -> {
+                RecoveryRequestMessage m = new RecoveryRequestMessage(readVarInt(buffer), readVarInt(buffer),
+                        readUUID(buffer));
+                m.checkpoints = readCheckpoints(buffer);
+                yield m;
+            }
+            case RECOVERY_PACKET -> new RecoveryPacketMessage(readCheckpoints(buffer), readVarInt(buffer),
+                    readVarInt(buffer), readVarInt(buffer));
+            case CONNECT_REQ -> new ConnectRequestMessage(readUUID(buffer));
+            case DISCONNECTED_CLIENT -> new DisconnectedClientMessage(readUUID(buffer), readUUID(buffer),
+                    readUUID(buffer));
+            case NEW_HOST -> {
+                byte[] address = readBytes(buffer);
+                try {
+                    yield new NewHostMessage(address == null ? null : InetAddress.getByAddress(address),
+                            readUUID(buffer), readVarInt(buffer));
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("Malformed host address", e);
+                }
+            }
+            case CHECKPOINT -> new CheckpointMessage(
+                    readPresence(buffer) ? new ScalarClock(readVarInt(buffer), readVarInt(buffer)) : null,
+                    buffer.get() != 0);
+            case FREEZE_VIEW -> new FreezeViewMessage();
+            case RESTART_VIEW -> new RestartViewMessage();
+        };
+    }
+
+    private static void writeCheckpoints(Writer writer, List<Checkpoint> checkpoints) {
+        if (!writer.writePresence(checkpoints)) return;
+        writer.writeVarInt(checkpoints.size());
+        for (Checkpoint checkpoint : checkpoints) {
+            writer.writeVarInt(checkpoint.getCheckpointID());
+            writer.writeVarInt(checkpoint.getMessages().size());
+            for (byte[] message : checkpoint.getMessages())
+                writer.writeBytes(message);
+        }
+    }
+
+    private static ArrayList<Checkpoint> readCheckpoints(ByteBuffer buffer) {
+        if (!readPresence(buffer)) return null;
+        int size = readCount(buffer);
+        ArrayList<Checkpoint> checkpoints = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int checkpointID = readVarInt(buffer);
+            int messages = readCount(buffer);
+            List<byte[]> bytes = new ArrayList<>(messages);
+            for (int j = 0; j < messages; j++)
+                bytes.add(readBytes(buffer));
+            checkpoints.add(new Checkpoint(checkpointID, bytes));
+        }
+        return checkpoints;
+    }
+
+    private static Map<UUID, Integer> readOrders(ByteBuffer buffer) {
+        int size = readCount(buffer);
+        Map<UUID, Integer> orders = new HashMap<>(size);
+        for (int i = 0; i < size; i++)
+            orders.put(readUUID(buffer), readVarInt(buffer));
+        return orders;
+    }
+
+    private static boolean readPresence(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    private static UUID readUUID(ByteBuffer buffer) {
+        if (!readPresence(buffer)) return null;
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static List<UUID> readUUIDList(ByteBuffer buffer) {
+        if (!readPresence(buffer)) return null;
+        int size = readCount(buffer);
+        List<UUID> uuids = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            uuids.add(readUUID(buffer));
+        return uuids;
+    }
+
+    /**
+     * Read a byte array as a view over the buffer, advancing its position
+     */
+    private static ByteBuffer readSlice(ByteBuffer buffer) {
+        if (!readPresence(buffer)) return null;
+        int length = readCount(buffer);
+        ByteBuffer slice = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        if (!readPresence(buffer)) return null;
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read the length of a byte array or the number of elements of a list, checked before anything is allocated:
+     * every byte or element takes at least a byte of the frame
+     *
+     * @throws IllegalArgumentException if the count is negative or larger than the rest of the frame
+     */
+    private static int readCount(ByteBuffer buffer) {
+        int count = readVarInt(buffer);
+        if (count < 0 || count > buffer.remaining())
+            throw new IllegalArgumentException("Malformed binary frame, invalid length " + count);
+        return count;
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        return (int) readVarLong(buffer);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long raw = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) throw new IllegalArgumentException("Malformed varint");
+            b = buffer.get();
+            raw |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    /**
+     * Growable byte array used to build a frame
+     */
+    private static final class Writer {
+        private byte[] bytes;
+        private int size = 0;
+
+        private Writer(int initialCapacity) {
+            this.bytes = new byte[initialCapacity];
+        }
+
+        private void ensureCapacity(int additional) {
+            if (size + additional > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) b;
+        }
+
+        /**
+         * Write whether the value is present
+         *
+         * @return true if the value is not null and must be written
+         */
+        boolean writePresence(Object value) {
+            writeByte(value == null ? 0 : 1);
+            return value != null;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(Long.BYTES);
+            for (int i = Long.BYTES - 1; i >= 0; i--)
+                bytes[size++] = (byte) (value >>> (i * 8));
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value);
+        }
+
+        void writeVarLong(long value) {
+            long raw = (value << 1) ^ (value >> 63);
+            ensureCapacity(10);
+            while ((raw & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((raw & 0x7F) | 0x80);
+                raw >>>= 7;
+            }
+            bytes[size++] = (byte) raw;
+        }
+
+        void writeUUID(UUID uuid) {
+            if (!writePresence(uuid)) return;
+            writeLong(uuid.getMostSignificantBits());
+            writeLong(uuid.getLeastSignificantBits());
+        }
+
+        void writeUUIDList(List<UUID> uuids) {
+            if (!writePresence(uuids)) return;
+            writeVarInt(uuids.size());
+            for (UUID uuid : uuids)
+                writeUUID(uuid);
+        }
+
+        void writeBytes(byte[] value) {
+            if (!writePresence(value)) return;
+            writeVarInt(value.length);
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        void writeBytes(ByteBuffer value) {
+            if (!writePresence(value)) return;
+            writeVarInt(value.remaining());
+            ensureCapacity(value.remaining());
+            value.duplicate().get(bytes, size, value.remaining());
+            size += value.remaining();
+        }
+
+        byte[] toByteArray() {
+            return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+        }
+    }
+}
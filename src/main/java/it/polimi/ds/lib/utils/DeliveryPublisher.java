@@ -0,0 +1,123 @@
+package it.polimi.ds.lib.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Publishes to its subscribers the items taken from a blocking source, such as the delivery queue of a layer, so that
+ * the application doesn't need a thread blocked on the source for each consumer.
+ * <p>The items are taken by a single dispatcher thread, started with the first subscriber, and handed to a
+ * {@link SubmissionPublisher}: each subscriber has a bounded buffer and receives the items only as it requests them.
+ * When a buffer is full the dispatcher waits, so a slow subscriber stops the source from being consumed instead of
+ * making the buffers grow. Items taken while there is no subscriber are dropped.</p>
+ */
+public class DeliveryPublisher<T> implements Flow.Publisher<T>, AutoCloseable {
+    private final Supplier<T> source;
+
+    private final String name;
+
+    private final ExecutorService executor;
+
+    private final SubmissionPublisher<T> publisher;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private volatile Thread dispatcher;
+
+    /**
+     * @param source the blocking source of the items, it is called by the dispatcher thread only
+     * @param name   the name of the dispatcher thread
+     */
+    public DeliveryPublisher(Supplier<T> source, String name) {
+        this(source, name, Flow.defaultBufferSize());
+    }
+
+    /**
+     * @param source         the blocking source of the items, it is called by the dispatcher thread only
+     * @param name           the name of the dispatcher thread
+     * @param bufferCapacity the maximum number of items buffered for each subscriber
+     */
+    public DeliveryPublisher(Supplier<T> source, String name, int bufferCapacity) {
+        this.source = source;
+        this.name = name;
+        ThreadFactory subscriberThreads = Threads.named(name + "::subscriber");
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = subscriberThreads.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        publisher.subscribe(subscriber);
+        start();
+    }
+
+    /**
+     * Register a listener called with every item, one at a time
+     *
+     * @param listener the listener
+     * @return a future completed when the publisher is closed, or completed exceptionally if the listener throws
+     */
+    public CompletableFuture<Void> consume(Consumer<? super T> listener) {
+        CompletableFuture<Void> future = publisher.consume(listener);
+        start();
+        return future;
+    }
+
+    /**
+     * @return the number of registered subscribers
+     */
+    public int getNumberOfSubscribers() {
+        return publisher.getNumberOfSubscribers();
+    }
+
+    /**
+     * Stop the dispatcher and complete the subscribers
+     */
+    @Override
+    public void close() {
+        publisher.close();
+        Thread thread = dispatcher;
+        if (thread != null) thread.interrupt();
+        executor.shutdown();
+    }
+
+    private void start() {
+        if (!started.compareAndSet(false, true)) return;
+        Thread thread = Threads.named(name).newThread(this::dispatch);
+        thread.setDaemon(true);
+        dispatcher = thread;
+        thread.start();
+    }
+
+    private void dispatch() {
+        while (!publisher.isClosed()) {
+            T item;
+            try {
+                item = source.get();
+            } catch (RuntimeException e) {
+                // the source is interrupted when the publisher is closed
+                if (publisher.isClosed()) return;
+                publisher.closeExceptionally(e);
+                return;
+            }
+            if (item == null) continue;
+            try {
+                // waits while the buffer of a subscriber is full
+                publisher.submit(item);
+            } catch (IllegalStateException e) {
+                return;
+            }
+        }
+    }
+}
@@ -27,6 +27,8 @@ public class KnowledgeableMessageTypeAdapter implements JsonSerializer<Knowledge
         if (knowledgeableMessage.knowledgeableMessageType == KnowledgeableMessageType.VIEW) {
             return jsonSerializationContext.serialize(knowledgeableMessage, ViewManagerMessage.class);
         } else {
+            // a payload received as a view over a frame is only kept as an array once serialized
+            ((VSyncMessage) knowledgeableMessage).getPayload();
             return jsonSerializationContext.serialize(knowledgeableMessage, VSyncMessage.class);
         }
     }
@@ -1,29 +1,67 @@
 package it.polimi.ds.lib.utils;
 
-import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-
+/**
+ * Priority queue whose elements can be retrieved only once they are marked stable, in the order given by their natural
+ * ordering. The elements are kept in a binary heap indexed by a key, so that marking an element stable is a lookup
+ * instead of a linear search; since the stability doesn't change the order, the heap is not touched at all. The
+ * waiting consumers are signalled only when the head of the queue is stable.
+ */
 public class StablePriorityBlockingQueue<E extends Comparable<E>> {
-    private final BlockingQueue<Envelope> queue;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Binary heap of the elements, ordered by their natural ordering
+     */
+    @SuppressWarnings("unchecked")
+    private Envelope<E>[] heap = (Envelope<E>[]) new Envelope<?>[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    /**
+     * Envelope of each element in the queue, by key
+     */
+    private final Map<Object, Envelope<E>> index = new HashMap<>();
+
+    /**
+     * Extracts the key identifying an element, two elements with the same key are the same element
+     */
+    private final Function<? super E, ?> keyExtractor;
+
     private final ReentrantLock lock;
     private final Condition stableCondition;
 
     public StablePriorityBlockingQueue() {
-        this.queue = new PriorityBlockingQueue<>();
+        this(Function.identity());
+    }
+
+    /**
+     * @param keyExtractor the function giving the key of an element, e.g. the ID of a message
+     */
+    public StablePriorityBlockingQueue(Function<? super E, ?> keyExtractor) {
+        this.keyExtractor = keyExtractor;
         this.lock = new ReentrantLock();
         this.stableCondition = lock.newCondition();
     }
 
+    /**
+     * Add an element that is not stable yet; an element already in the queue is not added again
+     */
     public void add(E element) {
         lock.lock();
         try {
-            Envelope envelope = new Envelope(element);
-            queue.add(envelope);
-            stableCondition.signalAll();
+            Object key = keyExtractor.apply(element);
+            if (index.containsKey(key)) return;
+            Envelope<E> envelope = new Envelope<>(element);
+            index.put(key, envelope);
+            insert(envelope);
+            // a new element is never stable, so it can't unblock a consumer
         } finally {
             lock.unlock();
         }
@@ -32,11 +70,15 @@ public class StablePriorityBlockingQueue<E extends Comparable<E>> {
     public void markStable(E element) {
         lock.lock();
         try {
-            if (!queue.remove(new Envelope(element))) {
+            Envelope<E> envelope = index.get(keyExtractor.apply(element));
+            if (envelope == null) {
                 System.err.println("Marking as stable a message not present");
+                envelope = new Envelope<>(element);
+                index.put(keyExtractor.apply(element), envelope);
+                insert(envelope);
             }
-            queue.add(new Envelope(element, true));
-            stableCondition.signalAll();
+            envelope.stable = true;
+            if (heap[0] == envelope) stableCondition.signal();
         } finally {
             lock.unlock();
         }
@@ -45,11 +87,15 @@ public class StablePriorityBlockingQueue<E extends Comparable<E>> {
     public E retrieveStable() throws InterruptedException {
         lock.lock();
         try {
-            while (queue.isEmpty() || !queue.peek().stable) {
+            while (size == 0 || !heap[0].stable) {
                 // Wait for the head element to become stable or for the queue to have elements
                 stableCondition.await();
             }
-            return queue.poll().element;
+            Envelope<E> head = removeHead();
+            index.remove(keyExtractor.apply(head.element));
+            // the new head may already be stable, pass the signal on to another consumer
+            if (size > 0 && heap[0].stable) stableCondition.signal();
+            return head.element;
         } finally {
             lock.unlock();
         }
@@ -57,40 +103,61 @@ public class StablePriorityBlockingQueue<E extends Comparable<E>> {
 
     // Additional methods for thread-safe access to queue size and element stability
     public int size() {
-        return queue.size();
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private class Envelope implements Comparable<Envelope> {
-        final E element;
-        boolean stable;
+    private void insert(Envelope<E> envelope) {
+        if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+        siftUp(size++, envelope);
+    }
 
-        private Envelope(E element) {
-            this.element = element;
-            this.stable = false;
-        }
+    private Envelope<E> removeHead() {
+        Envelope<E> head = heap[0];
+        Envelope<E> last = heap[--size];
+        heap[size] = null;
+        if (size > 0) siftDown(0, last);
+        return head;
+    }
 
-        private Envelope(E element, boolean stable) {
-            this.stable = stable;
-            this.element = element;
+    private void siftUp(int position, Envelope<E> envelope) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (envelope.compareTo(heap[parent]) >= 0) break;
+            heap[position] = heap[parent];
+            position = parent;
         }
+        heap[position] = envelope;
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(element);
+    private void siftDown(int position, Envelope<E> envelope) {
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            if (child + 1 < size && heap[child + 1].compareTo(heap[child]) < 0) child++;
+            if (envelope.compareTo(heap[child]) <= 0) break;
+            heap[position] = heap[child];
+            position = child;
         }
+        heap[position] = envelope;
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            //noinspection unchecked
-            Envelope envelope = (Envelope) o;
-            return Objects.equals(element, envelope.element);
+    private static class Envelope<E extends Comparable<E>> implements Comparable<Envelope<E>> {
+        final E element;
+        boolean stable;
+
+        private Envelope(E element) {
+            this.element = element;
+            this.stable = false;
         }
 
         @Override
-        public int compareTo(Envelope o) {
+        public int compareTo(Envelope<E> o) {
             return element.compareTo(o.element);
         }
     }
-}
\ No newline at end of file
+}
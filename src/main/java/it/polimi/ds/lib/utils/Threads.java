@@ -0,0 +1,99 @@
+package it.polimi.ds.lib.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates every thread used by the layers of the stack, so that the kind of threads can be chosen in a single place.
+ * <p>The threads are platform threads by default; with the {@code rmpi.threads} system property set to
+ * {@code VIRTUAL} they are virtual threads, which make many instances of the middleware in the same JVM cheap. Virtual
+ * threads require Java 21, on older runtimes platform threads are used. A custom factory can also be set with
+ * {@link #setFactory(ThreadFactory)} before starting the middleware.</p>
+ * <p>Virtual threads are always daemon threads: in this mode the JVM doesn't wait for the protocol loops to exit.</p>
+ */
+public final class Threads {
+    private final static Logger logger = LogManager.getLogger();
+
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    /**
+     * Kind of the threads created by the default factory, can be set with the {@code rmpi.threads} system property
+     */
+    static final Mode MODE = Mode.valueOf(System.getProperty("rmpi.threads", Mode.PLATFORM.name()).toUpperCase());
+
+    private static volatile ThreadFactory factory = defaultFactory(MODE);
+
+    private Threads() {
+    }
+
+    /**
+     * Replace the factory of the threads, affecting only the threads created afterward
+     *
+     * @param threadFactory the factory to use, the name of the threads is set after their creation
+     */
+    public static void setFactory(ThreadFactory threadFactory) {
+        factory = Objects.requireNonNull(threadFactory);
+    }
+
+    public static ThreadFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Create and start a thread
+     *
+     * @param name the name of the thread
+     * @param task the task run by the thread
+     * @return the started thread
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread thread = named(name).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @param name the name given to the created threads
+     * @return a factory creating threads with the current factory and the given name
+     */
+    public static ThreadFactory named(String name) {
+        ThreadFactory threadFactory = factory;
+        return task -> {
+            Thread thread = threadFactory.newThread(task);
+            thread.setName(name);
+            return thread;
+        };
+    }
+
+    /**
+     * @param name the name of the thread running the scheduled tasks
+     * @return a scheduler running its tasks on a single thread
+     */
+    public static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(named(name));
+    }
+
+    /**
+     * @return the factory of the mode, platform threads if the mode is not supported by the runtime
+     */
+    static ThreadFactory defaultFactory(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            try {
+                // Thread.ofVirtual().factory(), looked up reflectively since the library is compiled for Java 17
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not supported by this runtime, using platform threads");
+            }
+        }
+        return Thread::new;
+    }
+}
@@ -6,8 +6,11 @@ import it.polimi.ds.lib.vsync.view.ViewManagerBuilder;
 import it.polimi.ds.lib.reliability.ReliabilityLayer;
 import it.polimi.ds.lib.vsync.faultTolerance.FaultRecovery;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class VSyncLayer {
 
@@ -19,6 +22,23 @@ public class VSyncLayer {
 
     final PriorityBlockingQueue<FaultRecovery.VSyncWrapper> buffer = new PriorityBlockingQueue<>();
 
+    /**
+     * Payloads of the last received batch not returned yet by {@link #receiveMessage()}
+     */
+    private final Deque<ByteBuffer> received = new ArrayDeque<>();
+
+    /**
+     * Payloads of the last stable batch not returned yet by {@link #retrieveStableMessage()}
+     */
+    private final Deque<ByteBuffer> stable = new ArrayDeque<>();
+
+    /**
+     * Locks of the two deques, held while waiting for the next message; locks instead of monitors so that a virtual
+     * thread waiting for a message doesn't keep its carrier thread
+     */
+    private final ReentrantLock receivedLock = new ReentrantLock();
+    private final ReentrantLock stableLock = new ReentrantLock();
+
     public VSyncLayer() {
         faultRecovery = new FaultRecovery(this);
         ViewManagerBuilder viewManagerBuilder = new ViewManagerBuilder(this, faultRecovery);
@@ -35,14 +55,67 @@ public class VSyncLayer {
         return viewManager;
     }
 
+    /**
+     * Source of the messages unpacked by a reader, e.g. the delivered or the stable messages
+     */
+    @FunctionalInterface
+    interface MessageSource {
+        VSyncMessage take() throws InterruptedException;
+    }
+
     public byte[] receiveMessage() {
-        return ((VSyncMessage) handler.getMessage().payload).payload;
+        receivedLock.lock();
+        try {
+            return nextPayload(received, () -> (VSyncMessage) handler.getMessage().payload);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            receivedLock.unlock();
+        }
+    }
+
+    /**
+     * @return a read-only view of the payload of the next message, not copied from the received frame when it is big
+     */
+    public ByteBuffer receiveMessageBuffer() {
+        receivedLock.lock();
+        try {
+            return nextPayloadBuffer(received, () -> (VSyncMessage) handler.getMessage().payload);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            receivedLock.unlock();
+        }
     }
 
     public void sendMessage(byte[] payload) {
         handler.sendMessage(new VSyncMessage(payload));
     }
 
+    /**
+     * @return a future completed when the message becomes stable
+     */
+    public CompletableFuture<Void> sendMessageAsync(byte[] payload) {
+        return handler.sendMessageAsync(new VSyncMessage(payload));
+    }
+
+    /**
+     * Send the remaining content of a buffer without copying it, the content must not change afterward since it is
+     * read again on retransmission
+     */
+    public void sendMessage(ByteBuffer payload) {
+        handler.sendMessage(new VSyncMessage(payload));
+    }
+
+    /**
+     * Send several payloads as a single message, acknowledged and made stable once; they are delivered one at a time
+     * and in order by {@link #receiveMessage()} and {@link #retrieveStableMessage()}
+     */
+    public void sendMessages(List<byte[]> payloads) {
+        if (payloads.isEmpty()) return;
+        handler.sendMessage(VSyncMessage.batch(payloads));
+    }
+
     public void addMessage(ReliabilityMessage message) {
         buffer.add(new FaultRecovery.VSyncWrapper((VSyncMessage) message.payload,message.timestamp ));
     }
@@ -53,9 +126,62 @@ public class VSyncLayer {
 
     public byte[] retrieveStableMessage() {
         try {
-            return ((VSyncMessage) buffer.take().message()).payload;
+            stableLock.lock();
+            try {
+                return nextPayload(stable, () -> buffer.take().message());
+            } finally {
+                stableLock.unlock();
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * @return a read-only view of the payload of the next stable message
+     */
+    public ByteBuffer retrieveStableMessageBuffer() {
+        try {
+            stableLock.lock();
+            try {
+                return nextPayloadBuffer(stable, () -> buffer.take().message());
+            } finally {
+                stableLock.unlock();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return the next payload to a reader, unpacking the next messages of the source once the payloads of the last
+     * batch have all been returned; a batch may hold no payload at all
+     *
+     * @param pending the payloads of the last batch not returned yet
+     * @param source  the source of the messages
+     * @return the payload, the one of a message that is not a batch is not copied
+     */
+    static byte[] nextPayload(Deque<ByteBuffer> pending, MessageSource source) throws InterruptedException {
+        while (pending.isEmpty()) {
+            VSyncMessage message = source.take();
+            if (!message.batch) return message.getPayload();
+            pending.addAll(message.getPayloads());
+        }
+        return toArray(pending.poll());
+    }
+
+    /**
+     * Return a read-only view of the next payload to a reader, see {@link #nextPayload(Deque, MessageSource)}
+     */
+    static ByteBuffer nextPayloadBuffer(Deque<ByteBuffer> pending, MessageSource source) throws InterruptedException {
+        while (pending.isEmpty())
+            pending.addAll(source.take().getPayloads());
+        return pending.poll();
+    }
+
+    private static byte[] toArray(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
 }
@@ -1,10 +1,107 @@
 package it.polimi.ds.lib.vsync;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 public class VSyncMessage extends KnowledgeableMessage {
+    /**
+     * The application payload; null while the message is only a view over a buffer, use {@link #getPayload()} to
+     * read it
+     */
     public byte[] payload;
 
+    /**
+     * Read-only view of the payload when the message was built from a buffer, e.g. a slice of the received frame;
+     * never serialized, the array is materialized when needed
+     */
+    private transient volatile ByteBuffer view;
+
+    /**
+     * Whether the payload packs several application payloads, each one prefixed by its length, that are acknowledged
+     * and made stable together
+     */
+    public boolean batch;
+
     public VSyncMessage(byte[] payload) {
         super(KnowledgeableMessageType.VSYNC);
         this.payload = payload;
     }
+
+    /**
+     * Build a message whose payload is the remaining content of the buffer, without copying it; the content must not
+     * change afterward
+     *
+     * @param payload the buffer containing the payload between its position and its limit
+     */
+    public VSyncMessage(ByteBuffer payload) {
+        super(KnowledgeableMessageType.VSYNC);
+        this.view = payload == null ? null : payload.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Pack several application payloads into a single message, delivered in the same order
+     *
+     * @param payloads the payloads to pack
+     * @return the batch message
+     */
+    public static VSyncMessage batch(List<byte[]> payloads) {
+        int size = 0;
+        for (byte[] payload : payloads) size += Integer.BYTES + payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] payload : payloads) buffer.putInt(payload.length).put(payload);
+        VSyncMessage message = new VSyncMessage(buffer.array());
+        message.batch = true;
+        return message;
+    }
+
+    /**
+     * @return read-only views of the application payloads in the message, in order: the ones packed in a batch or
+     * the payload itself
+     * @throws IllegalArgumentException if the batch is malformed
+     */
+    public List<ByteBuffer> getPayloads() {
+        ByteBuffer buffer = getPayloadBuffer();
+        if (!batch) return buffer == null ? List.of() : List.of(buffer);
+        List<ByteBuffer> payloads = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < Integer.BYTES) throw new IllegalArgumentException("Malformed batch");
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("Malformed batch");
+            payloads.add(buffer.slice(buffer.position(), length));
+            buffer.position(buffer.position() + length);
+        }
+        return payloads;
+    }
+
+    /**
+     * @return the payload as an array, copied from the buffer the first time if the message is a view
+     */
+    public byte[] getPayload() {
+        if (payload == null && view != null) {
+            ByteBuffer buffer = view.duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            payload = bytes;
+        }
+        return payload;
+    }
+
+    /**
+     * @return a read-only view of the payload, sharing its content without copying it, or null if there is no payload
+     */
+    public ByteBuffer getPayloadBuffer() {
+        ByteBuffer buffer = view;
+        if (buffer != null) return buffer.duplicate();
+        return payload == null ? null : ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the length of the payload in bytes, 0 if there is no payload
+     */
+    public int getPayloadLength() {
+        ByteBuffer buffer = view;
+        if (buffer != null) return buffer.remaining();
+        return payload == null ? 0 : payload.length;
+    }
 }
@@ -0,0 +1,373 @@
+package it.polimi.ds.lib.vsync.faultTolerance;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Binary file of a checkpoint, read through a memory mapping so that a node can start reading from any clock without
+ * loading the whole checkpoint.
+ * <p>The file starts with a header made of a magic number, the version of the format, the ID of the checkpoint, the
+ * number of records and the offset of the index. Each record is prefixed by its length and holds the timestamp of
+ * the message, its batch flag and its payload, the same content of the entries of {@link Checkpoint#getMessages()}.
+ * The records are sorted by timestamp and followed by the index, which holds the timestamp and the offset of each
+ * record.</p>
+ */
+public class CheckpointFile {
+    private static final int MAGIC = 0x52435031;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Magic number, version, checkpoint ID, number of records and offset of the index
+     */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + Long.BYTES;
+
+    /**
+     * Process ID, event ID and offset of a record
+     */
+    private static final int INDEX_ENTRY_SIZE = 2 * Integer.BYTES + Long.BYTES;
+
+    /**
+     * Process ID, event ID and batch flag preceding the payload of a record
+     */
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES + 1;
+
+    /**
+     * Maximum size of a file, which is mapped as a single buffer
+     */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private final MappedByteBuffer map;
+
+    private final int checkpointID;
+
+    private final int size;
+
+    private final int indexOffset;
+
+    private CheckpointFile(MappedByteBuffer map, int checkpointID, int size, int indexOffset) {
+        this.map = map;
+        this.checkpointID = checkpointID;
+        this.size = size;
+        this.indexOffset = indexOffset;
+    }
+
+    /**
+     * @param message the message to encode
+     * @return the record of the message, as stored in a checkpoint
+     */
+    public static byte[] encode(FaultRecovery.VSyncWrapper message) {
+        ByteBuffer payload = message.message().getPayloadBuffer();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + (payload == null ? 0 : payload.remaining()));
+        record.putInt(message.timestamp().processID()).putInt(message.timestamp().eventID())
+                .put((byte) (message.message().batch ? 1 : 0));
+        if (payload != null) record.put(payload);
+        return record.array();
+    }
+
+    /**
+     * @param record the record, between the position and the limit of the buffer
+     * @return the message of the record, whose payload is a view over the buffer
+     * @throws IllegalArgumentException if the record is too short
+     */
+    public static FaultRecovery.VSyncWrapper decode(ByteBuffer record) {
+        if (record.remaining() < RECORD_HEADER_SIZE) throw new IllegalArgumentException("Malformed checkpoint record");
+        int position = record.position();
+        ScalarClock timestamp = new ScalarClock(record.getInt(position), record.getInt(position + Integer.BYTES));
+        VSyncMessage message = new VSyncMessage(record.slice(position + RECORD_HEADER_SIZE,
+                record.remaining() - RECORD_HEADER_SIZE));
+        message.batch = record.get(position + 2 * Integer.BYTES) != 0;
+        return new FaultRecovery.VSyncWrapper(message, timestamp);
+    }
+
+    /**
+     * Write a checkpoint to a file, replacing it atomically once it is complete
+     *
+     * @param path       the path of the file
+     * @param checkpoint the checkpoint, whose records are sorted by timestamp
+     */
+    public static void write(Path path, Checkpoint checkpoint) {
+        write(path, checkpoint.getCheckpointID(), checkpoint.getMessages().stream().map(ByteBuffer::wrap));
+    }
+
+    /**
+     * Write a checkpoint to a file, one record at a time, replacing it atomically once it is complete
+     *
+     * @param path         the path of the file
+     * @param checkpointID the ID of the checkpoint
+     * @param records      the records, e.g. read from other checkpoint files, sorted by timestamp
+     * @throws IllegalArgumentException if the file would be larger than {@link #MAX_SIZE}
+     */
+    public static void write(Path path, int checkpointID, Stream<ByteBuffer> records) {
+        try (Writer writer = new Writer(path, checkpointID)) {
+            records.forEachOrdered(writer::append);
+            writer.publish();
+        }
+    }
+
+    /**
+     * Writes a checkpoint to a temporary file next to its path as its records arrive, e.g. in chunks from another
+     * node, so that they are never held in memory together; the file replaces the one at the path only when it is
+     * published, and is deleted if it is closed before
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path path;
+
+        private final Path temporary;
+
+        private final int checkpointID;
+
+        private final FileChannel channel;
+
+        /**
+         * Timestamp and offset of each record, written after the records
+         */
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+
+        private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+
+        private long offset = HEADER_SIZE;
+
+        private int size = 0;
+
+        private boolean published = false;
+
+        /**
+         * @param path         the path of the file
+         * @param checkpointID the ID of the checkpoint
+         * @throws UncheckedIOException if the temporary file can't be created
+         */
+        public Writer(Path path, int checkpointID) {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            this.checkpointID = checkpointID;
+            try {
+                channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                channel.position(offset);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing checkpoint " + checkpointID, e);
+            }
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public int getCheckpointID() {
+            return checkpointID;
+        }
+
+        /**
+         * @return the number of records appended so far
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Append a record, which must not precede the ones appended before
+         *
+         * @param record the record, between the position and the limit of the buffer
+         * @throws IllegalArgumentException if the file would be larger than {@link #MAX_SIZE}
+         * @throws UncheckedIOException     if the record can't be written
+         */
+        public void append(ByteBuffer record) {
+            int length = record.remaining();
+            if (offset + Integer.BYTES + length + (size + 1L) * INDEX_ENTRY_SIZE > MAX_SIZE)
+                throw new IllegalArgumentException("Checkpoint " + checkpointID + " exceeds the maximum size " +
+                        "of a checkpoint file");
+            entry.clear().putInt(record.getInt(record.position()))
+                    .putInt(record.getInt(record.position() + Integer.BYTES)).putLong(offset);
+            index.write(entry.array(), 0, INDEX_ENTRY_SIZE);
+            try {
+                writeFully(channel, ByteBuffer.allocate(Integer.BYTES).putInt(length).flip());
+                writeFully(channel, record.duplicate());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing checkpoint " + checkpointID, e);
+            }
+            offset += Integer.BYTES + length;
+            size++;
+        }
+
+        /**
+         * Complete the file with the index and the header, then move it to its path
+         *
+         * @throws UncheckedIOException if the file can't be written
+         */
+        public void publish() {
+            try {
+                writeFully(channel, ByteBuffer.wrap(index.toByteArray()));
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION)
+                        .putInt(checkpointID).putInt(size).putLong(offset).flip();
+                channel.position(0);
+                writeFully(channel, header);
+                channel.force(true);
+                channel.close();
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing checkpoint " + checkpointID, e);
+            }
+            published = true;
+        }
+
+        /**
+         * Discard the temporary file, unless the checkpoint was published
+         */
+        @Override
+        public void close() {
+            if (published) return;
+            try {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error discarding checkpoint " + checkpointID, e);
+            }
+        }
+    }
+
+    /**
+     * Map a checkpoint file
+     *
+     * @param path the path of the file
+     * @return the mapped file
+     * @throws UncheckedIOException     if the file can't be read
+     * @throws IllegalArgumentException if the file is not a valid checkpoint
+     */
+    public static CheckpointFile open(Path path) {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_SIZE) throw new IllegalArgumentException(path + " is too large to be mapped");
+            // the mapping stays valid after the channel is closed
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading checkpoint " + path, e);
+        }
+        if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC)
+            throw new IllegalArgumentException(path + " is not a checkpoint file");
+        if (map.getInt(Integer.BYTES) != VERSION)
+            throw new IllegalArgumentException("Unsupported version " + map.getInt(Integer.BYTES) + " of " + path);
+        int size = map.getInt(3 * Integer.BYTES);
+        long indexOffset = map.getLong(4 * Integer.BYTES);
+        if (size < 0 || indexOffset < HEADER_SIZE || indexOffset + (long) size * INDEX_ENTRY_SIZE != map.limit())
+            throw new IllegalArgumentException("Malformed checkpoint file " + path);
+        return new CheckpointFile(map, map.getInt(2 * Integer.BYTES), size, (int) indexOffset);
+    }
+
+    public int getCheckpointID() {
+        return checkpointID;
+    }
+
+    /**
+     * @return the number of records in the checkpoint
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the timestamp of the i-th record
+     */
+    public ScalarClock timestampAt(int i) {
+        int entry = indexOffset + i * INDEX_ENTRY_SIZE;
+        return new ScalarClock(map.getInt(entry), map.getInt(entry + Integer.BYTES));
+    }
+
+    /**
+     * @param from the timestamp to search
+     * @return the position of the first record whose timestamp is not before the given one, {@link #size()} if
+     * there is none
+     */
+    public int indexOf(ScalarClock from) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestampAt(middle).compareTo(from) < 0) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @return the i-th record, as stored in {@link Checkpoint#getMessages()}, as a read-only view over the file
+     */
+    public ByteBuffer recordAt(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i);
+        int offset = (int) map.getLong(indexOffset + i * INDEX_ENTRY_SIZE + 2 * Integer.BYTES);
+        return map.slice(offset + Integer.BYTES, map.getInt(offset)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Read the messages from a timestamp on, decoding one record at a time
+     *
+     * @param from the timestamp of the first message to read, null to read all the messages
+     * @return the messages in timestamp order, their payloads are views over the file
+     */
+    public Stream<FaultRecovery.VSyncWrapper> stream(ScalarClock from) {
+        int first = from == null ? 0 : indexOf(from);
+        Iterator<FaultRecovery.VSyncWrapper> iterator = new Iterator<>() {
+            private int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public FaultRecovery.VSyncWrapper next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return decode(recordAt(next++));
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliterator(iterator, size - first,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return the checkpoint with all its records copied from the file, e.g. to send it to another node
+     */
+    public Checkpoint toCheckpoint() {
+        return toCheckpoint(checkpointID, 0, size);
+    }
+
+    /**
+     * @param checkpointID the ID of the returned checkpoint
+     * @param from         the position of the first record
+     * @param to           the position after the last record
+     * @return a checkpoint with the records in the range copied from the file
+     */
+    public Checkpoint toCheckpoint(int checkpointID, int from, int to) {
+        List<byte[]> records = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            ByteBuffer record = recordAt(i);
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            records.add(bytes);
+        }
+        return new Checkpoint(checkpointID, records);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
@@ -0,0 +1,521 @@
+package it.polimi.ds.lib.vsync.faultTolerance;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.utils.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the checkpoints on disk, holding in memory only their metadata.
+ * <p>Each checkpoint is a delta, the messages made stable since the previous one, written to its own
+ * {@link CheckpointFile}. A background compactor merges the oldest deltas into a base snapshot, whose companion
+ * properties file records where the records of each merged delta start, so that any checkpoint can still be sent to a
+ * recovering node. The deltas beyond the retention limits, by count, age or size, are merged. A base that reached its
+ * maximum size is left as it is and the following deltas are merged into a new one.</p>
+ */
+public class CheckpointStore implements AutoCloseable {
+    private final static Logger logger = LogManager.getLogger();
+
+    /**
+     * Number of most recent deltas that are not merged into the base; can be set with the
+     * {@code rmpi.checkpoint.retain.count} system property
+     */
+    static final int RETAIN_COUNT = Integer.getInteger("rmpi.checkpoint.retain.count", 8);
+
+    /**
+     * Age in milliseconds after which a delta is merged into the base, 0 disables the limit; can be set with the
+     * {@code rmpi.checkpoint.retain.age} system property
+     */
+    static final long RETAIN_AGE = Long.getLong("rmpi.checkpoint.retain.age", 0);
+
+    /**
+     * Total size in bytes of the deltas after which the oldest ones are merged into the base, 0 disables the limit;
+     * can be set with the {@code rmpi.checkpoint.retain.bytes} system property
+     */
+    static final long RETAIN_BYTES = Long.getLong("rmpi.checkpoint.retain.bytes", 0);
+
+    /**
+     * Size in bytes after which no more deltas are merged into a base, at most {@link CheckpointFile#MAX_SIZE}; can be
+     * set with the {@code rmpi.checkpoint.base.bytes} system property
+     */
+    static final long MAX_BASE_BYTES = Long.getLong("rmpi.checkpoint.base.bytes", 1 << 30);
+
+    /**
+     * Milliseconds between two runs of the compactor besides the ones after each new checkpoint, needed by the age
+     * limit
+     */
+    private static final long COMPACTION_INTERVAL = 60_000;
+
+    private static final String DELTA_PREFIX = "Checkpoint";
+
+    private static final String BASE_PREFIX = "Base";
+
+    private static final String FILE_SUFFIX = ".bin";
+
+    /**
+     * Metadata of a checkpoint file
+     *
+     * @param starts   position of the first record of each checkpoint in the file, by checkpoint ID
+     * @param messages number of records in the file
+     * @param bytes    size of the file
+     * @param created  creation time of the file in milliseconds
+     * @param path     the file
+     */
+    record Metadata(NavigableMap<Integer, Integer> starts, int messages, long bytes, long created, Path path) {
+        int firstID() {
+            return starts.firstKey();
+        }
+
+        int lastID() {
+            return starts.lastKey();
+        }
+
+        /**
+         * @return the position after the last record of a checkpoint in the file
+         */
+        int endOf(int checkpointID) {
+            Integer next = starts.higherKey(checkpointID);
+            return next == null ? messages : starts.get(next);
+        }
+    }
+
+    /**
+     * Records of a checkpoint read from a position, with the position of the records that follow
+     *
+     * @param checkpoint       the checkpoint with the records of the chunk only
+     * @param offset           position in the checkpoint of the first record of the chunk
+     * @param nextCheckpointID the checkpoint of the next chunk, -1 if this is the last one
+     * @param nextOffset       position in its checkpoint of the first record of the next chunk
+     */
+    public record Chunk(Checkpoint checkpoint, int offset, int nextCheckpointID, int nextOffset) {
+    }
+
+    private final Path directory;
+
+    private final int retainCount;
+
+    private final long retainAge;
+
+    private final long retainBytes;
+
+    private final long maxBaseBytes;
+
+    /**
+     * Guards the metadata, never held while reading or writing a file
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final NavigableMap<Integer, Metadata> deltas = new TreeMap<>();
+
+    /**
+     * The bases by their first checkpoint ID, only the last one is merged into
+     */
+    private final NavigableMap<Integer, Metadata> bases = new TreeMap<>();
+
+    /**
+     * Whether the compactor is merging
+     */
+    private boolean compacting;
+
+    /**
+     * Incremented when stored checkpoints are discarded, so that a compaction started before is discarded too
+     */
+    private int generation = 0;
+
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Open the store in a directory, loading the metadata of the checkpoints written by a previous run
+     *
+     * @param directory   the directory of the checkpoint files
+     * @param retainCount number of most recent deltas that are not merged
+     * @param retainAge   age in milliseconds after which a delta is merged, 0 for no limit
+     * @param retainBytes size of the deltas after which the oldest ones are merged, 0 for no limit
+     */
+    public CheckpointStore(Path directory, int retainCount, long retainAge, long retainBytes) {
+        this(directory, retainCount, retainAge, retainBytes, MAX_BASE_BYTES);
+    }
+
+    /**
+     * Open the store in a directory, loading the metadata of the checkpoints written by a previous run
+     *
+     * @param directory    the directory of the checkpoint files
+     * @param retainCount  number of most recent deltas that are not merged
+     * @param retainAge    age in milliseconds after which a delta is merged, 0 for no limit
+     * @param retainBytes  size of the deltas after which the oldest ones are merged, 0 for no limit
+     * @param maxBaseBytes size after which a new base is started
+     */
+    public CheckpointStore(Path directory, int retainCount, long retainAge, long retainBytes, long maxBaseBytes) {
+        this.directory = directory;
+        this.retainCount = retainCount;
+        this.retainAge = retainAge;
+        this.retainBytes = retainBytes;
+        this.maxBaseBytes = Math.min(maxBaseBytes, CheckpointFile.MAX_SIZE);
+        load();
+        compactor = Threads.newScheduler("CheckpointStore::compactor");
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL, COMPACTION_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open the store with the retention limits given by the system properties
+     */
+    static CheckpointStore open(Path directory) {
+        return new CheckpointStore(directory, RETAIN_COUNT, RETAIN_AGE, RETAIN_BYTES);
+    }
+
+    /**
+     * Write a checkpoint as a new delta, then let the compactor apply the retention limits. A checkpoint with the ID
+     * of a stored one starts a new history: the stored checkpoint and the ones after it are discarded, together with
+     * the bases that contain any of them.
+     *
+     * @param checkpoint the checkpoint, whose records are sorted by timestamp
+     * @throws UncheckedIOException if the checkpoint can't be written
+     */
+    public void add(Checkpoint checkpoint) {
+        try (CheckpointFile.Writer writer = writer(checkpoint.getCheckpointID())) {
+            checkpoint.getMessages().forEach(record -> writer.append(ByteBuffer.wrap(record)));
+            add(writer);
+        }
+    }
+
+    /**
+     * Start writing a checkpoint as a new delta, e.g. one chunk at a time; the checkpoint is not stored until it is
+     * added with {@link #add(CheckpointFile.Writer)}
+     *
+     * @param checkpointID the ID of the checkpoint
+     * @return the writer of the checkpoint file, to close once done
+     * @throws UncheckedIOException if the file can't be created
+     */
+    public CheckpointFile.Writer writer(int checkpointID) {
+        return new CheckpointFile.Writer(directory.resolve(DELTA_PREFIX + checkpointID + FILE_SUFFIX), checkpointID);
+    }
+
+    /**
+     * Publish a checkpoint written with {@link #writer(int)} as a new delta, with the same effects of
+     * {@link #add(Checkpoint)}
+     *
+     * @param writer the writer holding all the records of the checkpoint
+     * @throws UncheckedIOException if the checkpoint can't be written
+     */
+    public void add(CheckpointFile.Writer writer) {
+        int checkpointID = writer.getCheckpointID();
+        discardFrom(checkpointID);
+        writer.publish();
+        Metadata metadata = metadataOf(writer.getPath(), new TreeMap<>(Map.of(checkpointID, 0)));
+        lock.lock();
+        try {
+            deltas.put(checkpointID, metadata);
+        } finally {
+            lock.unlock();
+        }
+        compactor.execute(this::compact);
+    }
+
+    /**
+     * Read the checkpoints from an ID on, e.g. to send them to a recovering node
+     *
+     * @param checkpointID the first checkpoint to read
+     * @return the checkpoints in order, each one with its records
+     * @throws IllegalArgumentException if there is no such checkpoint
+     */
+    public ArrayList<Checkpoint> read(int checkpointID) {
+        ArrayList<Checkpoint> checkpoints = new ArrayList<>();
+        for (Metadata metadata : snapshot()) {
+            if (metadata.lastID() < checkpointID) continue;
+            CheckpointFile file = CheckpointFile.open(metadata.path());
+            for (Map.Entry<Integer, Integer> start : metadata.starts().tailMap(checkpointID, true).entrySet())
+                checkpoints.add(file.toCheckpoint(start.getKey(), start.getValue(), metadata.endOf(start.getKey())));
+        }
+        if (checkpoints.isEmpty()) throw new IllegalArgumentException("Checkpoint not found");
+        return checkpoints;
+    }
+
+    /**
+     * Read the messages of a checkpoint from a timestamp on, decoding one record at a time
+     *
+     * @param checkpointID the checkpoint to read
+     * @param from         the timestamp of the first message to read, null to read all the messages
+     * @return the messages in timestamp order
+     * @throws IllegalArgumentException if there is no such checkpoint
+     */
+    public Stream<FaultRecovery.VSyncWrapper> stream(int checkpointID, ScalarClock from) {
+        for (Metadata metadata : snapshot()) {
+            Integer start = metadata.starts().get(checkpointID);
+            if (start == null) continue;
+            CheckpointFile file = CheckpointFile.open(metadata.path());
+            Stream<FaultRecovery.VSyncWrapper> messages = IntStream.range(start, metadata.endOf(checkpointID))
+                    .mapToObj(i -> CheckpointFile.decode(file.recordAt(i)));
+            return from == null ? messages : messages.filter(message -> message.timestamp().compareTo(from) >= 0);
+        }
+        throw new IllegalArgumentException("Checkpoint not found");
+    }
+
+    /**
+     * Read the records of a checkpoint from a position on, up to a size, e.g. to stream the checkpoints to a
+     * recovering node one chunk at a time
+     *
+     * @param checkpointID the checkpoint to read
+     * @param offset       the position in the checkpoint of the first record to read
+     * @param maxBytes     the maximum size of the records of the chunk, the first record is read anyway
+     * @return the chunk, the next one starts from the following checkpoint once this one is read to the end
+     * @throws IllegalArgumentException if there is no such checkpoint
+     */
+    public Chunk chunk(int checkpointID, int offset, int maxBytes) {
+        List<Metadata> files = snapshot();
+        for (int i = 0; i < files.size(); i++) {
+            Metadata metadata = files.get(i);
+            Integer start = metadata.starts().get(checkpointID);
+            if (start == null) continue;
+            CheckpointFile file = CheckpointFile.open(metadata.path());
+            int end = metadata.endOf(checkpointID);
+            int position = start + offset;
+            List<byte[]> records = new ArrayList<>();
+            for (long bytes = 0; position < end; position++) {
+                ByteBuffer record = file.recordAt(position);
+                if (!records.isEmpty() && bytes + record.remaining() > maxBytes) break;
+                byte[] copy = new byte[record.remaining()];
+                record.get(copy);
+                records.add(copy);
+                bytes += copy.length;
+            }
+            Checkpoint checkpoint = new Checkpoint(checkpointID, records);
+            if (position < end) return new Chunk(checkpoint, offset, checkpointID, position - start);
+            Integer next = metadata.starts().higherKey(checkpointID);
+            if (next == null && i + 1 < files.size()) next = files.get(i + 1).firstID();
+            return new Chunk(checkpoint, offset, next == null ? -1 : next, 0);
+        }
+        throw new IllegalArgumentException("Checkpoint not found");
+    }
+
+    /**
+     * @return the metadata of the checkpoints files, the bases first and then the deltas in order
+     */
+    public List<Metadata> snapshot() {
+        lock.lock();
+        try {
+            List<Metadata> files = new ArrayList<>(bases.size() + deltas.size());
+            files.addAll(bases.values());
+            files.addAll(deltas.values());
+            return files;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+    }
+
+    /**
+     * Merge into the last base the deltas beyond the retention limits, the oldest first, starting a new base when it
+     * is full
+     */
+    void compact() {
+        List<Metadata> merged = new ArrayList<>();
+        Metadata previousBase;
+        int startGeneration;
+        boolean full = false;
+        lock.lock();
+        try {
+            if (compacting) return;
+            long bytes = deltas.values().stream().mapToLong(Metadata::bytes).sum();
+            long now = System.currentTimeMillis();
+            previousBase = bases.isEmpty() ? null : bases.lastEntry().getValue();
+            // the size of the merged files is an upper bound of the size of the new base
+            long baseBytes = previousBase == null ? 0 : previousBase.bytes();
+            for (Metadata delta : deltas.values()) {
+                boolean tooMany = deltas.size() - merged.size() > retainCount;
+                boolean tooOld = retainAge > 0 && now - delta.created() > retainAge;
+                boolean tooBig = retainBytes > 0 && bytes > retainBytes;
+                if (!tooMany && !tooOld && !tooBig) break;
+                if (baseBytes + delta.bytes() > maxBaseBytes) {
+                    // the following deltas are merged into a new base by the next run
+                    full = true;
+                    if (!merged.isEmpty()) break;
+                    previousBase = null;
+                    baseBytes = 0;
+                }
+                merged.add(delta);
+                bytes -= delta.bytes();
+                baseBytes += delta.bytes();
+            }
+            if (merged.isEmpty()) return;
+            compacting = true;
+            startGeneration = generation;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            Metadata newBase = merge(previousBase, merged);
+            lock.lock();
+            try {
+                if (generation != startGeneration) {
+                    // the merged checkpoints have been discarded meanwhile
+                    deleteBase(newBase.path());
+                    return;
+                }
+                // a base that is merged into keeps its first checkpoint ID, so it is replaced
+                bases.put(newBase.firstID(), newBase);
+                merged.forEach(delta -> deltas.remove(delta.lastID()));
+            } finally {
+                lock.unlock();
+            }
+            // a reader may still have the old files mapped, which stay readable after being deleted
+            if (previousBase != null) deleteBase(previousBase.path());
+            for (Metadata delta : merged) Files.deleteIfExists(delta.path());
+            logger.info("Merged checkpoints " + merged.get(0).firstID() + "-" + newBase.lastID() + " into " +
+                    newBase.path().getFileName());
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            full = false;
+            logger.error("Error compacting the checkpoints: " + e.getMessage());
+        } finally {
+            lock.lock();
+            try {
+                compacting = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (full) compactor.execute(this::compact);
+    }
+
+    private Metadata merge(Metadata previousBase, List<Metadata> merged) throws IOException {
+        List<Metadata> sources = new ArrayList<>();
+        if (previousBase != null) sources.add(previousBase);
+        sources.addAll(merged);
+        NavigableMap<Integer, Integer> starts = new TreeMap<>();
+        List<CheckpointFile> files = new ArrayList<>();
+        int offset = 0;
+        for (Metadata source : sources) {
+            for (Map.Entry<Integer, Integer> start : source.starts().entrySet())
+                starts.put(start.getKey(), offset + start.getValue());
+            offset += source.messages();
+            files.add(CheckpointFile.open(source.path()));
+        }
+        Path path = directory.resolve(BASE_PREFIX + starts.lastKey() + FILE_SUFFIX);
+        // the deltas are consecutive, so the records are appended in order
+        CheckpointFile.write(path, starts.lastKey(), files.stream()
+                .flatMap(file -> IntStream.range(0, file.size()).mapToObj(file::recordAt)));
+        Properties properties = new Properties();
+        starts.forEach((checkpointID, start) -> properties.setProperty(String.valueOf(checkpointID),
+                String.valueOf(start)));
+        Path startsPath = startsPathOf(path);
+        Path temporary = startsPath.resolveSibling(startsPath.getFileName() + ".tmp");
+        try (OutputStream output = Files.newOutputStream(temporary)) {
+            properties.store(output, "Position of the first record of each checkpoint merged in " +
+                    path.getFileName());
+        }
+        Files.move(temporary, startsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return metadataOf(path, starts);
+    }
+
+    private void discardFrom(int checkpointID) {
+        List<Path> discarded = new ArrayList<>();
+        lock.lock();
+        try {
+            bases.values().removeIf(base -> {
+                if (base.lastID() < checkpointID) return false;
+                discarded.add(base.path());
+                discarded.add(startsPathOf(base.path()));
+                return true;
+            });
+            NavigableMap<Integer, Metadata> stale = deltas.tailMap(checkpointID, true);
+            stale.values().forEach(delta -> discarded.add(delta.path()));
+            stale.clear();
+            if (discarded.isEmpty()) return;
+            generation++;
+        } finally {
+            lock.unlock();
+        }
+        logger.warn("Discarding the stored checkpoints from " + checkpointID + ", they belong to an older history");
+        for (Path path : discarded) {
+            try {
+                // the delta with the same ID is replaced when written
+                if (!path.getFileName().toString().equals(DELTA_PREFIX + checkpointID + FILE_SUFFIX))
+                    Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.error("Error deleting the checkpoint file " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Load the metadata of the files in the directory, a base missing its starts is ignored
+     */
+    private void load() {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(FILE_SUFFIX)).sorted().toList();
+        } catch (IOException e) {
+            logger.error("Error listing the checkpoints: " + e.getMessage());
+            return;
+        }
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            try {
+                if (name.startsWith(DELTA_PREFIX)) {
+                    int checkpointID = Integer.parseInt(name.substring(DELTA_PREFIX.length(),
+                            name.length() - FILE_SUFFIX.length()));
+                    deltas.put(checkpointID, metadataOf(path, new TreeMap<>(Map.of(checkpointID, 0))));
+                } else if (name.startsWith(BASE_PREFIX)) {
+                    Properties properties = new Properties();
+                    try (InputStream input = Files.newInputStream(startsPathOf(path))) {
+                        properties.load(input);
+                    }
+                    NavigableMap<Integer, Integer> starts = new TreeMap<>();
+                    properties.forEach((key, value) -> starts.put(Integer.parseInt((String) key),
+                            Integer.parseInt((String) value)));
+                    Metadata metadata = metadataOf(path, starts);
+                    // a crash during a compaction may leave the previous base, which starts from the same checkpoint
+                    bases.merge(metadata.firstID(), metadata, (a, b) -> a.lastID() >= b.lastID() ? a : b);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Ignoring the checkpoint file " + path + ": " + e.getMessage());
+            }
+        }
+        // the deltas already merged by a compaction interrupted before deleting them
+        if (!bases.isEmpty()) deltas.headMap(bases.lastEntry().getValue().lastID(), true).clear();
+        int found = deltas.size() + bases.values().stream().mapToInt(base -> base.starts().size()).sum();
+        if (found > 0) logger.info("Found " + found + " checkpoints in " + directory);
+    }
+
+    private static Metadata metadataOf(Path path, NavigableMap<Integer, Integer> starts) {
+        CheckpointFile file = CheckpointFile.open(path);
+        long bytes;
+        long created;
+        try {
+            bytes = Files.size(path);
+            created = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Metadata(starts, file.size(), bytes, created, path);
+    }
+
+    private static Path startsPathOf(Path base) {
+        String name = base.getFileName().toString();
+        return base.resolveSibling(name.substring(0, name.length() - FILE_SUFFIX.length()) + ".properties");
+    }
+
+    private static void deleteBase(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(startsPathOf(path));
+    }
+}
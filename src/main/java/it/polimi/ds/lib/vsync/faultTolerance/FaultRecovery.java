@@ -1,9 +1,9 @@
 package it.polimi.ds.lib.vsync.faultTolerance;
 
-import com.google.gson.Gson;
 import it.polimi.ds.lib.reliability.ReliabilityLayer;
 import it.polimi.ds.lib.reliability.ReliabilityMessage;
 import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.utils.Threads;
 import it.polimi.ds.lib.vsync.VSyncLayer;
 import it.polimi.ds.lib.vsync.VSyncMessage;
 import org.apache.logging.log4j.LogManager;
@@ -13,43 +13,75 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
-public class FaultRecovery {
+public class FaultRecovery implements AutoCloseable {
 
     private final static Logger logger = LogManager.getLogger();
 
     private final VSyncLayer vSyncLayer;
 
-    private final SortedSet<VSyncWrapper> log = new TreeSet<>();
+    /**
+     * The stable messages logged since the last checkpoint, kept on disk; opened by {@link #openLog(UUID)} once the
+     * identity of the node is known
+     */
+    private volatile WriteAheadLog log;
 
-    private final ArrayList<Checkpoint> checkpoints = new ArrayList<>();
+    /**
+     * The checkpoints written on disk, only their metadata is kept in memory
+     */
+    private final CheckpointStore checkpoints;
 
     private int checkpointCounter = 0;
 
-    private final Gson gson = new Gson();
-
     private final ReentrantLock lock;
     
     private final Condition thresholdCondition;
     
     private final int LOG_THRESHOLD = 100;
 
-    private String CHECKPOINTS_FILE_PATH;
+    /**
+     * Maximum size in bytes of the records sent in a chunk to a recovering node; can be set with the
+     * {@code rmpi.recovery.chunk.bytes} system property
+     */
+    private final int RECOVERY_CHUNK_BYTES = Integer.getInteger("rmpi.recovery.chunk.bytes", 1024 * 1024);
+
+    /**
+     * The checkpoint being received in chunks, whose records received so far are written to a temporary file
+     */
+    private CheckpointFile.Writer recovering;
 
     public final String RECOVERY_FILE_PATH;
 
     private final Properties properties = new Properties();
 
     public FaultRecovery(VSyncLayer vSyncLayer) {
+        this(vSyncLayer, Path.of(System.getProperty("user.home"), "recovery"));
+    }
+
+    /**
+     * Open the checkpoints and the write-ahead log in a directory without waiting for the log to reach the checkpoint
+     * threshold, the checkpoints are created by the caller, e.g. a benchmark
+     * @param directory the directory of the checkpoints and of the log
+     * @throws IllegalStateException if the log is already used by another instance
+     */
+    public FaultRecovery(Path directory) {
+        this(null, directory);
+        log = WriteAheadLog.open(directory.resolve("wal"));
+    }
+
+    private FaultRecovery(VSyncLayer vSyncLayer, Path directory) {
         this.vSyncLayer = vSyncLayer;
         this.lock = new ReentrantLock();
         this.thresholdCondition = lock.newCondition();
 
-        RECOVERY_FILE_PATH = System.getProperty("user.home") + File.separator + "recovery" + File.separator +
-                "checkpoints" + File.separator + "_recoveryCounter.txt";
+        RECOVERY_FILE_PATH = directory + File.separator + "checkpoints" + File.separator + "_recoveryCounter.txt";
 
 
         File recoveryFile = new File(RECOVERY_FILE_PATH);
@@ -61,7 +93,20 @@ public class FaultRecovery {
                 logger.debug("Directory for file recovery created");
             else logger.error("Error creating directory");
         }
-        new Thread(this::checkCondition, "logConditionChecker").start();
+        checkpoints = CheckpointStore.open(recoveryDirectory.toPath());
+    }
+
+    /**
+     * Open the write-ahead log of a node, in a directory of its own under the one given by the {@code rmpi.wal.dir}
+     * system property, and start waiting for the log to reach the checkpoint threshold
+     * @param clientUID the UID of the node, the same after a restart
+     * @throws IllegalStateException if the log of the node is already used by another instance
+     */
+    public void openLog(UUID clientUID) {
+        log = WriteAheadLog.open(Path.of(System.getProperty("rmpi.wal.dir",
+                System.getProperty("user.home") + File.separator + "recovery" + File.separator + "wal"),
+                clientUID.toString()));
+        Threads.start("logConditionChecker", this::checkCondition);
     }
 
     /**
@@ -72,11 +117,11 @@ public class FaultRecovery {
      */
     public void addMissingCheckpoints(ArrayList<Checkpoint> checkpointsToAdd){
         if(checkpointsToAdd.isEmpty()) return;
-        checkpoints.addAll(checkpointsToAdd);
-        checkpoints.sort(Comparator.comparingInt(Checkpoint::getCheckpointID));
-        checkpointCounter = Math.max(checkpoints.get(checkpoints.size() - 1).getCheckpointID(), checkpointCounter) + 1;
+        checkpointsToAdd.sort(Comparator.comparingInt(Checkpoint::getCheckpointID));
+        checkpointCounter = Math.max(checkpointsToAdd.get(checkpointsToAdd.size() - 1).getCheckpointID(),
+                checkpointCounter) + 1;
         saveCheckpoints(checkpointsToAdd);
-        log.clear();
+        WriteAheadLog.delete(log.seal());
     }
 
     /**
@@ -84,16 +129,45 @@ public class FaultRecovery {
      * checkpoints incrementing the counter
      */
     public void doCheckpoint(){
-        List<byte[]> byteList = log.stream().map(vSyncWrapper -> gson.toJson(vSyncWrapper).getBytes()).toList();
+        doCheckpoint(null);
+    }
+
+    /**
+     * This method creates a new checkpoint with the logged messages before a cut, while the later messages keep
+     * being logged; the logged messages after the cut are moved to the log of the next checkpoint
+     * @param cut the clock of the cut, null to put all the logged messages in the checkpoint
+     */
+    public void doCheckpoint(ScalarClock cut){
+        // the messages logged from now on go to a new segment and will be in the next checkpoint
+        List<Path> segments = log.seal();
+        SortedSet<VSyncWrapper> messages = splitAtCut(log, segments, cut);
+        List<byte[]> byteList = messages.stream().map(CheckpointFile::encode).toList();
         Checkpoint checkpoint = new Checkpoint(checkpointCounter, byteList);
         if (!byteList.isEmpty()){
-            writeCheckpointOnFile(byteList);
-            checkpoints.add(checkpoint);
+            writeCheckpointOnFile(checkpoint);
             logger.info("Checkpoint " + (checkpointCounter) + " created successfully");
-            log.clear();
             logger.trace("Log cleared after checkpoint " + (checkpointCounter));
             checkpointCounter++;
         } else logger.debug("There was no need to create a checkpoint, the log is empty");
+        WriteAheadLog.delete(segments);
+    }
+
+    /**
+     * Read the messages of sealed segments of a log, appending again to the log the ones after a cut
+     * @param log the log the segments have been sealed from
+     * @param segments the sealed segments
+     * @param cut the clock of the cut, null to keep all the messages
+     * @return the messages before the cut, in timestamp order
+     */
+    static SortedSet<VSyncWrapper> splitAtCut(WriteAheadLog log, List<Path> segments, ScalarClock cut) {
+        SortedSet<VSyncWrapper> messages = new TreeSet<>(WriteAheadLog.read(segments));
+        if (cut != null) {
+            SortedSet<VSyncWrapper> after = messages.tailSet(new VSyncWrapper(null, cut));
+            after.forEach(message -> log.append(message.message(), message.timestamp()));
+            logger.debug(after.size() + " logged messages are after the cut " + cut);
+            after.clear();
+        }
+        return messages;
     }
 
     /**
@@ -103,25 +177,86 @@ public class FaultRecovery {
      * @return the recovery packet containing the requested checkpoints and the log
      */
     public ArrayList<Checkpoint> recoverCheckpoint(int checkpointID){
-        ArrayList<Checkpoint> checkpointsToReturn = new ArrayList<>();
-        for (Checkpoint checkpoint : checkpoints) {
-            if(checkpoint.getCheckpointID() >= checkpointID){
-                checkpointsToReturn.add(checkpoint);
+        return checkpoints.read(checkpointID);
+    }
+
+    /**
+     * This method reads a chunk of the checkpoints to send to a recovering node, so that they are never loaded whole
+     * @param checkpointID the checkpoint of the chunk
+     * @param offset the position in the checkpoint of the first record of the chunk
+     * @return the chunk and the position of the next one
+     * @throws IllegalArgumentException if there is no such checkpoint
+     */
+    public CheckpointStore.Chunk recoverChunk(int checkpointID, int offset){
+        return checkpoints.chunk(checkpointID, offset, RECOVERY_CHUNK_BYTES);
+    }
+
+    /**
+     * This method adds a chunk of a missing checkpoint, appending its records to a temporary file; the checkpoint is
+     * published once its last chunk is received
+     * @param chunk the checkpoint holding the records of the chunk
+     * @param offset the position in the checkpoint of the first record of the chunk
+     * @param complete whether it is the last chunk of the checkpoint
+     * @return the messages of the chunk, or null if the chunk doesn't follow the records received so far
+     */
+    public List<VSyncWrapper> addMissingChunk(Checkpoint chunk, int offset, boolean complete){
+        if (offset == 0 || recovering == null || chunk.getCheckpointID() != recovering.getCheckpointID()) {
+            discardRecovering();
+            if (offset == 0) recovering = checkpoints.writer(chunk.getCheckpointID());
+        }
+        if (recovering == null || offset != recovering.size()) {
+            logger.warn("Discarded chunk of checkpoint " + chunk.getCheckpointID() + " at " + offset + ", " +
+                    (recovering == null ? 0 : recovering.size()) + " records were received");
+            return null;
+        }
+        int checkpointID = recovering.getCheckpointID();
+        try {
+            chunk.getMessages().forEach(record -> recovering.append(ByteBuffer.wrap(record)));
+            if (complete) {
+                setCheckpointCounter(Math.max(checkpointID, checkpointCounter) + 1);
+                checkpoints.add(recovering);
+                WriteAheadLog.delete(log.seal());
+                logger.debug("Recovered checkpoint " + checkpointID);
             }
+        } catch (UncheckedIOException e) {
+            logger.fatal("Error writing checkpoint to file: " + e.getMessage());
+            discardRecovering();
+            return null;
+        } finally {
+            if (complete) discardRecovering();
+        }
+        return deserializeChecPoints(new ArrayList<>(List.of(chunk)));
+    }
+
+    /**
+     * Discard the checkpoint being received, deleting its temporary file unless it was published
+     */
+    private void discardRecovering() {
+        if (recovering == null) return;
+        try {
+            recovering.close();
+        } catch (UncheckedIOException e) {
+            logger.error("Error discarding checkpoint " + recovering.getCheckpointID() + ": " + e.getMessage());
         }
-        if(checkpointsToReturn.isEmpty()) throw new IllegalArgumentException("Checkpoint not found");
-        else return checkpointsToReturn;
+        recovering = null;
+    }
+
+    /**
+     * Read the messages of a checkpoint from its file, starting from a timestamp, without loading the whole
+     * checkpoint
+     * @param checkpointID the checkpoint to read
+     * @param from the timestamp of the first message to read, null to read all the messages
+     * @return the messages in timestamp order
+     */
+    public Stream<VSyncWrapper> readCheckpoint(int checkpointID, ScalarClock from) {
+        return checkpoints.stream(checkpointID, from);
     }
 
     /**
-     * This method writes the checkpoints on the disk
-     * @param whatToWrite the checkpoints to be written in form of list of byte array
+     * This method writes the checkpoint on the disk
+     * @param checkpoint the checkpoint to be written
      */
-    private void writeCheckpointOnFile(List<byte[]> whatToWrite) {
-        CHECKPOINTS_FILE_PATH = System.getProperty("user.home") + File.separator + "recovery" + File.separator +
-                "checkpoints" + File.separator +
-                "Checkpoint" + checkpointCounter + ".bin";
-        File file = new File(CHECKPOINTS_FILE_PATH);
+    private void writeCheckpointOnFile(Checkpoint checkpoint) {
         File recoveryFile = new File(RECOVERY_FILE_PATH);
 
         if (!recoveryFile.exists()) {
@@ -133,19 +268,10 @@ public class FaultRecovery {
             }
         }
 
-        if (!file.exists()) {
-            try {
-                if (file.createNewFile()) logger.debug("File for checkpoints created");
-                else logger.debug("Impossible to create file");
-            } catch (IOException e) {
-                logger.fatal("Error creating file: " + e.getMessage());
-            }
-        }
         logger.debug("Writing checkpoint " + checkpointCounter + " to file");
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(CHECKPOINTS_FILE_PATH))) {
-            for (byte[] row : whatToWrite)
-                bos.write(row);
-        } catch (IOException e) {
+        try {
+            checkpoints.add(checkpoint);
+        } catch (UncheckedIOException e) {
             logger.fatal("Error writing checkpoint to file: " + e.getMessage());
         }
 
@@ -179,27 +305,12 @@ public class FaultRecovery {
         }
 
         for (Checkpoint checkpoint : whatToWrite) {
-            CHECKPOINTS_FILE_PATH = System.getProperty("user.home") + File.separator + "recovery" + File.separator +
-                    "checkpoints" + File.separator +
-                    "Checkpoint" + checkpoint.getCheckpointID() + ".bin";
-            File file = new File(CHECKPOINTS_FILE_PATH);
-
-            if (!file.exists()) {
-                try {
-                    if (file.createNewFile()) logger.debug("File for checkpoints created");
-                    else logger.debug("Impossible to create file");
-                } catch (IOException e) {
-                    logger.fatal("Error creating file: " + e.getMessage());
-                }
-            }
             logger.debug("Writing checkpoint " + checkpoint.getCheckpointID() + " to file");
-            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(CHECKPOINTS_FILE_PATH))) {
-                for (byte[] row : whatToWrite.stream().map(ch -> gson.toJson(ch).getBytes()).toList())
-                    bos.write(row);
-            } catch (IOException e) {
+            try {
+                checkpoints.add(checkpoint);
+            } catch (UncheckedIOException e) {
                 logger.fatal("Error writing checkpoint to file: " + e.getMessage());
             }
-
         }
     }
 
@@ -208,9 +319,10 @@ public class FaultRecovery {
      * @param message the message to be added to the log
      */
     public void logMessage(VSyncMessage message, ScalarClock timestamp) {
+        // appended outside the lock, so that the messages logged by different threads share the forces to disk
+        log.append(message, timestamp);
         lock.lock();
         try {
-            log.add(new VSyncWrapper(message, timestamp));
             logger.debug("Log size "+log.size());
             thresholdCondition.signalAll();
         } finally {
@@ -225,12 +337,13 @@ public class FaultRecovery {
                 // Wait for the log to reach the threshold to call handleCheckpoint
                 thresholdCondition.await();
             }
-            vSyncLayer.getViewManager().freezeAndCheckpoint();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } finally {
             lock.unlock();
         }
+        // outside the lock, the messages keep being logged during an asynchronous checkpoint
+        vSyncLayer.getViewManager().freezeAndCheckpoint();
     }
 
     public void setCheckpointCounter(int checkpointCounter) {
@@ -251,7 +364,7 @@ public class FaultRecovery {
     public List<VSyncWrapper> deserializeChecPoints(ArrayList<Checkpoint> checkpoints) {
         List<VSyncWrapper> reliabilityMessages = new ArrayList<>();
         for (Checkpoint checkpoint : checkpoints) {
-            checkpoint.getMessages().stream().map(msg -> gson.fromJson(Arrays.toString(msg), VSyncWrapper.class)).forEach(reliabilityMessages::add);
+            checkpoint.getMessages().stream().map(msg -> CheckpointFile.decode(ByteBuffer.wrap(msg))).forEach(reliabilityMessages::add);
         }
         return reliabilityMessages;
     }
@@ -263,6 +376,15 @@ public class FaultRecovery {
         }
     }
 
+    /**
+     * Close the log and the checkpoints, e.g. once a benchmark is done with them
+     */
+    @Override
+    public void close() {
+        if (log != null) log.close();
+        checkpoints.close();
+    }
+
     public Properties getProperties() {
         return properties;
     }
@@ -0,0 +1,457 @@
+package it.polimi.ds.lib.vsync.faultTolerance;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.utils.Threads;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the stable messages that are not in a checkpoint yet, kept on disk instead of on the heap so that
+ * a crash doesn't lose them.
+ * <p>The log is a sequence of segment files, a new one is started when the current one exceeds
+ * {@link #SEGMENT_BYTES} or when a checkpoint {@link #seal() seals} the log; the sealed segments are deleted once the
+ * checkpoint is written. Each record is made of its length, the CRC32 of its content, the timestamp of the message,
+ * the batch flag and the payload; a torn record at the end of the last segment is discarded when the log is opened.</p>
+ * <p>When the records reach the disk depends on the {@link Durability}: with {@link Durability#ALWAYS} the appending
+ * threads wait for their record to be forced, one of them forcing the file for all the records written meanwhile
+ * (group commit).</p>
+ */
+public class WriteAheadLog implements AutoCloseable {
+    private final static Logger logger = LogManager.getLogger();
+
+    public enum Durability {
+        /**
+         * Each append returns once the record is on disk
+         */
+        ALWAYS,
+        /**
+         * The file is forced every {@link #SYNC_INTERVAL} milliseconds, a crash loses at most the records of the
+         * last interval
+         */
+        INTERVAL,
+        /**
+         * The file is never forced, the operating system decides when the records reach the disk
+         */
+        OS
+    }
+
+    /**
+     * When the records are forced to disk; can be set with the {@code rmpi.wal.durability} system property
+     */
+    static final Durability DURABILITY =
+            Durability.valueOf(System.getProperty("rmpi.wal.durability", Durability.INTERVAL.name()).toUpperCase());
+
+    /**
+     * Milliseconds between two forces with {@link Durability#INTERVAL}; can be set with the
+     * {@code rmpi.wal.sync.interval} system property
+     */
+    static final int SYNC_INTERVAL = Integer.getInteger("rmpi.wal.sync.interval", 10);
+
+    /**
+     * Size in bytes after which a new segment is started; can be set with the {@code rmpi.wal.segment.bytes} system
+     * property
+     */
+    static final int SEGMENT_BYTES = Integer.getInteger("rmpi.wal.segment.bytes", 16 * 1024 * 1024);
+
+    private static final int MAGIC = 0x52574131;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    /**
+     * Length, CRC32, process ID, event ID and batch flag of a record
+     */
+    private static final int RECORD_OVERHEAD = 4 * Integer.BYTES + 1;
+
+    private final Path directory;
+
+    private final Durability durability;
+
+    private final int segmentBytes;
+
+    /**
+     * Guards the current segment and the counters, held while a record is written
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile FileChannel channel;
+
+    private FileLock directoryLock;
+
+    private long segmentIndex;
+
+    /**
+     * Number of records in the log, including the ones found when it was opened
+     */
+    private int size;
+
+    /**
+     * Bytes written since the log was opened, across all the segments
+     */
+    private volatile long written;
+
+    /**
+     * Guards {@link #synced} and {@link #syncing}, used by the threads waiting for their records to be forced
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private final Condition syncedCondition = syncLock.newCondition();
+
+    /**
+     * Value of {@link #written} up to which the records are on disk
+     */
+    private long synced;
+
+    /**
+     * Whether a thread is forcing the file on behalf of the others
+     */
+    private boolean syncing;
+
+    /**
+     * The error of a failed force, after which it is unknown which records are on disk: the appends waiting for their
+     * records to be forced fail from then on
+     */
+    private IOException syncFailure;
+
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * Open the log in a directory, keeping the records left by a previous run
+     *
+     * @param directory    the directory of the segments, created if missing
+     * @param durability   when the records are forced to disk
+     * @param segmentBytes size after which a new segment is started
+     * @throws UncheckedIOException if the directory can't be used
+     */
+    public WriteAheadLog(Path directory, Durability durability, int segmentBytes) {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+        try {
+            Files.createDirectories(directory);
+            directoryLock = lockDirectory(directory);
+            List<Path> segments = segments();
+            for (int i = 0; i < segments.size(); i++) {
+                // only the last segment may end with a torn record, the crash happened while writing it
+                size += recover(segments.get(i), i == segments.size() - 1);
+            }
+            if (segments.isEmpty()) {
+                segmentIndex = 0;
+                channel = createSegment(segmentIndex);
+            } else {
+                segmentIndex = indexOf(segments.get(segments.size() - 1));
+                channel = FileChannel.open(segments.get(segments.size() - 1), StandardOpenOption.WRITE);
+                channel.position(channel.size());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening the write-ahead log in " + directory, e);
+        }
+        if (size > 0) logger.info("Recovered " + size + " logged messages from " + directory);
+        if (durability == Durability.INTERVAL) {
+            syncer = Threads.newScheduler("WriteAheadLog::sync");
+            syncer.scheduleWithFixedDelay(() -> {
+                try {
+                    sync(written);
+                } catch (UncheckedIOException e) {
+                    // already logged, the next forces fail the same way
+                }
+            }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        } else syncer = null;
+    }
+
+    /**
+     * Open the log with the configuration given by the system properties
+     *
+     * @param directory the directory of the segments
+     * @throws IllegalStateException if the directory is already used by another instance
+     */
+    static WriteAheadLog open(Path directory) {
+        return new WriteAheadLog(directory, DURABILITY, SEGMENT_BYTES);
+    }
+
+    /**
+     * Append a stable message to the log; with {@link Durability#ALWAYS} waits until it is on disk
+     *
+     * @param message   the message
+     * @param timestamp the timestamp giving the order of the message
+     */
+    public void append(VSyncMessage message, ScalarClock timestamp) {
+        ByteBuffer payload = message.getPayloadBuffer();
+        int payloadLength = payload == null ? 0 : payload.remaining();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payloadLength);
+        record.position(2 * Integer.BYTES);
+        record.putInt(timestamp.processID()).putInt(timestamp.eventID()).put((byte) (message.batch ? 1 : 0));
+        if (payload != null) record.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 2 * Integer.BYTES, record.position() - 2 * Integer.BYTES);
+        record.putInt(0, record.position() - 2 * Integer.BYTES).putInt(Integer.BYTES, (int) crc.getValue()).flip();
+        long end;
+        lock.lock();
+        try {
+            if (channel.position() >= segmentBytes) roll();
+            while (record.hasRemaining()) channel.write(record);
+            size++;
+            end = written += record.limit();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error appending to the write-ahead log", e);
+        } finally {
+            lock.unlock();
+        }
+        if (durability == Durability.ALWAYS) sync(end);
+    }
+
+    /**
+     * @return the number of records in the log that have not been sealed
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the current segment and start a new one, so that the records logged until now can be read and then
+     * deleted once they are in a checkpoint, while new records keep being appended
+     *
+     * @return the sealed segments, oldest first
+     */
+    public List<Path> seal() {
+        lock.lock();
+        try {
+            roll();
+            size = 0;
+            List<Path> sealed = segments();
+            sealed.remove(sealed.size() - 1);
+            return sealed;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error sealing the write-ahead log", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param segments the segments to read
+     * @return the messages in the segments, in the order they were logged
+     */
+    public static List<FaultRecovery.VSyncWrapper> read(List<Path> segments) {
+        List<FaultRecovery.VSyncWrapper> messages = new ArrayList<>();
+        for (Path segment : segments) {
+            try {
+                readSegment(segment, messages);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading the write-ahead log segment " + segment, e);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Delete segments whose records are no longer needed
+     */
+    public static void delete(List<Path> segments) {
+        for (Path segment : segments) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                logger.error("Error deleting the write-ahead log segment " + segment + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (syncer != null) syncer.shutdown();
+        lock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+            if (directoryLock != null) directoryLock.channel().close();
+        } catch (IOException e) {
+            logger.error("Error closing the write-ahead log: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to a position, forcing the file if no other thread is doing it; the records
+     * written while a force is in progress are forced together by the next one
+     *
+     * @throws UncheckedIOException if the file couldn't be forced
+     */
+    private void sync(long end) {
+        syncLock.lock();
+        try {
+            while (synced < end) {
+                if (syncFailure != null)
+                    throw new UncheckedIOException("Error forcing the write-ahead log", syncFailure);
+                if (syncing) {
+                    syncedCondition.await();
+                    continue;
+                }
+                syncing = true;
+                long target = written;
+                FileChannel current = channel;
+                IOException failure = null;
+                syncLock.unlock();
+                try {
+                    current.force(false);
+                } catch (ClosedChannelException e) {
+                    // the segment has been rolled, which forced it
+                } catch (IOException e) {
+                    logger.fatal("Error forcing the write-ahead log: " + e.getMessage());
+                    failure = e;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (failure == null) synced = Math.max(synced, target);
+                    else syncFailure = failure;
+                    syncedCondition.signalAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Force and close the current segment and start the next one, called holding the lock
+     */
+    private void roll() throws IOException {
+        channel.force(false);
+        channel.close();
+        channel = createSegment(++segmentIndex);
+        syncLock.lock();
+        try {
+            synced = Math.max(synced, written);
+            syncedCondition.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private FileChannel createSegment(long index) throws IOException {
+        Path path = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        FileChannel segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip();
+        while (header.hasRemaining()) segment.write(header);
+        return segment;
+    }
+
+    /**
+     * @return the segments in the directory, oldest first
+     */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return new ArrayList<>(files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList());
+        }
+    }
+
+    private static long indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Count the valid records of a segment, cutting a torn record at its end if requested
+     */
+    private static int recover(Path segment, boolean truncate) throws IOException {
+        List<FaultRecovery.VSyncWrapper> messages = new ArrayList<>();
+        long end = readSegment(segment, messages);
+        if (truncate && end == 0) {
+            // the crash happened while writing the header, the records appended to the segment need a valid one
+            logger.warn("Rewriting the torn header of " + segment);
+            try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                file.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip();
+                while (header.hasRemaining()) file.write(header);
+                file.force(false);
+            }
+        } else if (truncate && end < Files.size(segment)) {
+            logger.warn("Discarding the torn record at the end of " + segment);
+            try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                file.truncate(end);
+            }
+        }
+        return messages.size();
+    }
+
+    /**
+     * Read the valid records of a segment
+     *
+     * @return the position after the last valid record
+     */
+    private static long readSegment(Path segment, List<FaultRecovery.VSyncWrapper> messages) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        if (buffer.remaining() < Integer.BYTES || buffer.getInt() != MAGIC) {
+            logger.warn("Ignoring " + segment + ", it is not a write-ahead log segment");
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 2 * Integer.BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < RECORD_OVERHEAD - 2 * Integer.BYTES || length > buffer.remaining()) return start;
+            crc.reset();
+            crc.update(buffer.array(), buffer.position(), length);
+            if ((int) crc.getValue() != checksum) return start;
+            // the content of a record is the same of a checkpoint record
+            messages.add(CheckpointFile.decode(buffer.slice(buffer.position(), length)));
+            buffer.position(buffer.position() + length);
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Take an exclusive lock on the directory, so that two instances never append to the same segments
+     *
+     * @throws IllegalStateException if the directory is locked by another instance
+     */
+    private static FileLock lockDirectory(Path directory) throws IOException {
+        FileChannel lockChannel = FileChannel.open(directory.resolve("wal.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            lockChannel.close();
+            throw new IllegalStateException("The write-ahead log in " + directory + " is used by another instance");
+        }
+        return fileLock;
+    }
+}
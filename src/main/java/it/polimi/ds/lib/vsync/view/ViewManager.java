@@ -7,9 +7,12 @@ import it.polimi.ds.lib.vsync.view.message.*;
 import it.polimi.ds.lib.reliability.AcknowledgeMap;
 import it.polimi.ds.lib.reliability.ReliabilityLayer;
 import it.polimi.ds.lib.reliability.ReliabilityMessage;
+import it.polimi.ds.lib.reliability.ScalarClock;
 import it.polimi.ds.lib.utils.StablePriorityBlockingQueue;
+import it.polimi.ds.lib.utils.Threads;
 import it.polimi.ds.lib.vsync.VSyncLayer;
 import it.polimi.ds.lib.vsync.faultTolerance.Checkpoint;
+import it.polimi.ds.lib.vsync.faultTolerance.CheckpointStore;
 import it.polimi.ds.lib.vsync.faultTolerance.FaultRecovery;
 import it.polimi.ds.lib.vsync.view.message.*;
 import org.apache.logging.log4j.LogManager;
@@ -21,6 +24,10 @@ import java.net.UnknownHostException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 //@SuppressWarnings("OptionalGetWithoutIsPresent")
 public class ViewManager {
@@ -61,12 +68,66 @@ public class ViewManager {
 
     private final List<UUID> waitingHosts = new LinkedList<>();
 
-    private final StablePriorityBlockingQueue<ReliabilityMessage> buffer = new StablePriorityBlockingQueue<>();
+    private final StablePriorityBlockingQueue<ReliabilityMessage> buffer =
+            new StablePriorityBlockingQueue<>(message -> message.messageID);
 
     private final BlockingQueue<ConfirmViewChangeMessage> confirmBuffer = new LinkedBlockingQueue<>();
 
+    /**
+     * Confirms of the messages of an asynchronous checkpoint, which runs alongside the view changes
+     */
+    private final BlockingQueue<ConfirmViewChangeMessage> cutConfirmBuffer = new LinkedBlockingQueue<>();
+
+    /**
+     * Number of view changes handled, changed by the manager while holding the view lock and by a member when its
+     * view is frozen; an asynchronous checkpoint is abandoned if the view changes before it is taken
+     */
+    private final AtomicInteger viewChanges = new AtomicInteger();
+
+    /**
+     * Milliseconds between two checks of the view while waiting for the confirms of an asynchronous checkpoint
+     */
+    private static final long CONFIRM_POLL = 10;
+
+    /**
+     * Milliseconds after which the waits of an asynchronous checkpoint are abandoned even if the view didn't change,
+     * e.g. when a host stops answering before it is found disconnected; can be set with the
+     * {@code rmpi.checkpoint.cut.timeout} system property
+     */
+    private final long CUT_TIMEOUT = Long.getLong("rmpi.checkpoint.cut.timeout", 30_000);
+
+    /**
+     * The thread of a member taking the checkpoint at the cut committed by the manager, joined before the next
+     * checkpoint so that every host takes the checkpoints in the same order
+     */
+    private Thread cutCheckpoint;
+
+    /**
+     * The messages whose ORDER had been received when the view was last frozen, received by every client by then:
+     * forgotten once the checkpoint of the frozen view is taken
+     */
+    private Collection<UUID> frozenOrders = List.of();
+
+    /**
+     * Serializes the handling of new hosts and disconnections, which wait for the confirms of the other hosts; a lock
+     * instead of a monitor so that a virtual thread waiting for them doesn't keep its carrier thread
+     */
+    private final ReentrantLock viewLock = new ReentrantLock();
+
     private ViewChangeList viewChangeList;
 
+    /**
+     * The last request of a chunk of the missing checkpoints, null when no transfer is in progress; sent again to the
+     * new manager if the manager disconnects during the transfer
+     */
+    private RecoveryRequestMessage recoveryRequest;
+
+    /**
+     * Whether the checkpoints are taken at a cut while the messages keep being sent, instead of freezing the view;
+     * can be set with the {@code rmpi.checkpoint.async} system property
+     */
+    private final boolean ASYNC_CHECKPOINT = Boolean.getBoolean("rmpi.checkpoint.async");
+
     private static final Logger logger = LogManager.getLogger();
 
     private final String FILE_PATH;
@@ -126,20 +187,18 @@ public class ViewManager {
             this.clientUID = UUID.randomUUID();
             this.random = new Random().nextInt();
         }
+        faultRecovery.openLog(clientUID);
 
-        new Thread("ViewManager") {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        ViewManagerMessage message = getMessage();
-                        handleViewMessage(message);
-                    } catch (InterruptedException e) {
-                        logger.debug("ViewManager getMessage interrupted");
-                    }
+        Threads.start("ViewManager", () -> {
+            while (true) {
+                try {
+                    ViewManagerMessage message = getMessage();
+                    handleViewMessage(message);
+                } catch (InterruptedException e) {
+                    logger.debug("ViewManager getMessage interrupted");
                 }
             }
-        }.start();
+        });
         vsyncLayer = vSyncLayer;
     }
 
@@ -163,8 +222,10 @@ public class ViewManager {
                                 confirmBuffer.add(message);
                         case NEW_HOST -> //received by manager when a group member connected with new host
                                 confirmBuffer.add(message);
-                        case CHECKPOINT -> //received by manager when a group member received the checkpoint
-                                confirmBuffer.add(message);
+                        case CHECKPOINT -> { //received by manager when a group member received the checkpoint
+                            if (message.cut != null) cutConfirmBuffer.add(message);
+                            else confirmBuffer.add(message);
+                        }
                         case DISCONNECTED_CLIENT -> //received by manager when a group member knows that someone disconnected
                                 confirmBuffer.add(message);
                         case RECOVERY_PACKET -> endViewFreeze();
@@ -245,8 +306,7 @@ public class ViewManager {
                             faultRecovery.getProperties().getProperty("CheckpointCounter"));
                     checkpointCounter = checkpointCounter >= 0 ? checkpointCounter : -1;
                     if (isRecoverable)
-                        reliabilityLayer.sendViewMessage(List.of(realViewManager.get()),
-                                new RecoveryRequestMessage(checkpointCounter, clientUID));
+                        requestRecovery(checkpointCounter, 0);
                 } catch (FileNotFoundException e) {
                     logger.debug("No recovery file found in directory");
                 } catch (IOException e) {
@@ -255,8 +315,10 @@ public class ViewManager {
             }
             case FREEZE_VIEW -> {
                 //received by group member from manager when the view is frozen
+                viewChanges.incrementAndGet();
                 reliabilityLayer.stopMessageSending();
                 reliabilityLayer.waitStabilization();
+                frozenOrders = reliabilityLayer.getOrders().keySet();
                 logger.debug("Freeze view complete");
                 reliabilityLayer.sendViewMessage(List.of(realViewManager.get()),
                         new ConfirmViewChangeMessage(clientUID, ViewChangeType.FREEZE_VIEW));
@@ -282,15 +344,43 @@ public class ViewManager {
             }
             case RESTART_VIEW -> {
                 //received by group member from manager when the view is restarted
+                reliabilityLayer.dropUnordered();
                 reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
                         new ConfirmViewChangeMessage(clientUID, ViewChangeType.RESTART_VIEW));
                 endViewFreeze();
             }
             case CHECKPOINT -> {
                 //received by group member from manager when a new checkpoint is created
-                faultRecovery.doCheckpoint();
-                reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
-                        new ConfirmViewChangeMessage(clientUID, ViewChangeType.CHECKPOINT));
+                CheckpointMessage message = (CheckpointMessage) baseMessage;
+                if (message.cut == null) {
+                    joinCutCheckpoint();
+                    faultRecovery.doCheckpoint();
+                    reliabilityLayer.forgetOrders(frozenOrders);
+                    reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
+                            new ConfirmViewChangeMessage(clientUID, ViewChangeType.CHECKPOINT));
+                } else if (message.commit) {
+                    // the manager has already taken it, so it is taken even if the wait is cancelled: the messages
+                    // before the cut that are not stable yet go to the next checkpoint
+                    joinCutCheckpoint();
+                    BooleanSupplier cancelled = cutCancelled(viewChanges.get());
+                    cutCheckpoint = Threads.start("checkpoint", () -> {
+                        if (!reliabilityLayer.awaitStable(message.cut, cancelled))
+                            logger.info("Checkpoint at cut " + message.cut + " taken before the messages before " +
+                                    "it are stable");
+                        faultRecovery.doCheckpoint(message.cut);
+                        reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
+                                new ConfirmViewChangeMessage(clientUID, ViewChangeType.CHECKPOINT, message.cut));
+                    });
+                } else {
+                    // waits for the stability of the messages on its own thread, the view messages keep being handled
+                    BooleanSupplier cancelled = cutCancelled(viewChanges.get());
+                    Threads.start("checkpoint", () -> {
+                        if (reliabilityLayer.awaitSentStable(message.cut, cancelled))
+                            reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
+                                    new ConfirmViewChangeMessage(clientUID, ViewChangeType.CHECKPOINT, message.cut));
+                        else logger.info("Checkpoint at cut " + message.cut + " abandoned");
+                    });
+                }
             }
             case DISCONNECTED_CLIENT -> {
                 //received by group member from manager when a client disconnects
@@ -300,28 +390,47 @@ public class ViewManager {
                     substituteRealManager = Optional.of(disconnectedClientMessage.newSubstituteViewManagerID);
                 }
                 handleDisconnection(disconnectedClientMessage.disconnectedClientUID);
+                // a new sequencer announces again the ORDER messages that did not reach every client
                 reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
-                        new ConfirmViewChangeMessage(clientUID, ViewChangeType.DISCONNECTED_CLIENT));
+                        new ConfirmViewChangeMessage(clientUID, ViewChangeType.DISCONNECTED_CLIENT,
+                                reliabilityLayer.getSequence(), reliabilityLayer.getOrders()));
+                if (disconnectedClientMessage.newViewManagerUID != null) resumeRecovery();
             }
             case RECOVERY_REQUEST -> {
                 //received by view manager from reconnecting group member when it wants to retrieve missing checkpoints
+                //the checkpoints are sent one chunk at a time, the member requests the next chunk once it applied one
                 RecoveryRequestMessage message = (RecoveryRequestMessage) baseMessage;
-                ArrayList<Checkpoint> checkpoints;
+                RecoveryPacketMessage packet = new RecoveryPacketMessage(new ArrayList<>());
                 if (message.lastCheckpointID >= 0) {
-                    int checkpointID = message.lastCheckpointID;
-                    checkpoints = faultRecovery.recoverCheckpoint(checkpointID);
-                } else checkpoints = new ArrayList<>();
-                reliabilityLayer.sendViewMessage(Collections.singletonList(message.senderUUID),
-                        new RecoveryPacketMessage(checkpoints));
+                    try {
+                        CheckpointStore.Chunk chunk = faultRecovery.recoverChunk(message.lastCheckpointID,
+                                message.offset);
+                        packet = new RecoveryPacketMessage(new ArrayList<>(List.of(chunk.checkpoint())),
+                                chunk.offset(), chunk.nextCheckpointID(), chunk.nextOffset());
+                    } catch (IllegalArgumentException e) {
+                        logger.warn("Checkpoint " + message.lastCheckpointID + " requested by " + message.senderUUID +
+                                " not found");
+                    }
+                }
+                reliabilityLayer.sendViewMessage(Collections.singletonList(message.senderUUID), packet);
             }
             case RECOVERY_PACKET -> {
                 //received by group member from manager, it contains the missing checkpoints requested
+                //each chunk is applied as it arrives
                 RecoveryPacketMessage message = (RecoveryPacketMessage) baseMessage;
-                faultRecovery.addMissingCheckpoints(message.checkpoints);
-                List<FaultRecovery.VSyncWrapper> messages = faultRecovery.deserializeChecPoints(message.checkpoints);
-                vsyncLayer.addAllMessage(messages);
-                reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
-                        new ConfirmViewChangeMessage(clientUID, ViewChangeType.RECOVERY_PACKET));
+                boolean applied = true;
+                for (Checkpoint chunk : message.checkpoints) {
+                    List<FaultRecovery.VSyncWrapper> messages = faultRecovery.addMissingChunk(chunk, message.offset,
+                            message.nextCheckpointID != chunk.getCheckpointID());
+                    if (messages == null) applied = false;
+                    else vsyncLayer.addAllMessage(messages);
+                }
+                //a discarded chunk is a stale one, the requested chunk is still to come
+                if (applied && message.isLast()) {
+                    recoveryRequest = null;
+                    reliabilityLayer.sendViewMessage(Collections.singletonList(realViewManager.get()),
+                            new ConfirmViewChangeMessage(clientUID, ViewChangeType.RECOVERY_PACKET));
+                } else if (applied) requestRecovery(message.nextCheckpointID, message.nextOffset);
             }
             default -> throw new RuntimeException("Unexpected message type " + baseMessage.messageType);
         }
@@ -332,15 +441,20 @@ public class ViewManager {
      *
      * @param newHostId the new host UUID
      */
-    public synchronized void handleNewConnection(UUID newHostId) {
-        //already connected, so discard
-        if (connectedHosts.contains(newHostId)) return;
-        // first connection between device
-        if (!isConnected) {
-            communicationLayer.stopDiscoverySender();
+    public void handleNewConnection(UUID newHostId) {
+        viewLock.lock();
+        try {
+            //already connected, so discard
+            if (connectedHosts.contains(newHostId)) return;
+            // first connection between device
+            if (!isConnected) {
+                communicationLayer.stopDiscoverySender();
+            }
+            connectedHosts.add(newHostId);
+            if (!isConnected) isConnected = true;
+        } finally {
+            viewLock.unlock();
         }
-        connectedHosts.add(newHostId);
-        if (!isConnected) isConnected = true;
     }
 
     private List<UUID> getCompleteTopology() {
@@ -356,85 +470,112 @@ public class ViewManager {
      * @param newHostRandom  the new host random number
      * @param newHostAddress the new host IP address
      */
-    public synchronized void handleNewHost(UUID newHostId, int newHostRandom, InetAddress newHostAddress) {
-        // already connected, so discard
-        if (connectedHosts.contains(newHostId) || waitingHosts.contains(newHostId) || newHostId.equals(clientUID))
-            return;
-        // first connection between devices
-        if (!isConnected) {
-            if (random < newHostRandom) {
-                if (realViewManager.isEmpty()) {
-                    logger.error("I AM THE REAL MANAGER");
-                    processID = 1;
-                    clientsProcessIDCounter = 1;
-                    saveDataOnDisk(clientUID, processID, random);
+    public void handleNewHost(UUID newHostId, int newHostRandom, InetAddress newHostAddress) {
+        viewLock.lock();
+        try {
+            // already connected, so discard
+            if (connectedHosts.contains(newHostId) || waitingHosts.contains(newHostId) || newHostId.equals(clientUID))
+                return;
+            // first connection between devices
+            if (!isConnected) {
+                if (random < newHostRandom) {
+                    if (realViewManager.isEmpty()) {
+                        logger.error("I AM THE REAL MANAGER");
+                        processID = 1;
+                        clientsProcessIDCounter = 1;
+                        saveDataOnDisk(clientUID, processID, random);
+                    }
+                    communicationLayer.stopDiscoverySender();
+                    startConnection(newHostId, newHostAddress);
+                    reliabilityLayer.sendViewMessage(Collections.singletonList(newHostId),
+                            new InitialTopologyMessage(clientUID, ++clientsProcessIDCounter, getCompleteTopology(),
+                                    newHostId, faultRecovery.getCheckpointCounter()));
+                } else {
+                    logger.info("New host:" + newHostAddress.getHostAddress() + "(random " + newHostRandom + ")");
                 }
-                communicationLayer.stopDiscoverySender();
-                startConnection(newHostId, newHostAddress);
-                reliabilityLayer.sendViewMessage(Collections.singletonList(newHostId),
-                        new InitialTopologyMessage(clientUID, ++clientsProcessIDCounter, getCompleteTopology(),
-                                newHostId, faultRecovery.getCheckpointCounter()));
-            } else {
-                logger.info("New host:" + newHostAddress.getHostAddress() + "(random " + newHostRandom + ")");
-            }
-        } else if (realViewManager.isEmpty()) {//what to do when you are the real manager
-            waitingHosts.add(newHostId);
-            boolean clientCanBeRecovered = disconnectedHosts.contains(newHostId);
-            if (connectedHosts.size() > 0) {
-                startFreezeView();
-                handleCheckpoint();
-            }
-            communicationLayer.initConnection(newHostAddress, newHostId);
-            AcknowledgeMap acknowledgeMap = new AcknowledgeMap();
-            InitialTopologyMessage initialTopologyMessage;
-            //sent init view message to new host
-            if (clientCanBeRecovered) {
-                disconnectedHosts.remove(newHostId);
-                initialTopologyMessage = new InitialTopologyMessage(clientUID, -1, getCompleteTopology(),
-                        substituteRealManager.orElse(null), -1);
-            } else
-                initialTopologyMessage = new InitialTopologyMessage(clientUID, ++clientsProcessIDCounter,
-                        getCompleteTopology(), substituteRealManager.orElse(null),
-                        faultRecovery.getCheckpointCounter() - 1);
-            reliabilityLayer.sendViewMessage(Collections.singletonList(newHostId), initialTopologyMessage);
-            acknowledgeMap.sendMessage(initialTopologyMessage.uuid, Collections.singletonList(newHostId));
-            //sent new host message to all other hosts
-            NewHostMessage newHostMessage = null;
-            if (connectedHosts.size() > 0) {
-                newHostMessage = new NewHostMessage(newHostAddress, newHostId, newHostRandom);
-                reliabilityLayer.sendViewMessage(connectedHosts, newHostMessage);
-                acknowledgeMap.sendMessage(newHostMessage.uuid, connectedHosts);
-            }
-            //wait for all confirms
-            while ((newHostMessage != null && !acknowledgeMap.isComplete(
-                    newHostMessage.uuid)) || !acknowledgeMap.isComplete(
-                    initialTopologyMessage.uuid)) {
-                try {
-                    ConfirmViewChangeMessage confirmMessage = confirmBuffer.take();
-                    if (confirmMessage.confirmedAction == initialTopologyMessage.messageType) {
-                        acknowledgeMap.receiveAck(initialTopologyMessage.uuid, confirmMessage.senderUid,
-                                connectedHosts);
-                    } else if (newHostMessage != null && confirmMessage.confirmedAction == newHostMessage.messageType) {
-                        acknowledgeMap.receiveAck(newHostMessage.uuid, confirmMessage.senderUid, connectedHosts);
-                    } else {
-                        logger.warn("Unexpected confirm for action " + confirmMessage.confirmedAction);
+            } else if (realViewManager.isEmpty()) {//what to do when you are the real manager
+                waitingHosts.add(newHostId);
+                viewChanges.incrementAndGet();
+                boolean clientCanBeRecovered = disconnectedHosts.contains(newHostId);
+                if (connectedHosts.size() > 0) {
+                    startFreezeView();
+                    handleCheckpoint();
+                }
+                communicationLayer.initConnection(newHostAddress, newHostId);
+                AcknowledgeMap acknowledgeMap = new AcknowledgeMap();
+                InitialTopologyMessage initialTopologyMessage;
+                //sent init view message to new host
+                if (clientCanBeRecovered) {
+                    disconnectedHosts.remove(newHostId);
+                    initialTopologyMessage = new InitialTopologyMessage(clientUID, -1, getCompleteTopology(),
+                            substituteRealManager.orElse(null), -1);
+                } else
+                    initialTopologyMessage = new InitialTopologyMessage(clientUID, ++clientsProcessIDCounter,
+                            getCompleteTopology(), substituteRealManager.orElse(null),
+                            faultRecovery.getCheckpointCounter() - 1);
+                reliabilityLayer.sendViewMessage(Collections.singletonList(newHostId), initialTopologyMessage);
+                acknowledgeMap.sendMessage(initialTopologyMessage.uuid, Collections.singletonList(newHostId));
+                //sent new host message to all other hosts
+                NewHostMessage newHostMessage = null;
+                if (connectedHosts.size() > 0) {
+                    newHostMessage = new NewHostMessage(newHostAddress, newHostId, newHostRandom);
+                    reliabilityLayer.sendViewMessage(connectedHosts, newHostMessage);
+                    acknowledgeMap.sendMessage(newHostMessage.uuid, connectedHosts);
+                }
+                //wait for all confirms
+                while ((newHostMessage != null && !acknowledgeMap.isComplete(
+                        newHostMessage.uuid)) || !acknowledgeMap.isComplete(
+                        initialTopologyMessage.uuid)) {
+                    try {
+                        ConfirmViewChangeMessage confirmMessage = confirmBuffer.take();
+                        if (confirmMessage.confirmedAction == initialTopologyMessage.messageType) {
+                            acknowledgeMap.receiveAck(initialTopologyMessage.uuid, confirmMessage.senderUid,
+                                    connectedHosts);
+                        } else if (newHostMessage != null && confirmMessage.confirmedAction == newHostMessage.messageType) {
+                            acknowledgeMap.receiveAck(newHostMessage.uuid, confirmMessage.senderUid, connectedHosts);
+                        } else {
+                            logger.warn("Unexpected confirm for action " + confirmMessage.confirmedAction);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
                     }
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
                 }
+                if (!clientCanBeRecovered) {
+                    RestartViewMessage restartViewMessage = new RestartViewMessage();
+                    sendBroadcastAndWaitConfirms(restartViewMessage);
+                    endViewFreeze();
+                }
+            } else if (viewChangeList != null) { //you received a NEW_HOST message
+                startConnection(newHostId, newHostAddress);
+                reliabilityLayer.sendViewMessage(Collections.singletonList(newHostId),
+                        new ConnectRequestMessage(clientUID));
             }
-            if (!clientCanBeRecovered) {
-                RestartViewMessage restartViewMessage = new RestartViewMessage();
-                sendBroadcastAndWaitConfirms(restartViewMessage);
-                endViewFreeze();
-            }
-        } else if (viewChangeList != null) { //you received a NEW_HOST message
-            startConnection(newHostId, newHostAddress);
-            reliabilityLayer.sendViewMessage(Collections.singletonList(newHostId),
-                    new ConnectRequestMessage(clientUID));
+        } finally {
+            viewLock.unlock();
         }
     }
 
+    /**
+     * Request to the manager the chunk of the missing checkpoints starting from a position
+     *
+     * @param checkpointID the checkpoint of the chunk
+     * @param offset       the position in the checkpoint of the first record of the chunk
+     */
+    private void requestRecovery(int checkpointID, int offset) {
+        recoveryRequest = new RecoveryRequestMessage(checkpointID, offset, clientUID);
+        reliabilityLayer.sendViewMessage(List.of(realViewManager.get()), recoveryRequest);
+    }
+
+    /**
+     * Resume from the new manager the transfer of the missing checkpoints, if it was interrupted
+     */
+    private void resumeRecovery() {
+        if (recoveryRequest == null || realViewManager.isEmpty()) return;
+        logger.info("Resuming the recovery from checkpoint " + recoveryRequest.lastCheckpointID + " at " +
+                recoveryRequest.offset);
+        requestRecovery(recoveryRequest.lastCheckpointID, recoveryRequest.offset);
+    }
+
     private ViewManagerMessage getMessage() throws InterruptedException {
         return (ViewManagerMessage) buffer.retrieveStable().payload;
     }
@@ -446,19 +587,17 @@ public class ViewManager {
     public void handleCheckpoint() {
         if (realViewManager.isEmpty()) {
             faultRecovery.doCheckpoint();
+            reliabilityLayer.forgetOrders(frozenOrders);
             CheckpointMessage checkpointMessage = new CheckpointMessage();
             sendBroadcastAndWaitConfirms(checkpointMessage);
-            new Thread("logConditionChecker") {
-                @Override
-                public void run() {
-                    faultRecovery.checkCondition();
-                }
-            }.start();
+            Threads.start("logConditionChecker", faultRecovery::checkCondition);
         }
     }
 
     public void freezeAndCheckpoint() {
-        if (realViewManager.isEmpty()) {
+        if (realViewManager.isEmpty() && ASYNC_CHECKPOINT && reliabilityLayer.isCutByClock()) {
+            checkpointAtCut();
+        } else if (realViewManager.isEmpty()) {
             startFreezeView();
             handleCheckpoint();
             RestartViewMessage restartViewMessage = new RestartViewMessage();
@@ -472,40 +611,50 @@ public class ViewManager {
      *
      * @param clientUID the UUID of the disconnected client
      */
-    public synchronized void handleDisconnection(UUID clientUID) {
-        boolean changeManager = false;
-        if (connectedHosts.contains(clientUID)) {
-            reliabilityLayer.stopMessageSending();
-            connectedHosts.remove(clientUID);
-            disconnectedHosts.add(clientUID);
-            reliabilityLayer.handleDisconnection(clientUID);
-        }
-        if (clientUID.equals(realViewManager.orElse(null))) {
-            if (substituteRealManager.isEmpty()) {
-                realViewManager = Optional.empty();
-                substituteRealManager = connectedHosts.stream().findFirst();
-                changeManager = true;
-            } else {
-                realViewManager = substituteRealManager;
-                substituteRealManager = Optional.empty();
-                changeManager = true;
+    public void handleDisconnection(UUID clientUID) {
+        viewLock.lock();
+        try {
+            viewChanges.incrementAndGet();
+            boolean changeManager = false;
+            if (connectedHosts.contains(clientUID)) {
+                reliabilityLayer.stopMessageSending();
+                connectedHosts.remove(clientUID);
+                disconnectedHosts.add(clientUID);
+                reliabilityLayer.handleDisconnection(clientUID);
             }
-        }
-        if (realViewManager.isEmpty()) {
-            if (connectedHosts.size() > 0) {
-                startFreezeView();
-                DisconnectedClientMessage disconnectedClientMessage = changeManager ?
-                        new DisconnectedClientMessage(clientUID, this.clientUID, substituteRealManager.orElse(null)) :
-                        new DisconnectedClientMessage(clientUID);
-                sendBroadcastAndWaitConfirms(disconnectedClientMessage);
+            if (clientUID.equals(realViewManager.orElse(null))) {
+                if (substituteRealManager.isEmpty()) {
+                    realViewManager = Optional.empty();
+                    substituteRealManager = connectedHosts.stream().findFirst();
+                    changeManager = true;
+                } else {
+                    realViewManager = substituteRealManager;
+                    substituteRealManager = Optional.empty();
+                    changeManager = true;
+                }
             }
-            handleCheckpoint();
-            logger.info("disconnected client " + clientUID);
-            if (connectedHosts.size() > 0) {
-                RestartViewMessage restartViewMessage = new RestartViewMessage();
-                sendBroadcastAndWaitConfirms(restartViewMessage);
-                endViewFreeze();
+            boolean takeOver = changeManager && realViewManager.isEmpty();
+            if (changeManager) resumeRecovery();
+            if (realViewManager.isEmpty()) {
+                List<ConfirmViewChangeMessage> confirms = List.of();
+                if (connectedHosts.size() > 0) {
+                    startFreezeView();
+                    DisconnectedClientMessage disconnectedClientMessage = changeManager ?
+                            new DisconnectedClientMessage(clientUID, this.clientUID, substituteRealManager.orElse(null)) :
+                            new DisconnectedClientMessage(clientUID);
+                    confirms = sendBroadcastAndWaitConfirms(disconnectedClientMessage);
+                }
+                resumeOrdering(takeOver, confirms);
+                handleCheckpoint();
+                logger.info("disconnected client " + clientUID);
+                if (connectedHosts.size() > 0) {
+                    RestartViewMessage restartViewMessage = new RestartViewMessage();
+                    sendBroadcastAndWaitConfirms(restartViewMessage);
+                    endViewFreeze();
+                }
             }
+        } finally {
+            viewLock.unlock();
         }
     }
 
@@ -531,6 +680,14 @@ public class ViewManager {
         return connectedHosts;
     }
 
+    /**
+     * @return the client acting as sequencer when the messages are totally ordered by a sequencer, i.e. the view
+     * manager
+     */
+    public UUID getSequencer() {
+        return realViewManager.orElse(clientUID);
+    }
+
     public int getProcessID() {
         return processID;
     }
@@ -541,6 +698,110 @@ public class ViewManager {
         logger.trace("Connected clients: " + connectedHosts);
     }
 
+    /**
+     * Called by FaultRecovery when the log threshold is reached, takes a checkpoint without freezing the view: the
+     * manager announces a cut, waits until every host has sent the messages before it and then lets every host
+     * checkpoint them as soon as they are stable, while the later messages keep being sent and logged
+     */
+    private void checkpointAtCut() {
+        if (!tryCheckpointAtCut())
+            logger.info("Checkpoint at cut abandoned, the view changed or the hosts didn't confirm in time");
+        Threads.start("logConditionChecker", faultRecovery::checkCondition);
+    }
+
+    /**
+     * Run the checkpoint at a cut, abandoning it if the view changes before the checkpoint is taken, since the view
+     * change takes a checkpoint with the view frozen anyway, or if it is not ready within {@link #CUT_TIMEOUT}
+     *
+     * @return false if the checkpoint has been abandoned
+     */
+    private boolean tryCheckpointAtCut() {
+        int generation;
+        ScalarClock cut;
+        CheckpointMessage start;
+        List<UUID> hosts;
+        viewLock.lock();
+        try {
+            generation = viewChanges.get();
+            cut = reliabilityLayer.checkpointCut();
+            start = new CheckpointMessage(cut, false);
+            hosts = new ArrayList<>(connectedHosts);
+            reliabilityLayer.sendViewMessage(hosts, start);
+        } finally {
+            viewLock.unlock();
+        }
+        logger.debug("Starting checkpoint at cut " + cut);
+        BooleanSupplier cancelled = cutCancelled(generation);
+        if (!awaitCutConfirms(start, hosts, cancelled) || !reliabilityLayer.awaitSentStable(cut, cancelled))
+            return false;
+        // every message before the cut has been received by every host, it is logged once stable
+        if (!reliabilityLayer.awaitStable(cut, cancelled)) return false;
+        CheckpointMessage commit = new CheckpointMessage(cut, true);
+        viewLock.lock();
+        try {
+            if (viewChanges.get() != generation) return false;
+            // a view change waits for the lock, so its checkpoint follows this one on every host
+            faultRecovery.doCheckpoint(cut);
+            hosts = new ArrayList<>(connectedHosts);
+            reliabilityLayer.sendViewMessage(hosts, commit);
+        } finally {
+            viewLock.unlock();
+        }
+        // a host that disconnects meanwhile never confirms, the checkpoint is taken anyway
+        awaitCutConfirms(commit, hosts, cutCancelled(generation));
+        return true;
+    }
+
+    /**
+     * @param generation the number of view changes when the asynchronous checkpoint started
+     * @return whether the waits of the checkpoint are to be abandoned, because the view changed or they lasted more
+     * than {@link #CUT_TIMEOUT}
+     */
+    private BooleanSupplier cutCancelled(int generation) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CUT_TIMEOUT);
+        return () -> viewChanges.get() != generation || System.nanoTime() - deadline > 0;
+    }
+
+    /**
+     * Wait for the checkpoint at the last committed cut to be taken, which lasts at most {@link #CUT_TIMEOUT}
+     */
+    private void joinCutCheckpoint() {
+        if (cutCheckpoint == null) return;
+        try {
+            cutCheckpoint.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        cutCheckpoint = null;
+    }
+
+    /**
+     * Wait for the confirms of a message of an asynchronous checkpoint, ignoring the late ones of an abandoned
+     * checkpoint
+     *
+     * @param message     the message sent
+     * @param hosts       the hosts the message was sent to
+     * @param cancelled   whether the checkpoint is abandoned, in which case the wait is abandoned too
+     * @return false if the checkpoint was abandoned before every host confirmed
+     */
+    private boolean awaitCutConfirms(CheckpointMessage message, List<UUID> hosts, BooleanSupplier cancelled) {
+        AcknowledgeMap cutAckMap = new AcknowledgeMap();
+        cutAckMap.sendMessage(message.uuid, hosts);
+        while (!cutAckMap.isComplete(message.uuid)) {
+            if (cancelled.getAsBoolean()) return false;
+            try {
+                ConfirmViewChangeMessage confirmMessage = cutConfirmBuffer.poll(CONFIRM_POLL, TimeUnit.MILLISECONDS);
+                if (confirmMessage == null) continue;
+                if (message.cut.equals(confirmMessage.cut))
+                    cutAckMap.receiveAck(message.uuid, confirmMessage.senderUid, hosts);
+                else logger.debug("Ignoring the confirm of an abandoned checkpoint from " + confirmMessage.senderUid);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return true;
+    }
+
     private void startConnection(UUID newHostId, InetAddress newHostAddress) {
         waitingHosts.add(newHostId);
         communicationLayer.initConnection(newHostAddress, newHostId);
@@ -552,12 +813,35 @@ public class ViewManager {
             FreezeViewMessage freezeMessage = new FreezeViewMessage();
             sendBroadcastAndWaitConfirms(freezeMessage);
             reliabilityLayer.waitStabilization();
+            frozenOrders = reliabilityLayer.getOrders().keySet();
             assert confirmBuffer.isEmpty();
             logger.debug("Freeze view complete");
         }
     }
 
-    private void sendBroadcastAndWaitConfirms(ViewManagerMessage message) {
+    /**
+     * Order the messages left unordered by a disconnection: a new sequencer first announces again the ORDER messages
+     * received by the clients from the previous one and continues the numbering after the highest sequence number
+     * they applied. Waits for every client to receive the ORDER messages, before the view restarts and they drop the
+     * messages that are still unordered.
+     *
+     * @param takeOver whether this client has just become the sequencer
+     * @param confirms the confirms of the {@link DisconnectedClientMessage}
+     */
+    private void resumeOrdering(boolean takeOver, List<ConfirmViewChangeMessage> confirms) {
+        int sequence = 0;
+        Map<UUID, Integer> assignments = new HashMap<>();
+        for (ConfirmViewChangeMessage confirm : confirms) {
+            sequence = Math.max(sequence, confirm.sequence);
+            if (confirm.orders != null) assignments.putAll(confirm.orders);
+        }
+        reliabilityLayer.resumeOrdering(takeOver, sequence, assignments);
+        if (!reliabilityLayer.awaitOrdersStable(cutCancelled(viewChanges.get())))
+            logger.warn("Restarting the view before every client received the ORDER messages");
+    }
+
+    private List<ConfirmViewChangeMessage> sendBroadcastAndWaitConfirms(ViewManagerMessage message) {
+        List<ConfirmViewChangeMessage> confirms = new ArrayList<>();
         AcknowledgeMap viewAckMap = new AcknowledgeMap();
         viewAckMap.sendMessage(message.uuid, connectedHosts);
         reliabilityLayer.sendViewMessage(connectedHosts, message);
@@ -565,6 +849,7 @@ public class ViewManager {
             try {
                 ConfirmViewChangeMessage confirmMessage = confirmBuffer.take();
                 if (confirmMessage.confirmedAction == message.messageType) {
+                    confirms.add(confirmMessage);
                     viewAckMap.receiveAck(message.uuid, confirmMessage.senderUid, connectedHosts);
                 } else {
                     logger.warn("Unexpected confirm for action " + confirmMessage.confirmedAction);
@@ -574,6 +859,7 @@ public class ViewManager {
             }
         }
         logger.trace("Received all confirms for " + message.messageType);
+        return confirms;
     }
 
     private void saveDataOnDisk(UUID clientUID, int processID, int random) {
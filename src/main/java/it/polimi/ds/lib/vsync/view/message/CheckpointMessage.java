@@ -1,9 +1,29 @@
 package it.polimi.ds.lib.vsync.view.message;
 
+import it.polimi.ds.lib.reliability.ScalarClock;
+
 public class CheckpointMessage extends ViewManagerMessage{
 
+    /**
+     * Clock of the cut of an asynchronous checkpoint: the checkpoint holds the messages with an earlier timestamp.
+     * Null when the checkpoint is taken while the view is frozen
+     */
+    public final ScalarClock cut;
+
+    /**
+     * False when the cut is announced, true when the messages before it have been sent by every host and the
+     * checkpoint can be taken
+     */
+    public final boolean commit;
+
     public CheckpointMessage(){
+        this(null, false);
+    }
+
+    public CheckpointMessage(ScalarClock cut, boolean commit){
         super(ViewChangeType.CHECKPOINT);
+        this.cut = cut;
+        this.commit = commit;
     }
 
 }
@@ -1,5 +1,8 @@
 package it.polimi.ds.lib.vsync.view.message;
 
+import it.polimi.ds.lib.reliability.ScalarClock;
+
+import java.util.Map;
 import java.util.UUID;
 
 public class ConfirmViewChangeMessage extends ViewManagerMessage {
@@ -7,9 +10,44 @@ public class ConfirmViewChangeMessage extends ViewManagerMessage {
     public final UUID senderUid;
     public final ViewChangeType confirmedAction;
 
+    /**
+     * Cut of the asynchronous checkpoint whose message is confirmed, so that a late confirm of an abandoned checkpoint
+     * is not counted; null otherwise
+     */
+    public final ScalarClock cut;
+
+    /**
+     * Highest sequence number applied by the sender, in the confirm of a {@link ViewChangeType#DISCONNECTED_CLIENT}
+     * message so that a new sequencer continues the numbering after it; 0 otherwise
+     */
+    public final int sequence;
+
+    /**
+     * Sequence number of each message whose ORDER the sender has received, in the confirm of a
+     * {@link ViewChangeType#DISCONNECTED_CLIENT} message so that a new sequencer announces them again; null otherwise
+     */
+    public final Map<UUID, Integer> orders;
+
     public ConfirmViewChangeMessage(UUID senderUid, ViewChangeType confirmedAction) {
+        this(senderUid, confirmedAction, null);
+    }
+
+    public ConfirmViewChangeMessage(UUID senderUid, ViewChangeType confirmedAction, ScalarClock cut) {
+        this(senderUid, confirmedAction, cut, 0, null);
+    }
+
+    public ConfirmViewChangeMessage(UUID senderUid, ViewChangeType confirmedAction, int sequence,
+                                    Map<UUID, Integer> orders) {
+        this(senderUid, confirmedAction, null, sequence, orders);
+    }
+
+    private ConfirmViewChangeMessage(UUID senderUid, ViewChangeType confirmedAction, ScalarClock cut, int sequence,
+                                     Map<UUID, Integer> orders) {
         super(ViewChangeType.CONFIRM);
         this.senderUid = senderUid;
         this.confirmedAction = confirmedAction;
+        this.cut = cut;
+        this.sequence = sequence;
+        this.orders = orders;
     }
 }
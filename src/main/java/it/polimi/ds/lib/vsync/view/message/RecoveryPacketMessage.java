@@ -6,10 +6,40 @@ import java.util.ArrayList;
 
 public class RecoveryPacketMessage extends ViewManagerMessage{
 
+    /**
+     * The chunk of a checkpoint, as a checkpoint holding only the records of the chunk, or no checkpoint if there is
+     * nothing to recover
+     */
     public final ArrayList<Checkpoint> checkpoints;
 
+    /**
+     * Position in its checkpoint of the first record of the chunk
+     */
+    public final int offset;
+
+    /**
+     * Checkpoint and position of the chunk to request next, the checkpoint is -1 when the transfer is complete
+     */
+    public final int nextCheckpointID;
+
+    public final int nextOffset;
+
     public RecoveryPacketMessage(ArrayList<Checkpoint> checkpoints){
+        this(checkpoints, 0, -1, 0);
+    }
+
+    public RecoveryPacketMessage(ArrayList<Checkpoint> checkpoints, int offset, int nextCheckpointID, int nextOffset){
         super(ViewChangeType.RECOVERY_PACKET);
         this.checkpoints = checkpoints;
+        this.offset = offset;
+        this.nextCheckpointID = nextCheckpointID;
+        this.nextOffset = nextOffset;
+    }
+
+    /**
+     * @return whether this is the last chunk of the transfer
+     */
+    public boolean isLast() {
+        return nextCheckpointID < 0;
     }
 }
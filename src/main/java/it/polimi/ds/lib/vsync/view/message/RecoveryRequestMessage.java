@@ -11,12 +11,22 @@ public class RecoveryRequestMessage extends ViewManagerMessage{
 
     public final int lastCheckpointID;
 
+    /**
+     * Position in the checkpoint of the first record requested, to resume an interrupted transfer
+     */
+    public final int offset;
+
     public final UUID senderUUID;
 
     public RecoveryRequestMessage(int lastCheckpointID, UUID uuid){
+        this(lastCheckpointID, 0, uuid);
+    }
+
+    public RecoveryRequestMessage(int lastCheckpointID, int offset, UUID uuid){
         super(ViewChangeType.RECOVERY_REQUEST);
         this.lastCheckpointID = lastCheckpointID;
+        this.offset = offset;
         this.senderUUID = uuid;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,44 @@
+package it.polimi.ds.lib.communication;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameBufferPoolTest {
+    @Test
+    void testBuffersAreReusedByLengthClass() {
+        FrameBufferPool pool = new FrameBufferPool();
+        ByteBuffer buffer = pool.acquire(300);
+        assertEquals(300, buffer.limit());
+        assertEquals(512, buffer.capacity());
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire(400);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(400, reused.limit());
+        assertNotSame(buffer, pool.acquire(100));
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    void testOversizedFramesAreNotPooled() {
+        FrameBufferPool pool = new FrameBufferPool();
+        ByteBuffer buffer = pool.acquire(FrameBufferPool.MAX_SIZE + 1);
+        assertEquals(FrameBufferPool.MAX_SIZE + 1, buffer.capacity());
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(FrameBufferPool.MAX_SIZE + 1));
+        assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    void testCorruptLengthsAreRejected() {
+        FrameBufferPool pool = new FrameBufferPool();
+        assertThrows(IOException.class, () -> CommunicationLayer.acquireFrame(-1, pool));
+        assertThrows(IOException.class,
+                () -> CommunicationLayer.acquireFrame(CommunicationLayer.MAX_FRAME_LENGTH + 1, pool));
+    }
+}
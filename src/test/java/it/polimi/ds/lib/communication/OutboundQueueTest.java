@@ -0,0 +1,85 @@
+package it.polimi.ds.lib.communication;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+    private static EncodedFrame frame(int size, boolean ack) {
+        return EncodedFrame.of(new byte[size], ack);
+    }
+
+    @Test
+    void testTakeCoalescesFramesUpToMaxBytes() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.BLOCK);
+        for (int i = 0; i < 5; i++) queue.offer(frame(96, false));
+        List<EncodedFrame> batch = queue.take(300);
+        assertEquals(3, batch.size());
+        assertEquals(2, queue.poll(1000).size());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void testBigFrameIsReturnedAlone() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.BLOCK);
+        queue.offer(frame(1000, false));
+        queue.offer(frame(10, false));
+        assertEquals(1, queue.take(100).size());
+    }
+
+    @Test
+    void testDropOldestAck() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST_ACK);
+        EncodedFrame data = frame(10, false);
+        EncodedFrame newData = frame(20, false);
+        queue.offer(frame(10, true));
+        queue.offer(data);
+        assertTrue(queue.offer(newData));
+        assertEquals(List.of(data, newData), queue.poll(1000));
+    }
+
+    @Test
+    void testDisconnectWhenFull() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(frame(10, false)));
+        assertFalse(queue.offer(frame(10, false)));
+    }
+
+    @Test
+    @Timeout(2)
+    void testBlockUntilWriterDrains() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK);
+        queue.offer(frame(10, false));
+        Thread sender = new Thread(() -> {
+            try {
+                queue.offer(frame(10, false));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        sender.start();
+        Thread.sleep(100);
+        assertTrue(sender.isAlive());
+        assertEquals(1, queue.take(1000).size());
+        sender.join();
+        assertEquals(1, queue.take(1000).size());
+    }
+
+    @Test
+    @Timeout(2)
+    void testCloseWakesUpWriter() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK);
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            queue.close();
+        });
+        closer.start();
+        assertTrue(queue.take(1000).isEmpty());
+    }
+}
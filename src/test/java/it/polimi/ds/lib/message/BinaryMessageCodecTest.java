@@ -0,0 +1,261 @@
+package it.polimi.ds.lib.message;
+
+import it.polimi.ds.lib.communication.message.DataMessage;
+import it.polimi.ds.lib.communication.message.DiscoveryMessage;
+import it.polimi.ds.lib.reliability.MessageType;
+import it.polimi.ds.lib.reliability.ReliabilityMessage;
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.utils.BinaryMessageCodec;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import it.polimi.ds.lib.vsync.faultTolerance.Checkpoint;
+import it.polimi.ds.lib.vsync.view.message.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryMessageCodecTest {
+
+    private static DataMessage roundTrip(ReliabilityMessage message) {
+        DataMessage dataMessage = new DataMessage(LocalDateTime.now(), UUID.randomUUID(), message);
+        byte[] bytes = BinaryMessageCodec.encode(dataMessage);
+        assertEquals(BinaryMessageCodec.MAGIC, bytes[0]);
+        DataMessage decoded = (DataMessage) BinaryMessageCodec.decode(ByteBuffer.wrap(bytes));
+        assertEquals(dataMessage, decoded);
+        return decoded;
+    }
+
+    @Test
+    @DisplayName("VSync payload is transmitted as raw bytes")
+    void vSyncMessageRoundTrip() {
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        UUID messageID = UUID.randomUUID();
+        ReliabilityMessage message = new ReliabilityMessage(messageID, new VSyncMessage(payload),
+                new ScalarClock(3, 1_000_000));
+        DataMessage decoded = roundTrip(message);
+        assertEquals(messageID, decoded.payload.messageID);
+        assertEquals(MessageType.DATA, decoded.payload.messageType);
+        assertEquals(new ScalarClock(3, 1_000_000), decoded.payload.timestamp);
+        assertArrayEquals(payload, ((VSyncMessage) decoded.payload.payload).payload);
+        assertTrue(BinaryMessageCodec.encode(new DataMessage(LocalDateTime.now(), UUID.randomUUID(), message)).length
+                < payload.length + 100);
+    }
+
+    @Test
+    @DisplayName("Frames carry their length prefix and shared decoding keeps the payload as a view")
+    void sharedFrameRoundTrip() {
+        byte[] payload = new byte[300];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        DataMessage dataMessage = new DataMessage(LocalDateTime.now(), UUID.randomUUID(),
+                new ReliabilityMessage(UUID.randomUUID(), new VSyncMessage(payload), new ScalarClock(1, 1)));
+        ByteBuffer frame = BinaryMessageCodec.encodeFrame(dataMessage);
+        assertEquals(frame.remaining() - Integer.BYTES, frame.getInt());
+        assertEquals(BinaryMessageCodec.MAGIC, frame.get(frame.position()));
+
+        VSyncMessage decoded = (VSyncMessage) ((DataMessage) BinaryMessageCodec.decode(frame, true)).payload.payload;
+        assertNull(decoded.payload);
+        assertEquals(payload.length, decoded.getPayloadLength());
+        ByteBuffer view = decoded.getPayloadBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(ByteBuffer.wrap(payload), view);
+        assertArrayEquals(payload, decoded.getPayload());
+        assertNotSame(frame.array(), decoded.getPayload());
+    }
+
+    @Test
+    @DisplayName("Batches keep their payloads in order")
+    void batchRoundTrip() {
+        List<byte[]> payloads = List.of("first".getBytes(), new byte[0], "third".getBytes());
+        DataMessage decoded = roundTrip(new ReliabilityMessage(UUID.randomUUID(), VSyncMessage.batch(payloads),
+                new ScalarClock(1, 1)));
+        VSyncMessage batch = (VSyncMessage) decoded.payload.payload;
+        assertTrue(batch.batch);
+        List<ByteBuffer> unpacked = batch.getPayloads();
+        assertEquals(payloads.size(), unpacked.size());
+        for (int i = 0; i < payloads.size(); i++)
+            assertEquals(ByteBuffer.wrap(payloads.get(i)), unpacked.get(i));
+
+        VSyncMessage single = (VSyncMessage) roundTrip(new ReliabilityMessage(UUID.randomUUID(),
+                new VSyncMessage("single".getBytes()), new ScalarClock(1, 2))).payload.payload;
+        assertFalse(single.batch);
+        assertEquals(List.of(ByteBuffer.wrap("single".getBytes())), single.getPayloads());
+    }
+
+    @Test
+    @DisplayName("Data batches keep the ID and the timestamp of each message")
+    void dataBatchRoundTrip() {
+        List<ReliabilityMessage> messages = List.of(
+                new ReliabilityMessage(UUID.randomUUID(), new VSyncMessage("a".getBytes()), new ScalarClock(2, 7)),
+                new ReliabilityMessage(UUID.randomUUID(), new VSyncMessage("b".getBytes()), new ScalarClock(2, 8)));
+        UUID batchID = UUID.randomUUID();
+        ReliabilityMessage decoded = roundTrip(ReliabilityMessage.of(batchID, batchID, null, messages,
+                MessageType.DATA_BATCH, null, new ScalarClock(2, 8))).payload;
+        assertEquals(MessageType.DATA_BATCH, decoded.messageType);
+        assertNull(decoded.payload);
+        assertEquals(messages.size(), decoded.messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).messageID, decoded.messages.get(i).messageID);
+            assertEquals(messages.get(i).timestamp, decoded.messages.get(i).timestamp);
+            assertArrayEquals(((VSyncMessage) messages.get(i).payload).payload,
+                    ((VSyncMessage) decoded.messages.get(i).payload).getPayload());
+        }
+    }
+
+    @Test
+    @DisplayName("The position of a message in the stream of its sender is transmitted")
+    void sequenceNumberRoundTrip() {
+        UUID messageID = UUID.randomUUID();
+        ReliabilityMessage decoded = roundTrip(ReliabilityMessage.of(messageID, messageID, null, null,
+                MessageType.DATA, new VSyncMessage("a".getBytes()), new ScalarClock(1, 3), 300)).payload;
+        assertEquals(300, decoded.sequenceNumber);
+        decoded = roundTrip(ReliabilityMessage.of(UUID.randomUUID(), null, null, null, MessageType.NACK, null,
+                new ScalarClock(1, 4), 7)).payload;
+        assertEquals(MessageType.NACK, decoded.messageType);
+        assertEquals(7, decoded.sequenceNumber);
+        decoded = roundTrip(ReliabilityMessage.of(UUID.randomUUID(), null, null, null, MessageType.SKIP, null,
+                new ScalarClock(1, 5), 7)).payload;
+        assertEquals(MessageType.SKIP, decoded.messageType);
+        assertEquals(7, decoded.sequenceNumber);
+    }
+
+    @Test
+    @DisplayName("An ORDER message keeps the referenced message and the sequence number")
+    void orderRoundTrip() {
+        UUID orderedID = UUID.randomUUID();
+        ReliabilityMessage decoded = roundTrip(ReliabilityMessage.of(UUID.randomUUID(), orderedID, null, null,
+                MessageType.ORDER, null, new ScalarClock(0, 42))).payload;
+        assertEquals(MessageType.ORDER, decoded.messageType);
+        assertEquals(orderedID, decoded.referenceMessageID);
+        assertEquals(new ScalarClock(0, 42), decoded.timestamp);
+        assertNull(decoded.payload);
+    }
+
+    @Test
+    @DisplayName("View messages keep their type and fields")
+    void viewMessageRoundTrip() throws Exception {
+        List<UUID> topology = List.of(UUID.randomUUID(), UUID.randomUUID());
+        InitialTopologyMessage initialTopology = new InitialTopologyMessage(UUID.randomUUID(), -1, topology, null, 4);
+        InitialTopologyMessage decodedTopology = (InitialTopologyMessage) roundTrip(
+                new ReliabilityMessage(UUID.randomUUID(), initialTopology, MessageType.SINGLE, new ScalarClock(1, 2)))
+                .payload.payload;
+        assertEquals(initialTopology, decodedTopology);
+        assertEquals(-1, decodedTopology.destinationProcessID);
+        assertNull(decodedTopology.substituteViewManagerId);
+
+        NewHostMessage newHost = new NewHostMessage(InetAddress.getByName("192.168.1.7"), UUID.randomUUID(), -42);
+        NewHostMessage decodedNewHost = (NewHostMessage) roundTrip(
+                new ReliabilityMessage(UUID.randomUUID(), newHost, new ScalarClock(1, 3))).payload.payload;
+        assertEquals(newHost.newHostAddress, decodedNewHost.newHostAddress);
+        assertEquals(newHost.newHostId, decodedNewHost.newHostId);
+        assertEquals(-42, decodedNewHost.newHostRandom);
+
+        ArrayList<Checkpoint> checkpoints = new ArrayList<>(List.of(new Checkpoint(2, List.of("a".getBytes(),
+                "bc".getBytes()))));
+        RecoveryPacketMessage decodedPacket = (RecoveryPacketMessage) roundTrip(
+                new ReliabilityMessage(UUID.randomUUID(), new RecoveryPacketMessage(checkpoints),
+                        new ScalarClock(1, 4))).payload.payload;
+        assertEquals(2, decodedPacket.checkpoints.get(0).getCheckpointID());
+        assertArrayEquals("bc".getBytes(), decodedPacket.checkpoints.get(0).getMessages().get(1));
+        assertTrue(decodedPacket.isLast());
+
+        RecoveryPacketMessage decodedChunk = (RecoveryPacketMessage) roundTrip(
+                new ReliabilityMessage(UUID.randomUUID(), new RecoveryPacketMessage(checkpoints, 40, 2, 42),
+                        new ScalarClock(1, 5))).payload.payload;
+        assertEquals(40, decodedChunk.offset);
+        assertEquals(2, decodedChunk.nextCheckpointID);
+        assertEquals(42, decodedChunk.nextOffset);
+        assertFalse(decodedChunk.isLast());
+        RecoveryRequestMessage decodedRequest = (RecoveryRequestMessage) roundTrip(
+                new ReliabilityMessage(UUID.randomUUID(), new RecoveryRequestMessage(2, 42, UUID.randomUUID()),
+                        new ScalarClock(1, 6))).payload.payload;
+        assertEquals(2, decodedRequest.lastCheckpointID);
+        assertEquals(42, decodedRequest.offset);
+    }
+
+    @Test
+    @DisplayName("Checkpoint messages keep their cut and phase")
+    void checkpointMessageRoundTrip() {
+        CheckpointMessage decodedCommit = (CheckpointMessage) roundTrip(new ReliabilityMessage(UUID.randomUUID(),
+                new CheckpointMessage(new ScalarClock(2, 150), true), new ScalarClock(2, 151))).payload.payload;
+        assertEquals(new ScalarClock(2, 150), decodedCommit.cut);
+        assertTrue(decodedCommit.commit);
+        CheckpointMessage decodedFrozen = (CheckpointMessage) roundTrip(new ReliabilityMessage(UUID.randomUUID(),
+                new CheckpointMessage(), new ScalarClock(2, 152))).payload.payload;
+        assertNull(decodedFrozen.cut);
+        assertFalse(decodedFrozen.commit);
+        ConfirmViewChangeMessage decodedConfirm = (ConfirmViewChangeMessage) roundTrip(new ReliabilityMessage(
+                UUID.randomUUID(), new ConfirmViewChangeMessage(UUID.randomUUID(), ViewChangeType.CHECKPOINT,
+                new ScalarClock(2, 150)), new ScalarClock(2, 153))).payload.payload;
+        assertEquals(ViewChangeType.CHECKPOINT, decodedConfirm.confirmedAction);
+        assertEquals(new ScalarClock(2, 150), decodedConfirm.cut);
+    }
+
+    @Test
+    @DisplayName("Confirms of a disconnection keep the orders received from the sequencer")
+    void disconnectionConfirmRoundTrip() {
+        Map<UUID, Integer> orders = Map.of(UUID.randomUUID(), 41, UUID.randomUUID(), 44);
+        ConfirmViewChangeMessage decoded = (ConfirmViewChangeMessage) roundTrip(new ReliabilityMessage(
+                UUID.randomUUID(), new ConfirmViewChangeMessage(UUID.randomUUID(), ViewChangeType.DISCONNECTED_CLIENT,
+                46, orders), new ScalarClock(2, 154))).payload.payload;
+        assertEquals(ViewChangeType.DISCONNECTED_CLIENT, decoded.confirmedAction);
+        assertEquals(46, decoded.sequence);
+        assertEquals(orders, decoded.orders);
+        assertNull(decoded.cut);
+    }
+
+    @Test
+    @DisplayName("Discovery messages and null payloads")
+    void discoveryAndNullRoundTrip() {
+        DiscoveryMessage discovery = new DiscoveryMessage(LocalDateTime.now(), UUID.randomUUID(), Integer.MIN_VALUE);
+        DiscoveryMessage decoded = (DiscoveryMessage) BinaryMessageCodec.decode(
+                ByteBuffer.wrap(BinaryMessageCodec.encode(discovery)));
+        assertEquals(discovery, decoded);
+        assertEquals(Integer.MIN_VALUE, decoded.random);
+
+        DataMessage empty = new DataMessage(LocalDateTime.now(), null, null);
+        assertEquals(empty, BinaryMessageCodec.decode(ByteBuffer.wrap(BinaryMessageCodec.encode(empty))));
+    }
+
+    @Test
+    @DisplayName("Truncated frames are rejected")
+    void truncatedFrame() {
+        byte[] bytes = BinaryMessageCodec.encode(new DataMessage(LocalDateTime.now(), UUID.randomUUID(),
+                new ReliabilityMessage(UUID.randomUUID(), new VSyncMessage(new byte[10]), new ScalarClock(1, 1))));
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryMessageCodec.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 3)));
+    }
+
+    @Test
+    @DisplayName("Negative lengths and lengths beyond the frame are rejected before allocating")
+    void corruptLength() {
+        byte[] payload = "0123456789".getBytes();
+        byte[] bytes = BinaryMessageCodec.encode(new DataMessage(LocalDateTime.now(), UUID.randomUUID(),
+                new ReliabilityMessage(UUID.randomUUID(), new VSyncMessage(payload), new ScalarClock(1, 1))));
+        // the zigzag varint of the payload length precedes the payload
+        int length = -1;
+        for (int i = 0; i + payload.length < bytes.length && length < 0; i++) {
+            if (bytes[i] == 2 * payload.length &&
+                    Arrays.equals(bytes, i + 1, i + 1 + payload.length, payload, 0, payload.length))
+                length = i;
+        }
+        assertTrue(length >= 0);
+        for (byte corrupt : new byte[]{1, 0x7E}) {
+            byte[] corrupted = bytes.clone();
+            corrupted[length] = corrupt;
+            assertThrows(IllegalArgumentException.class,
+                    () -> BinaryMessageCodec.decode(ByteBuffer.wrap(corrupted)));
+            assertThrows(IllegalArgumentException.class,
+                    () -> BinaryMessageCodec.decode(ByteBuffer.wrap(corrupted), true));
+        }
+    }
+}
@@ -7,6 +7,7 @@ import it.polimi.ds.lib.communication.message.DataMessage;
 import it.polimi.ds.lib.reliability.ReliabilityMessage;
 import it.polimi.ds.lib.reliability.ScalarClock;
 import it.polimi.ds.lib.utils.MessageGsonBuilder;
+import it.polimi.ds.lib.vsync.VSyncLayer;
 import it.polimi.ds.lib.vsync.faultTolerance.FaultRecovery;
 import it.polimi.ds.lib.vsync.view.ViewManagerBuilder;
 import it.polimi.ds.lib.vsync.view.message.InitialTopologyMessage;
@@ -84,7 +85,7 @@ public class ViewManagerMessageTest {
         @Test
         void testEncodingInitialTopology() {
             CommunicationLayer communicationLayer =
-                    CommunicationLayer.defaultConfiguration(new ViewManagerBuilder(null, new FaultRecovery(null)));
+                    CommunicationLayer.defaultConfiguration(new ViewManagerBuilder(null, new FaultRecovery((VSyncLayer) null)));
             InitialTopologyMessage initialTopologyMessage = new InitialTopologyMessage(null, 0,
                     null, null, 0);
             ReliabilityMessage reliabilityMessage = new ReliabilityMessage(null, initialTopologyMessage, new ScalarClock(0, 0));
@@ -102,7 +103,7 @@ public class ViewManagerMessageTest {
         @Test
         void testDecodingInitialTopology() {
             CommunicationLayer communicationLayer =
-                    CommunicationLayer.defaultConfiguration(new ViewManagerBuilder(null, new FaultRecovery(null)));
+                    CommunicationLayer.defaultConfiguration(new ViewManagerBuilder(null, new FaultRecovery((VSyncLayer) null)));
             String json = "{\"payload\":{\"payload\":{\"topology\":null,\"viewManagerId\":null,\"messageType\":\"INIT_VIEW\",\"knowledgeableMessageType\":\"VIEW\"},\"messageID\":null,\"referenceMessageID\":null,\"messageType\":\"DATA\"},\"timestamp\":\"1692140967076\",\"senderUID\":null,\"messageType\":\"DATA\"}";
             byte[] buffer = json.getBytes();
             try {
@@ -9,6 +9,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
+import static org.junit.jupiter.api.Assertions.*;
+
 class AcknowledgeMapTest {
     @Test
     @Timeout(2)
@@ -76,4 +78,99 @@ class AcknowledgeMapTest {
         }
         thread.join();
     }
-}
\ No newline at end of file
+
+    @Test
+    void testReceiveAcksCompletesAllMessages() {
+        AcknowledgeMap acknowledgeMap = new AcknowledgeMap();
+        List<UUID> messageIds = List.of(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        List<UUID> recipients = List.of(UUID.randomUUID(), UUID.randomUUID());
+        for (UUID messageId : messageIds)
+            acknowledgeMap.sendMessage(messageId, recipients);
+        acknowledgeMap.receiveAcks(messageIds, recipients.get(0), recipients);
+        for (UUID messageId : messageIds)
+            assertFalse(acknowledgeMap.isComplete(messageId));
+        acknowledgeMap.receiveAcks(messageIds, recipients.get(1), recipients);
+        for (UUID messageId : messageIds)
+            assertTrue(acknowledgeMap.isComplete(messageId));
+    }
+
+    @Test
+    void testMissingAcksAndAckBeforeSend() {
+        AcknowledgeMap acknowledgeMap = new AcknowledgeMap();
+        UUID messageId = UUID.randomUUID();
+        List<UUID> recipients = List.of(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        // the ACK of a broadcast message may be read before the sender registers the message
+        acknowledgeMap.receiveAck(messageId, recipients.get(1), recipients);
+        acknowledgeMap.sendMessage(messageId, recipients);
+        assertEquals(List.of(recipients.get(0), recipients.get(2)), acknowledgeMap.missingAcks(messageId));
+        acknowledgeMap.receiveAck(messageId, UUID.randomUUID(), recipients);
+        acknowledgeMap.receiveAck(messageId, recipients.get(0), recipients);
+        acknowledgeMap.receiveAck(messageId, recipients.get(0), recipients);
+        assertFalse(acknowledgeMap.isComplete(messageId));
+        acknowledgeMap.receiveAck(messageId, recipients.get(2), recipients);
+        assertTrue(acknowledgeMap.isComplete(messageId));
+        assertTrue(acknowledgeMap.missingAcks(messageId).isEmpty());
+        // a message that is not tracked has no missing ACKs to report, it is not complete either
+        acknowledgeMap.clear();
+        assertNull(acknowledgeMap.missingAcks(messageId));
+        assertFalse(acknowledgeMap.isComplete(messageId));
+    }
+
+    @Test
+    @Timeout(5)
+    void testConcurrentAcks() throws InterruptedException {
+        AcknowledgeMap acknowledgeMap = new AcknowledgeMap();
+        List<UUID> recipients = new ArrayList<>();
+        for (int i = 0; i < 100; i++) recipients.add(UUID.randomUUID());
+        List<UUID> messageIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messageIds.add(UUID.randomUUID());
+            acknowledgeMap.sendMessage(messageIds.get(i), recipients);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            List<UUID> hosts = recipients.subList(t * 25, (t + 1) * 25);
+            threads.add(new Thread(() -> hosts.forEach(host -> acknowledgeMap.receiveAcks(messageIds, host,
+                    recipients))));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+        for (UUID messageId : messageIds)
+            assertTrue(acknowledgeMap.isComplete(messageId));
+    }
+
+    @Test
+    @Timeout(5)
+    void testClearDuringMissingAcks() throws InterruptedException {
+        AcknowledgeMap acknowledgeMap = new AcknowledgeMap();
+        List<UUID> recipients = new ArrayList<>();
+        for (int i = 0; i < 70; i++) recipients.add(UUID.randomUUID());
+        UUID messageId = UUID.randomUUID();
+        acknowledgeMap.sendMessage(messageId, recipients);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        long end = System.nanoTime() + 300_000_000L;
+        // the view changes while the retransmission reads the missing ACKs
+        Thread viewChanges = new Thread(() -> {
+            while (System.nanoTime() < end) {
+                acknowledgeMap.clear();
+                acknowledgeMap.sendMessage(messageId, recipients);
+            }
+        });
+        viewChanges.start();
+        try {
+            while (System.nanoTime() < end) {
+                List<UUID> missing = acknowledgeMap.missingAcks(messageId);
+                if (missing != null && !missing.isEmpty()) assertEquals(recipients, missing);
+            }
+        } catch (Throwable e) {
+            errors.add(e);
+        }
+        viewChanges.join();
+        assertTrue(errors.isEmpty(), () -> errors.toString());
+        // the slots survive the view change, an ACK is counted for the same host
+        acknowledgeMap.clear();
+        acknowledgeMap.sendMessage(messageId, recipients.subList(0, 1));
+        acknowledgeMap.receiveAck(messageId, recipients.get(0), recipients);
+        assertTrue(acknowledgeMap.isComplete(messageId));
+    }
+}
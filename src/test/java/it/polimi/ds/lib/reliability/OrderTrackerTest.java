@@ -0,0 +1,130 @@
+package it.polimi.ds.lib.reliability;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderTrackerTest {
+
+    /**
+     * A client in {@link OrderingMode#SEQUENCER} mode: the messages it has received, with the number of messages in
+     * each batch, and the sequence numbers it has delivered them with
+     */
+    private static class Member {
+        private final OrderTracker tracker = new OrderTracker();
+        private final Map<UUID, Integer> received = new HashMap<>();
+        private final List<String> delivered = new ArrayList<>();
+
+        void receive(UUID messageID, int messages) {
+            received.put(messageID, messages);
+            tracker.drain(received::containsKey, this::apply);
+        }
+
+        boolean order(UUID messageID, int sequenceNumber) {
+            return tracker.receive(messageID, sequenceNumber, received::containsKey, this::apply);
+        }
+
+        private int apply(UUID messageID, int sequenceNumber) {
+            int messages = received.remove(messageID);
+            for (int i = 0; i < messages; i++)
+                delivered.add(messageID + "@" + (sequenceNumber + i));
+            return sequenceNumber + messages - 1;
+        }
+    }
+
+    @Test
+    @DisplayName("An ORDER received before its message holds back the following ones")
+    void holdBackUntilMessageArrives() {
+        Member member = new Member();
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        member.receive(second, 1);
+        assertTrue(member.order(first, 1));
+        assertTrue(member.order(second, 2));
+        assertTrue(member.tracker.hasHeld());
+        assertTrue(member.delivered.isEmpty());
+
+        member.receive(first, 1);
+        assertFalse(member.tracker.hasHeld());
+        assertEquals(List.of(first + "@1", second + "@2"), member.delivered);
+        assertEquals(2, member.tracker.getSequence());
+    }
+
+    @Test
+    @DisplayName("A batch takes a sequence number for each of its messages")
+    void batchTakesSeveralNumbers() {
+        Member member = new Member();
+        UUID batch = UUID.randomUUID();
+        member.receive(batch, 3);
+        member.order(batch, 1);
+        assertEquals(3, member.tracker.getSequence());
+        assertEquals(4, member.tracker.next());
+    }
+
+    @Test
+    @DisplayName("An ORDER received again is ignored, also once forgotten")
+    void duplicatesIgnored() {
+        Member member = new Member();
+        UUID message = UUID.randomUUID();
+        member.receive(message, 1);
+        assertTrue(member.order(message, 1));
+        assertFalse(member.order(message, 1));
+        assertEquals(Map.of(message, 1), member.tracker.assignments());
+
+        member.tracker.forget(List.of(message));
+        assertTrue(member.tracker.assignments().isEmpty());
+        assertFalse(member.tracker.isOrdered(message));
+        assertFalse(member.order(message, 1));
+        assertEquals(1, member.delivered.size());
+    }
+
+    @Test
+    @DisplayName("A new sequencer announcing again the orders of the previous one gives every client the same order")
+    void failoverKeepsTotalOrder() {
+        Member newSequencer = new Member();
+        Member behind = new Member();
+        UUID a = UUID.randomUUID();
+        UUID b = UUID.randomUUID();
+        UUID c = UUID.randomUUID();
+        for (Member member : List.of(newSequencer, behind)) {
+            // the previous sequencer orders a message only once every client has received it
+            member.receive(a, 1);
+            member.receive(b, 2);
+            member.receive(c, 1);
+        }
+        // the previous sequencer fails after its ORDER messages reached only one of the clients
+        newSequencer.order(a, 1);
+        newSequencer.order(b, 2);
+        newSequencer.order(c, 4);
+        behind.order(a, 1);
+
+        // the new sequencer collects the orders of the clients in the confirms of the view change
+        Map<UUID, Integer> assignments = new HashMap<>(behind.tracker.assignments());
+        assignments.putAll(newSequencer.tracker.assignments());
+        newSequencer.tracker.advance(behind.tracker.getSequence());
+        assignments.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEach(order -> {
+            newSequencer.order(order.getKey(), order.getValue());
+            behind.order(order.getKey(), order.getValue());
+        });
+
+        // a message that has not reached the client behind yet is ordered after them
+        UUID d = UUID.randomUUID();
+        newSequencer.receive(d, 1);
+        int sequenceNumber = newSequencer.tracker.next();
+        assertEquals(5, sequenceNumber);
+        newSequencer.order(d, sequenceNumber);
+        behind.order(d, sequenceNumber);
+        behind.receive(d, 1);
+
+        assertEquals(List.of(a + "@1", b + "@2", b + "@3", c + "@4", d + "@5"), newSequencer.delivered);
+        assertEquals(newSequencer.delivered, behind.delivered);
+        assertEquals(newSequencer.tracker.getSequence(), behind.tracker.getSequence());
+    }
+}
@@ -0,0 +1,91 @@
+package it.polimi.ds.lib.reliability;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReceiveShardsTest {
+
+    @Test
+    @DisplayName("A batch is applied once per shard, on the thread of the shard, with its messages in order")
+    void batchBySharding() throws InterruptedException {
+        ReceiveShards shards = new ReceiveShards(4, "ReceiveShardsTest-");
+        List<UUID> messageIDs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) messageIDs.add(UUID.randomUUID());
+        Map<Integer, String> threadOfShard = new ConcurrentHashMap<>();
+        for (UUID messageID : messageIDs) {
+            CountDownLatch done = new CountDownLatch(1);
+            shards.execute(messageID, () -> {
+                threadOfShard.put(shards.shardOf(messageID), Thread.currentThread().getName());
+                done.countDown();
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+
+        List<List<UUID>> groups = Collections.synchronizedList(new ArrayList<>());
+        int shardCount = (int) messageIDs.stream().map(shards::shardOf).distinct().count();
+        CountDownLatch applied = new CountDownLatch(shardCount);
+        shards.executeBatch(messageIDs, group -> {
+            int shard = shards.shardOf(group.get(0));
+            assertTrue(group.stream().allMatch(messageID -> shards.shardOf(messageID) == shard));
+            assertEquals(threadOfShard.get(shard), Thread.currentThread().getName());
+            groups.add(group);
+            applied.countDown();
+        });
+        assertTrue(applied.await(5, TimeUnit.SECONDS));
+        assertEquals(shardCount, groups.size());
+        Set<UUID> seen = new HashSet<>();
+        for (List<UUID> group : groups) {
+            seen.addAll(group);
+            // the order of the batch is kept within each shard
+            List<UUID> expected = messageIDs.stream().filter(group::contains).toList();
+            assertEquals(expected, group);
+        }
+        assertEquals(new HashSet<>(messageIDs), seen);
+    }
+
+    @Test
+    @DisplayName("Without shards the whole batch is applied at once by the calling thread")
+    void batchWithoutShards() {
+        ReceiveShards shards = new ReceiveShards(0, "ReceiveShardsTest-");
+        List<UUID> messageIDs = List.of(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        List<List<UUID>> groups = new ArrayList<>();
+        Thread caller = Thread.currentThread();
+        shards.executeBatch(messageIDs, group -> {
+            assertSame(caller, Thread.currentThread());
+            groups.add(group);
+        });
+        assertEquals(List.of(messageIDs), groups);
+        shards.executeBatch(List.of(), groups::add);
+        assertEquals(1, groups.size());
+    }
+
+    @Test
+    @DisplayName("A batch of ACKs applied by shard makes the messages stable for every host")
+    void acksBySharding() throws InterruptedException {
+        ReceiveShards shards = new ReceiveShards(3, "ReceiveShardsTest-");
+        AcknowledgeMap acknowledgeMap = new AcknowledgeMap();
+        List<UUID> hosts = List.of(UUID.randomUUID(), UUID.randomUUID());
+        List<UUID> messageIDs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            UUID messageID = UUID.randomUUID();
+            acknowledgeMap.sendMessage(messageID, hosts);
+            messageIDs.add(messageID);
+        }
+        Set<UUID> complete = ConcurrentHashMap.newKeySet();
+        for (UUID host : hosts) {
+            shards.executeBatch(messageIDs, group -> {
+                acknowledgeMap.receiveAcks(group, host, hosts);
+                group.stream().filter(acknowledgeMap::isComplete).forEach(complete::add);
+            });
+        }
+        for (int i = 0; i < 100 && complete.size() < messageIDs.size(); i++) Thread.sleep(50);
+        assertEquals(new HashSet<>(messageIDs), complete);
+    }
+}
@@ -0,0 +1,49 @@
+package it.polimi.ds.lib.reliability;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RttEstimatorTest {
+    @Test
+    void testInitialTimeoutWithoutSamples() {
+        RttEstimator estimator = new RttEstimator(1000);
+        UUID peer = UUID.randomUUID();
+        assertEquals(-1, estimator.getRtt(peer));
+        assertEquals(1000, estimator.getTimeout(peer, 0));
+        assertEquals(4000, estimator.getTimeout(peer, 2));
+    }
+
+    @Test
+    void testTimeoutFollowsSamples() {
+        RttEstimator estimator = new RttEstimator(1000);
+        UUID peer = UUID.randomUUID();
+        for (int i = 0; i < 50; i++)
+            estimator.sample(peer, TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(100, estimator.getRtt(peer), 1);
+        assertEquals(RttEstimator.MIN_RTO, estimator.getTimeout(peer, 0));
+
+        estimator.sample(peer, TimeUnit.MILLISECONDS.toNanos(2000));
+        assertTrue(estimator.getTimeout(peer, 0) > 1000);
+        assertEquals(RttEstimator.MAX_RTO, estimator.getTimeout(peer, 20));
+    }
+
+    @Test
+    void testAcknowledgeMapSamplesOnlyFirstTransmission() {
+        RttEstimator estimator = new RttEstimator(1000);
+        AcknowledgeMap acknowledgeMap = new AcknowledgeMap(estimator);
+        UUID first = UUID.randomUUID(), second = UUID.randomUUID();
+        UUID messageId = UUID.randomUUID(), retransmittedId = UUID.randomUUID();
+        acknowledgeMap.sendMessage(messageId, List.of(first));
+        acknowledgeMap.sendMessage(retransmittedId, List.of(second));
+        acknowledgeMap.markRetransmitted(retransmittedId);
+        acknowledgeMap.receiveAck(messageId, first, List.of(first));
+        acknowledgeMap.receiveAck(retransmittedId, second, List.of(second));
+        assertTrue(estimator.getRtt(first) >= 0);
+        assertEquals(-1, estimator.getRtt(second));
+    }
+}
@@ -0,0 +1,72 @@
+package it.polimi.ds.lib.utils;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryPublisherTest {
+
+    private static DeliveryPublisher<Integer> publisherOf(BlockingQueue<Integer> queue, int bufferCapacity) {
+        return new DeliveryPublisher<>(() -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, "DeliveryPublisherTest", bufferCapacity);
+    }
+
+    @Test
+    @DisplayName("Listeners receive the items in order")
+    void listenerReceivesInOrder() throws InterruptedException {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> received = new LinkedBlockingQueue<>();
+        try (DeliveryPublisher<Integer> publisher = publisherOf(queue, 16)) {
+            publisher.consume(received::add);
+            for (int i = 0; i < 100; i++) queue.add(i);
+            for (int i = 0; i < 100; i++) assertEquals(i, received.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    @DisplayName("The source is not consumed beyond the demand of a subscriber")
+    void backpressure() throws InterruptedException {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+        BlockingQueue<Integer> received = new LinkedBlockingQueue<>();
+        CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+        try (DeliveryPublisher<Integer> publisher = publisherOf(queue, 2)) {
+            publisher.subscribe(new Flow.Subscriber<>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    subscription.complete(s);
+                    s.request(1);
+                }
+
+                @Override
+                public void onNext(Integer item) {
+                    received.add(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            assertEquals(1, received.poll(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            // one item delivered, two buffered and one waiting to be submitted
+            assertTrue(queue.size() >= 10 - 4);
+            assertTrue(received.isEmpty());
+
+            subscription.join().request(Long.MAX_VALUE);
+            for (int i = 2; i <= 10; i++) assertEquals(i, received.poll(5, TimeUnit.SECONDS));
+        }
+    }
+}
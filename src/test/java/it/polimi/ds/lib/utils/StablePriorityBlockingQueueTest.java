@@ -3,6 +3,10 @@ package it.polimi.ds.lib.utils;
 import it.polimi.ds.lib.utils.StablePriorityBlockingQueue;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -79,4 +83,30 @@ class StablePriorityBlockingQueueTest {
         Thread.sleep(2000);
         assertTrue(thread.isAlive());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testDuplicateKeyIsAddedOnce() throws InterruptedException {
+        StablePriorityBlockingQueue<Integer> queue = new StablePriorityBlockingQueue<>(element -> element % 10);
+        queue.add(1);
+        queue.add(11);
+        queue.add(2);
+        assertEquals(2, queue.size());
+        queue.markStable(21);
+        queue.markStable(2);
+        assertEquals(1, queue.retrieveStable());
+        assertEquals(2, queue.retrieveStable());
+    }
+
+    @Test
+    void testManyElementsRetrievedInOrder() throws InterruptedException {
+        StablePriorityBlockingQueue<Integer> queue = new StablePriorityBlockingQueue<>();
+        List<Integer> elements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) elements.add(i);
+        Collections.shuffle(elements);
+        elements.forEach(queue::add);
+        Collections.shuffle(elements);
+        elements.forEach(queue::markStable);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, queue.retrieveStable());
+    }
+}
@@ -0,0 +1,47 @@
+package it.polimi.ds.lib.utils;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadsTest {
+
+    @Test
+    @DisplayName("Threads are named and created by the configured factory")
+    void namedThreads() throws Exception {
+        ThreadFactory previous = Threads.getFactory();
+        LinkedBlockingQueue<Runnable> created = new LinkedBlockingQueue<>();
+        Threads.setFactory(task -> {
+            created.add(task);
+            return new Thread(task);
+        });
+        try {
+            CompletableFuture<String> name = new CompletableFuture<>();
+            Threads.start("ThreadsTest", () -> name.complete(Thread.currentThread().getName()));
+            assertEquals("ThreadsTest", name.get(5, TimeUnit.SECONDS));
+            assertEquals(1, created.size());
+
+            ScheduledExecutorService scheduler = Threads.newScheduler("ThreadsTest::scheduler");
+            try {
+                assertEquals("ThreadsTest::scheduler",
+                        scheduler.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS));
+            } finally {
+                scheduler.shutdownNow();
+            }
+        } finally {
+            Threads.setFactory(previous);
+        }
+    }
+
+    @Test
+    @DisplayName("The virtual mode falls back to platform threads when not supported")
+    void virtualMode() throws Exception {
+        CompletableFuture<Boolean> ran = new CompletableFuture<>();
+        Thread thread = Threads.defaultFactory(Threads.Mode.VIRTUAL).newThread(() -> ran.complete(true));
+        thread.start();
+        assertTrue(ran.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,42 @@
+package it.polimi.ds.lib.vsync;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VSyncLayerTest {
+
+    private static final List<VSyncMessage> MESSAGES = List.of(
+            VSyncMessage.batch(List.of("a".getBytes(), "b".getBytes())),
+            VSyncMessage.batch(List.of()),
+            new VSyncMessage("c".getBytes()),
+            VSyncMessage.batch(List.of()),
+            VSyncMessage.batch(List.of("d".getBytes())));
+
+    @Test
+    @DisplayName("The payloads of the batches are returned one at a time and in order, skipping the empty batches")
+    void unpacking() throws InterruptedException {
+        Iterator<VSyncMessage> messages = MESSAGES.iterator();
+        Deque<ByteBuffer> pending = new ArrayDeque<>();
+        for (String expected : List.of("a", "b", "c", "d"))
+            assertArrayEquals(expected.getBytes(), VSyncLayer.nextPayload(pending, messages::next));
+        assertFalse(messages.hasNext());
+    }
+
+    @Test
+    @DisplayName("The views of the payloads are returned in the same order")
+    void unpackingBuffers() throws InterruptedException {
+        Iterator<VSyncMessage> messages = MESSAGES.iterator();
+        Deque<ByteBuffer> pending = new ArrayDeque<>();
+        for (String expected : List.of("a", "b", "c", "d"))
+            assertEquals(ByteBuffer.wrap(expected.getBytes()), VSyncLayer.nextPayloadBuffer(pending, messages::next));
+        assertFalse(messages.hasNext());
+    }
+}
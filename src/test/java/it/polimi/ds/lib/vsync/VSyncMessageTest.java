@@ -0,0 +1,49 @@
+package it.polimi.ds.lib.vsync;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VSyncMessageTest {
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    @DisplayName("A batch keeps its payloads in order, empty ones included")
+    void batch() {
+        VSyncMessage message = VSyncMessage.batch(List.of("a".getBytes(), new byte[0], "bcd".getBytes()));
+        assertTrue(message.batch);
+        List<ByteBuffer> payloads = message.getPayloads();
+        assertEquals(3, payloads.size());
+        assertArrayEquals("a".getBytes(), toArray(payloads.get(0)));
+        assertEquals(0, payloads.get(1).remaining());
+        assertArrayEquals("bcd".getBytes(), toArray(payloads.get(2)));
+        assertTrue(payloads.get(0).isReadOnly());
+    }
+
+    @Test
+    @DisplayName("An empty batch holds no payload and a single message holds its own")
+    void emptyAndSingle() {
+        assertTrue(VSyncMessage.batch(List.of()).getPayloads().isEmpty());
+        List<ByteBuffer> payloads = new VSyncMessage("single".getBytes()).getPayloads();
+        assertEquals(1, payloads.size());
+        assertArrayEquals("single".getBytes(), toArray(payloads.get(0)));
+        assertTrue(new VSyncMessage((byte[]) null).getPayloads().isEmpty());
+    }
+
+    @Test
+    @DisplayName("A batch whose lengths exceed its payload is rejected")
+    void malformedBatch() {
+        VSyncMessage message = new VSyncMessage(ByteBuffer.allocate(6).putInt(10).array());
+        message.batch = true;
+        assertThrows(IllegalArgumentException.class, message::getPayloads);
+    }
+}
@@ -0,0 +1,75 @@
+package it.polimi.ds.lib.vsync.faultTolerance;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointFileTest {
+
+    private static Checkpoint checkpoint(int checkpointID, int messages) {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            VSyncMessage message = new VSyncMessage(("message " + i).getBytes());
+            records.add(CheckpointFile.encode(new FaultRecovery.VSyncWrapper(message, new ScalarClock(1, 2 * i))));
+        }
+        return new Checkpoint(checkpointID, records);
+    }
+
+    @Test
+    @DisplayName("The records of a checkpoint are read back from the mapped file")
+    void writeAndRead(@TempDir Path directory) {
+        Path path = directory.resolve("Checkpoint3.bin");
+        Checkpoint checkpoint = checkpoint(3, 50);
+        CheckpointFile.write(path, checkpoint);
+
+        CheckpointFile file = CheckpointFile.open(path);
+        assertEquals(3, file.getCheckpointID());
+        assertEquals(50, file.size());
+        assertEquals(new ScalarClock(1, 20), file.timestampAt(10));
+        Checkpoint read = file.toCheckpoint();
+        for (int i = 0; i < 50; i++)
+            assertArrayEquals(checkpoint.getMessages().get(i), read.getMessages().get(i));
+        assertFalse(Files.exists(directory.resolve("Checkpoint3.bin.tmp")));
+    }
+
+    @Test
+    @DisplayName("Reading can start from any clock through the index")
+    void seek(@TempDir Path directory) {
+        Path path = directory.resolve("Checkpoint0.bin");
+        CheckpointFile.write(path, checkpoint(0, 50));
+        CheckpointFile file = CheckpointFile.open(path);
+
+        // the event IDs are even, the search stops at the next record
+        assertEquals(11, file.indexOf(new ScalarClock(1, 21)));
+        assertEquals(0, file.indexOf(new ScalarClock(0, 0)));
+        assertEquals(50, file.indexOf(new ScalarClock(1, 1000)));
+
+        List<FaultRecovery.VSyncWrapper> messages = file.stream(new ScalarClock(1, 90)).toList();
+        assertEquals(5, messages.size());
+        assertEquals(new ScalarClock(1, 90), messages.get(0).timestamp());
+        assertArrayEquals("message 45".getBytes(), messages.get(0).message().getPayload());
+        assertEquals(50, file.stream(null).count());
+    }
+
+    @Test
+    @DisplayName("A file that is not a complete checkpoint is rejected")
+    void malformed(@TempDir Path directory) throws Exception {
+        Path path = directory.resolve("Checkpoint1.bin");
+        CheckpointFile.write(path, checkpoint(1, 5));
+        byte[] content = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(content, content.length - 1));
+        assertThrows(IllegalArgumentException.class, () -> CheckpointFile.open(path));
+        Files.write(path, "{\"checkpointID\":1}".getBytes());
+        assertThrows(IllegalArgumentException.class, () -> CheckpointFile.open(path));
+    }
+}
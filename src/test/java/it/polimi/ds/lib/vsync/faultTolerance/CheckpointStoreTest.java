@@ -0,0 +1,172 @@
+package it.polimi.ds.lib.vsync.faultTolerance;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointStoreTest {
+
+    /**
+     * @return a checkpoint with a message for each event ID from 10 * checkpointID on
+     */
+    private static Checkpoint checkpoint(int checkpointID, int messages) {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            int eventID = 10 * checkpointID + i;
+            VSyncMessage message = new VSyncMessage(("message " + eventID).getBytes());
+            records.add(CheckpointFile.encode(new FaultRecovery.VSyncWrapper(message, new ScalarClock(1, eventID))));
+        }
+        return new Checkpoint(checkpointID, records);
+    }
+
+    private static void awaitFiles(CheckpointStore store, int files) throws InterruptedException {
+        for (int i = 0; i < 100 && store.snapshot().size() != files; i++) Thread.sleep(50);
+        assertEquals(files, store.snapshot().size());
+    }
+
+    private static List<Integer> firstIDs(CheckpointStore store) {
+        return store.snapshot().stream().map(CheckpointStore.Metadata::firstID).toList();
+    }
+
+    @Test
+    @DisplayName("The oldest deltas are merged into the base and can still be read one by one")
+    void compaction(@TempDir Path directory) throws Exception {
+        try (CheckpointStore store = new CheckpointStore(directory, 2, 0, 0)) {
+            for (int i = 0; i < 5; i++) store.add(checkpoint(i, i + 1));
+            // the base and the two most recent deltas
+            awaitFiles(store, 3);
+            assertEquals(List.of(0, 1, 2), List.copyOf(store.snapshot().get(0).starts().keySet()));
+
+            List<Checkpoint> checkpoints = store.read(1);
+            assertEquals(4, checkpoints.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i + 1, checkpoints.get(i).getCheckpointID());
+                assertEquals(i + 2, checkpoints.get(i).getMessages().size());
+            }
+            List<FaultRecovery.VSyncWrapper> messages = store.stream(2, new ScalarClock(1, 21)).toList();
+            assertEquals(2, messages.size());
+            assertArrayEquals("message 21".getBytes(), messages.get(0).message().getPayload());
+            assertThrows(IllegalArgumentException.class, () -> store.read(5));
+        }
+        try (CheckpointStore store = new CheckpointStore(directory, 2, 0, 0)) {
+            assertEquals(5, store.read(0).size());
+        }
+    }
+
+    @Test
+    @DisplayName("Chunks walk the checkpoints in order across the base and the deltas")
+    void chunks(@TempDir Path directory) throws Exception {
+        try (CheckpointStore store = new CheckpointStore(directory, 1, 0, 0)) {
+            for (int i = 0; i < 4; i++) store.add(checkpoint(i, 5));
+            awaitFiles(store, 2);
+            int recordBytes = checkpoint(2, 1).getMessages().get(0).length;
+            List<String> walk = new ArrayList<>();
+            List<byte[]> records = new ArrayList<>();
+            int checkpointID = 1;
+            int offset = 0;
+            while (checkpointID >= 0) {
+                CheckpointStore.Chunk chunk = store.chunk(checkpointID, offset, 2 * recordBytes);
+                assertEquals(offset, chunk.offset());
+                walk.add(checkpointID + ":" + offset);
+                records.addAll(chunk.checkpoint().getMessages());
+                checkpointID = chunk.nextCheckpointID();
+                offset = chunk.nextOffset();
+            }
+            assertEquals(List.of("1:0", "1:2", "1:4", "2:0", "2:2", "2:4", "3:0", "3:2", "3:4"), walk);
+            assertEquals(15, records.size());
+            assertEquals(new ScalarClock(1, 10), CheckpointFile.decode(ByteBuffer.wrap(records.get(0))).timestamp());
+            assertEquals(new ScalarClock(1, 34), CheckpointFile.decode(ByteBuffer.wrap(records.get(14))).timestamp());
+            // a record larger than the chunk is sent alone
+            assertEquals(1, store.chunk(3, 3, 1).checkpoint().getMessages().size());
+            assertThrows(IllegalArgumentException.class, () -> store.chunk(4, 0, recordBytes));
+        }
+    }
+
+    @Test
+    @DisplayName("A full base is kept and the following deltas are merged into a new one")
+    void baseRolling(@TempDir Path directory) throws Exception {
+        long deltaBytes;
+        try (CheckpointStore store = new CheckpointStore(directory, Integer.MAX_VALUE, 0, 0)) {
+            store.add(checkpoint(1, 3));
+            deltaBytes = store.snapshot().get(0).bytes();
+        }
+        try (CheckpointStore store = new CheckpointStore(directory, 1, 0, 0, 2 * deltaBytes)) {
+            for (int i = 2; i <= 6; i++) store.add(checkpoint(i, 3));
+            // bases with checkpoints 1-2, 3-4 and 5, then the last delta
+            List<Integer> firstIDs = List.of(1, 3, 5, 6);
+            for (int i = 0; i < 100 && !firstIDs.equals(firstIDs(store)); i++) Thread.sleep(50);
+            assertEquals(firstIDs, firstIDs(store));
+            List<CheckpointStore.Metadata> files = store.snapshot();
+            assertTrue(files.stream().allMatch(metadata -> metadata.bytes() <= 2 * deltaBytes));
+            assertEquals(6, store.read(1).size());
+        }
+        try (CheckpointStore store = new CheckpointStore(directory, 1, 0, 0, 2 * deltaBytes)) {
+            List<Checkpoint> checkpoints = store.read(1);
+            assertEquals(6, checkpoints.size());
+            for (int i = 0; i < 6; i++) assertEquals(i + 1, checkpoints.get(i).getCheckpointID());
+        }
+    }
+
+    @Test
+    @DisplayName("The deltas beyond the size limit are merged")
+    void retentionBySize(@TempDir Path directory) throws Exception {
+        try (CheckpointStore store = new CheckpointStore(directory, Integer.MAX_VALUE, 0, 1)) {
+            store.add(checkpoint(0, 3));
+            awaitFiles(store, 1);
+            store.add(checkpoint(1, 3));
+            awaitFiles(store, 1);
+            assertEquals(6, store.snapshot().get(0).messages());
+        }
+    }
+
+    @Test
+    @DisplayName("A checkpoint with a stored ID replaces it and the ones after it")
+    void newHistory(@TempDir Path directory) {
+        try (CheckpointStore store = new CheckpointStore(directory, Integer.MAX_VALUE, 0, 0)) {
+            for (int i = 0; i < 3; i++) store.add(checkpoint(i, 2));
+            store.add(checkpoint(1, 5));
+            List<Checkpoint> checkpoints = store.read(0);
+            assertEquals(2, checkpoints.size());
+            assertEquals(5, checkpoints.get(1).getMessages().size());
+        }
+    }
+
+    @Test
+    @DisplayName("A checkpoint written in chunks is stored only once it is published")
+    void writtenInChunks(@TempDir Path directory) {
+        try (CheckpointStore store = new CheckpointStore(directory, Integer.MAX_VALUE, 0, 0)) {
+            store.add(checkpoint(0, 2));
+            Checkpoint checkpoint = checkpoint(1, 6);
+            try (CheckpointFile.Writer writer = store.writer(1)) {
+                for (int i = 0; i < 6; i++) {
+                    writer.append(ByteBuffer.wrap(checkpoint.getMessages().get(i)));
+                    assertEquals(1, store.snapshot().size());
+                }
+                assertEquals(6, writer.size());
+                store.add(writer);
+            }
+            List<Checkpoint> checkpoints = store.read(1);
+            assertEquals(1, checkpoints.size());
+            for (int i = 0; i < 6; i++)
+                assertArrayEquals(checkpoint.getMessages().get(i), checkpoints.get(0).getMessages().get(i));
+
+            // a checkpoint whose chunks stop arriving leaves nothing behind
+            try (CheckpointFile.Writer writer = store.writer(2)) {
+                writer.append(ByteBuffer.wrap(checkpoint(2, 1).getMessages().get(0)));
+            }
+            assertEquals(2, store.snapshot().size());
+            assertFalse(Files.exists(directory.resolve("Checkpoint2.bin.tmp")));
+            assertFalse(Files.exists(directory.resolve("Checkpoint2.bin")));
+        }
+    }
+}
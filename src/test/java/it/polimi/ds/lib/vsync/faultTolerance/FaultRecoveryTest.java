@@ -0,0 +1,49 @@
+package it.polimi.ds.lib.vsync.faultTolerance;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SortedSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FaultRecoveryTest {
+
+    @Test
+    @DisplayName("A checkpoint at a cut takes the messages before it and leaves the others in the log")
+    void splitAtCut(@TempDir Path directory) {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 1024)) {
+            // logged in the order they became stable, not in timestamp order
+            int[][] clocks = {{2, 4}, {1, 1}, {2, 2}, {1, 5}, {1, 3}};
+            for (int[] clock : clocks)
+                log.append(new VSyncMessage(("message " + clock[1]).getBytes()), new ScalarClock(clock[0], clock[1]));
+            List<Path> segments = log.seal();
+            SortedSet<FaultRecovery.VSyncWrapper> before = FaultRecovery.splitAtCut(log, segments,
+                    new ScalarClock(1, 4));
+            assertEquals(List.of(new ScalarClock(1, 1), new ScalarClock(2, 2), new ScalarClock(1, 3)),
+                    before.stream().map(FaultRecovery.VSyncWrapper::timestamp).toList());
+            assertEquals(2, log.size());
+            // deleted once the checkpoint is written
+            WriteAheadLog.delete(segments);
+            List<FaultRecovery.VSyncWrapper> after = WriteAheadLog.read(log.seal());
+            assertEquals(List.of(new ScalarClock(2, 4), new ScalarClock(1, 5)),
+                    after.stream().map(FaultRecovery.VSyncWrapper::timestamp).toList());
+            assertArrayEquals("message 5".getBytes(), after.get(1).message().getPayload());
+        }
+    }
+
+    @Test
+    @DisplayName("A checkpoint without a cut takes all the logged messages")
+    void splitWithoutCut(@TempDir Path directory) {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 1024)) {
+            for (int i = 0; i < 3; i++) log.append(new VSyncMessage(new byte[]{(byte) i}), new ScalarClock(1, i));
+            assertEquals(3, FaultRecovery.splitAtCut(log, log.seal(), null).size());
+            assertEquals(0, log.size());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package it.polimi.ds.lib.vsync.faultTolerance;
+
+import it.polimi.ds.lib.reliability.ScalarClock;
+import it.polimi.ds.lib.vsync.VSyncMessage;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    @Test
+    @DisplayName("Sealed segments contain the logged messages in order and are rolled by size")
+    void sealAndRead(@TempDir Path directory) {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 64)) {
+            for (int i = 0; i < 10; i++)
+                log.append(new VSyncMessage(("message " + i).getBytes()), new ScalarClock(1, i));
+            assertEquals(10, log.size());
+            List<Path> segments = log.seal();
+            assertTrue(segments.size() > 1);
+            assertEquals(0, log.size());
+            List<FaultRecovery.VSyncWrapper> messages = WriteAheadLog.read(segments);
+            assertEquals(10, messages.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(new ScalarClock(1, i), messages.get(i).timestamp());
+                assertArrayEquals(("message " + i).getBytes(), messages.get(i).message().getPayload());
+            }
+            WriteAheadLog.delete(segments);
+            assertTrue(WriteAheadLog.read(log.seal()).isEmpty());
+        }
+    }
+
+    @Test
+    @DisplayName("Reopening the log keeps its records and drops a torn record at the end")
+    void recoverAfterCrash(@TempDir Path directory) throws Exception {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.ALWAYS, 1024)) {
+            VSyncMessage batch = VSyncMessage.batch(List.of("a".getBytes(), "b".getBytes()));
+            log.append(batch, new ScalarClock(2, 1));
+            log.append(new VSyncMessage("c".getBytes()), new ScalarClock(2, 2));
+        }
+        Path segment;
+        try (var files = Files.list(directory)) {
+            segment = files.filter(path -> path.toString().endsWith(".wal")).findFirst().orElseThrow();
+        }
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // the last record loses its last byte, as if the process crashed while writing it
+            file.truncate(file.size() - 1);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 1024)) {
+            assertEquals(1, log.size());
+            log.append(new VSyncMessage("d".getBytes()), new ScalarClock(2, 3));
+            List<FaultRecovery.VSyncWrapper> messages = WriteAheadLog.read(log.seal());
+            assertEquals(2, messages.size());
+            assertTrue(messages.get(0).message().batch);
+            assertEquals(2, messages.get(0).message().getPayloads().size());
+            assertEquals(new ScalarClock(2, 3), messages.get(1).timestamp());
+        }
+    }
+
+    @Test
+    @DisplayName("A last segment whose header was torn gets a new one before being appended to")
+    void recoverTornHeader(@TempDir Path directory) throws Exception {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.ALWAYS, 1024)) {
+            log.append(new VSyncMessage("a".getBytes()), new ScalarClock(4, 1));
+        }
+        Path segment;
+        try (var files = Files.list(directory)) {
+            segment = files.filter(path -> path.toString().endsWith(".wal")).findFirst().orElseThrow();
+        }
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // the process crashed while writing the header of the segment
+            file.truncate(2);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 1024)) {
+            assertEquals(0, log.size());
+            log.append(new VSyncMessage("b".getBytes()), new ScalarClock(4, 2));
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 1024)) {
+            assertEquals(1, log.size());
+            List<FaultRecovery.VSyncWrapper> messages = WriteAheadLog.read(log.seal());
+            assertEquals(1, messages.size());
+            assertEquals(new ScalarClock(4, 2), messages.get(0).timestamp());
+        }
+    }
+
+    @Test
+    @DisplayName("Concurrent appends with forced writes are all logged")
+    void groupCommit(@TempDir Path directory) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.ALWAYS, 1024 * 1024)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                int eventID = i;
+                futures.add(executor.submit(() ->
+                        log.append(new VSyncMessage(new byte[16]), new ScalarClock(3, eventID))));
+            }
+            for (Future<?> future : futures) future.get();
+            assertEquals(100, WriteAheadLog.read(log.seal()).size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("A directory can be used by a single log at a time")
+    void exclusiveDirectory(@TempDir Path directory) {
+        try (WriteAheadLog ignored = new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 1024)) {
+            assertThrows(IllegalStateException.class,
+                    () -> new WriteAheadLog(directory, WriteAheadLog.Durability.OS, 1024));
+        }
+    }
+}